@@ -0,0 +1,11 @@
+package org.jenkins.plugins.lockableresources;
+
+/** What happens when a resource is held longer than its maximum hold time. */
+public enum HoldTimeAction {
+  /** Only log a warning (default). */
+  WARN,
+  /** Warn, then abort the builds holding the resource. */
+  ABORT,
+  /** Warn, then release the resource as an unlock by an administrator would do. */
+  RELEASE
+}
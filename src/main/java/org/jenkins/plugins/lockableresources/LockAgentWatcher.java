@@ -0,0 +1,28 @@
+package org.jenkins.plugins.lockableresources;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically gives their resources to the lock steps waiting for an idle executor of the agents
+ * of the resources, see {@link LockableResourcesManager#recheckAgentWaiters()}.
+ */
+@Extension
+public class LockAgentWatcher extends AsyncPeriodicWork {
+
+  public LockAgentWatcher() {
+    super("Lockable resources agent watcher");
+  }
+
+  @Override
+  public long getRecurrencePeriod() {
+    return TimeUnit.SECONDS.toMillis(10);
+  }
+
+  @Override
+  protected void execute(TaskListener listener) {
+    LockableResourcesManager.get().recheckAgentWaiters();
+  }
+}
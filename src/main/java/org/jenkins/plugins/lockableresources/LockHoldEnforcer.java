@@ -0,0 +1,28 @@
+package org.jenkins.plugins.lockableresources;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically warns about, aborts or releases locks held longer than their maximum hold time,
+ * see {@link LockableResourcesManager#enforceHoldLimits(long)}.
+ */
+@Extension
+public class LockHoldEnforcer extends AsyncPeriodicWork {
+
+  public LockHoldEnforcer() {
+    super("Lockable resources hold time enforcer");
+  }
+
+  @Override
+  public long getRecurrencePeriod() {
+    return TimeUnit.MINUTES.toMillis(1);
+  }
+
+  @Override
+  protected void execute(TaskListener listener) {
+    LockableResourcesManager.get().enforceHoldLimits(System.currentTimeMillis());
+  }
+}
@@ -0,0 +1,50 @@
+package org.jenkins.plugins.lockableresources;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import java.util.concurrent.TimeUnit;
+import jenkins.util.SystemProperties;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Periodically renews the leases of locks held by running builds and reclaims the expired ones,
+ * see {@link LockableResourcesManager#renewAndReclaimLeases(int)}.
+ */
+@Extension
+public class LockLeaseReaper extends AsyncPeriodicWork {
+
+  /** Resources reclaimed per run at most, keeps the manager lock short. */
+  private static final int BATCH_SIZE = 50;
+
+  /** Whether the leases are looked at periodically, tests call the manager themselves. */
+  @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "tests and script console")
+  @Restricted(NoExternalUse.class)
+  public static boolean ENABLED =
+    SystemProperties.getBoolean(LockLeaseReaper.class.getName() + ".enabled", true);
+
+  public LockLeaseReaper() {
+    super("Lockable resources lease reaper");
+  }
+
+  @Override
+  public long getRecurrencePeriod() {
+    return TimeUnit.SECONDS.toMillis(30);
+  }
+
+  @Override
+  protected void execute(TaskListener listener) {
+    if (!ENABLED || LockableResourcesManager.LEASE_SECONDS <= 0) {
+      return;
+    }
+    int reclaimed;
+    do {
+      reclaimed = LockableResourcesManager.get().renewAndReclaimLeases(BATCH_SIZE);
+      if (reclaimed > 0) {
+        listener.getLogger().println("Reclaimed " + reclaimed + " resource(s) with an expired lease");
+      }
+    } while (reclaimed == BATCH_SIZE);
+  }
+}
@@ -0,0 +1,123 @@
+package org.jenkins.plugins.lockableresources;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Run;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.util.SystemProperties;
+import org.jenkins.plugins.lockableresources.queue.QueuedContextStruct;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Looks up the builds of the queued lock steps and the builds holding resources after a restart,
+ * in the background and several at a time. Otherwise the first queue pass or page view after the
+ * restart loads the build records one after the other, with the manager lock held.
+ *
+ * <p>The queued contexts go first, in queue order, then the holders of the resources, once per
+ * build. Nothing waits for it: {@link LockableResource#getBuild()} and {@link
+ * QueuedContextStruct#getBuild()} still look up themselves what is not there yet.
+ */
+@Restricted(NoExternalUse.class)
+public final class LockRehydrator {
+
+  private static final Logger LOGGER = Logger.getLogger(LockRehydrator.class.getName());
+
+  /** Amount of builds looked up at the same time, 0 leaves all lookups to the first use. */
+  @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "tests and script console")
+  public static int THREADS =
+    SystemProperties.getInteger(LockRehydrator.class.getName() + ".threads", 4);
+
+  private LockRehydrator() {}
+
+  @Initializer(after = InitMilestone.JOB_LOADED)
+  public static void rehydrate() {
+    if (THREADS <= 0) {
+      return;
+    }
+    LockableResourcesManager manager = LockableResourcesManager.get();
+    List<QueuedContextStruct> contexts = manager.getUnresolvedContexts();
+    Map<String, List<LockableResource>> holders = manager.getUnresolvedHolders();
+    if (contexts.isEmpty() && holders.isEmpty()) {
+      return;
+    }
+    long start = System.nanoTime();
+    ExecutorService executor =
+      Executors.newFixedThreadPool(
+        THREADS, new NamingThreadFactory(new DaemonThreadFactory(), "LockRehydrator"));
+    List<CompletableFuture<Void>> lookups = new ArrayList<>();
+    for (QueuedContextStruct entry : contexts) {
+      lookups.add(
+        CompletableFuture.runAsync(
+          () -> {
+            Run<?, ?> build = lookUp(entry);
+            if (build != null) {
+              manager.rehydrated(entry, build);
+            }
+          },
+          executor));
+    }
+    for (Map.Entry<String, List<LockableResource>> holder : holders.entrySet()) {
+      lookups.add(
+        CompletableFuture.runAsync(
+          () -> {
+            try {
+              manager.rehydrated(holder.getValue(), holder.getKey(), lookUp(holder.getKey()));
+            } catch (RuntimeException e) {
+              // left to the first use
+              LOGGER.log(Level.FINE, "Could not look up " + holder.getKey(), e);
+            }
+          },
+          executor));
+    }
+    executor.shutdown();
+    CompletableFuture.allOf(lookups.toArray(new CompletableFuture<?>[0]))
+      .whenComplete(
+        (done, e) ->
+          LOGGER.log(
+            Level.FINE,
+            "Looked up the builds of {0} queued contexts and {1} lock holders in {2} ms",
+            new Object[] {
+              contexts.size(),
+              holders.size(),
+              TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+            }));
+  }
+
+  @CheckForNull
+  private static Run<?, ?> lookUp(QueuedContextStruct entry) {
+    try (ACLContext ignored = ACL.as2(ACL.SYSTEM2)) {
+      return entry.getContext().get(Run.class);
+    } catch (InterruptedException e) {
+      // the executor is going away, left to the first use
+      Thread.currentThread().interrupt();
+      return null;
+    } catch (IOException | RuntimeException e) {
+      // left to the first use, the queue drops the context if its build is gone
+      LOGGER.log(Level.FINE, "Could not look up the build of a queued context", e);
+      return null;
+    }
+  }
+
+  @CheckForNull
+  private static Run<?, ?> lookUp(String id) {
+    try (ACLContext ignored = ACL.as2(ACL.SYSTEM2)) {
+      return Run.fromExternalizableId(id);
+    }
+  }
+}
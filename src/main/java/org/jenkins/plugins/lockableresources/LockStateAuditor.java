@@ -0,0 +1,48 @@
+package org.jenkins.plugins.lockableresources;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import java.util.concurrent.TimeUnit;
+import jenkins.util.SystemProperties;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Periodically looks for leaked locks, stale queued contexts and stale queue reservations, a
+ * slice at a time, see {@link LockableResourcesManager#auditLockState(int)}.
+ */
+@Extension
+public class LockStateAuditor extends AsyncPeriodicWork {
+
+  /** Resources and queued contexts looked at per run, keeps the manager lock short. */
+  private static final int SLICE_SIZE = 100;
+
+  /** Whether the state is audited periodically, tests call the manager themselves. */
+  @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "tests and script console")
+  @Restricted(NoExternalUse.class)
+  public static boolean ENABLED =
+    SystemProperties.getBoolean(LockStateAuditor.class.getName() + ".enabled", true);
+
+  public LockStateAuditor() {
+    super("Lockable resources state auditor");
+  }
+
+  @Override
+  public long getRecurrencePeriod() {
+    return TimeUnit.MINUTES.toMillis(1);
+  }
+
+  @Override
+  protected void execute(TaskListener listener) {
+    if (!ENABLED) {
+      return;
+    }
+    LockableResourcesManager.AuditCounts fixed =
+      LockableResourcesManager.get().auditLockState(SLICE_SIZE);
+    if (!fixed.isEmpty()) {
+      listener.getLogger().println("Fixed " + fixed);
+    }
+  }
+}
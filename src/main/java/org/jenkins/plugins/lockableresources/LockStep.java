@@ -10,10 +10,8 @@ import hudson.model.TaskListener;
 import hudson.util.FormValidation;
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
-import java.util.Locale;
 import java.util.Set;
 import java.util.stream.Collectors;
 
@@ -38,6 +36,12 @@ public class LockStep extends Step implements Serializable {
 
   public int quantity = 0;
 
+  /** Elastic quantity: lock at least this amount when {@link #quantity} are not available. */
+  public int minQuantity = 0;
+
+  /** Seconds to wait for the full {@link #quantity} before taking {@link #minQuantity}. */
+  public int quantityGracePeriod = 0;
+
   /** name of environment variable to store locked resources in */
   @CheckForNull public String variable = null;
 
@@ -47,6 +51,23 @@ public class LockStep extends Step implements Serializable {
 
   public boolean skipIfLocked = false;
 
+  public String mode = ResourceLockMode.EXCLUSIVE.name();
+
+  /** Higher priority steps get the resources first when waiting. */
+  public int priority = 0;
+
+  /** Seconds to wait in the queue before giving up, 0 waits forever. */
+  public int timeout = 0;
+
+  /** Skip the body instead of failing the step once {@link #timeout} is over. */
+  public boolean skipOnTimeout = false;
+
+  /**
+   * Wait for the resources and an idle executor of their agents together, see {@link
+   * LockableResource#getAgentLabel()}.
+   */
+  public boolean waitForAgent = false;
+
   @CheckForNull public List<LockStepResource> extra = null;
 
   // it should be LockStep() - without params. But keeping this for backward compatibility
@@ -69,6 +90,31 @@ public class LockStep extends Step implements Serializable {
     this.resourceSelectStrategy = resourceSelectStrategy;
   }
 
+  @DataBoundSetter
+  public void setMode(String mode) {
+    this.mode = mode;
+  }
+
+  @DataBoundSetter
+  public void setPriority(int priority) {
+    this.priority = priority;
+  }
+
+  @DataBoundSetter
+  public void setTimeout(int timeout) {
+    this.timeout = timeout;
+  }
+
+  @DataBoundSetter
+  public void setSkipOnTimeout(boolean skipOnTimeout) {
+    this.skipOnTimeout = skipOnTimeout;
+  }
+
+  @DataBoundSetter
+  public void setWaitForAgent(boolean waitForAgent) {
+    this.waitForAgent = waitForAgent;
+  }
+
   @DataBoundSetter
   public void setSkipIfLocked(boolean skipIfLocked) {
     this.skipIfLocked = skipIfLocked;
@@ -93,6 +139,16 @@ public class LockStep extends Step implements Serializable {
     this.quantity = quantity;
   }
 
+  @DataBoundSetter
+  public void setMinQuantity(int minQuantity) {
+    this.minQuantity = minQuantity;
+  }
+
+  @DataBoundSetter
+  public void setQuantityGracePeriod(int quantityGracePeriod) {
+    this.quantityGracePeriod = quantityGracePeriod;
+  }
+
   @DataBoundSetter
   public void setExtra(@CheckForNull List<LockStepResource> extra) {
     this.extra = extra;
@@ -149,16 +205,23 @@ public class LockStep extends Step implements Serializable {
       } else {
         Jenkins.get().checkPermission(Jenkins.ADMINISTER);
       }
-      if (resourceSelectStrategy != null && !resourceSelectStrategy.isEmpty()) {
-        try {
-          ResourceSelectStrategy.valueOf(resourceSelectStrategy.toUpperCase(Locale.ENGLISH));
-        } catch (IllegalArgumentException e) {
-          return FormValidation.error(Messages.error_invalidResourceSelectionStrategy(resourceSelectStrategy, Arrays.stream(ResourceSelectStrategy.values()).map(Enum::toString).map(strategy -> strategy.toLowerCase(Locale.ENGLISH)).collect(Collectors.joining(", "))));
-        }
+      if (resourceSelectStrategy != null
+        && !resourceSelectStrategy.isEmpty()
+        && ResourceSelector.byName(resourceSelectStrategy) == null) {
+        return FormValidation.error(
+          Messages.error_invalidResourceSelectionStrategy(
+            resourceSelectStrategy, ResourceSelector.getNames()));
       }
       return FormValidation.ok();
     }
 
+    @RequirePOST
+    public static FormValidation doCheckMode(
+      @QueryParameter String value,
+      @AncestorInPath Item item) {
+      return LockStepResource.DescriptorImpl.doCheckMode(value, item);
+    }
+
     @Override
     public Set<Class<?>> getRequiredContext() {
       return Collections.singleton(TaskListener.class);
@@ -172,7 +235,7 @@ public class LockStep extends Step implements Serializable {
         .map(res -> "{" + res.toString() + "}")
         .collect(Collectors.joining(","));
     } else if (resource != null || label != null) {
-      return LockStepResource.toString(resource, label, quantity);
+      return LockStepResource.toString(resource, label, minQuantity, quantity);
     } else {
       return "nothing";
     }
@@ -181,16 +244,37 @@ public class LockStep extends Step implements Serializable {
   /** Label and resource are mutual exclusive. */
   public void validate() {
     LockStepResource.validate(resource, label, resourceSelectStrategy);
+    LockStepResource.validateMode(mode);
+    LockStepResource.validateMinQuantity(label, minQuantity, quantity);
+    if (timeout < 0) {
+      throw new IllegalArgumentException(Messages.error_invalidTimeout(timeout));
+    }
+    if (extra != null) {
+      for (LockStepResource resource : extra) {
+        LockStepResource.validateMode(resource.mode);
+        LockStepResource.validateMinQuantity(resource.label, resource.minQuantity, resource.quantity);
+      }
+    }
   }
 
   public List<LockStepResource> getResources() {
     List<LockStepResource> resources = new ArrayList<>();
     if (resource != null || label != null) {
-      resources.add(new LockStepResource(resource, label, quantity));
+      LockStepResource main = new LockStepResource(resource, label, quantity, mode);
+      main.minQuantity = minQuantity;
+      resources.add(main);
     }
 
     if (extra != null) {
-      resources.addAll(extra);
+      for (LockStepResource r : extra) {
+        // extra resources without own mode are locked the same way as the main one
+        if (r.mode == null) {
+          LockStepResource copy = new LockStepResource(r.resource, r.label, r.quantity, mode);
+          copy.minQuantity = r.minQuantity;
+          r = copy;
+        }
+        resources.add(r);
+      }
     }
     return resources;
   }
@@ -2,6 +2,7 @@ package org.jenkins.plugins.lockableresources;
 
 import edu.umd.cs.findbugs.annotations.NonNull;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import hudson.AbortException;
 import hudson.EnvVars;
 import hudson.model.Run;
 import hudson.model.TaskListener;
@@ -9,14 +10,22 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
+import org.jenkins.plugins.lockableresources.metrics.LockEvents;
+import org.jenkins.plugins.lockableresources.metrics.LockMetrics;
+import org.jenkins.plugins.lockableresources.trace.LockTraceRecorder;
 import org.jenkins.plugins.lockableresources.queue.LockableResourcesStruct;
+import org.jenkins.plugins.lockableresources.queue.QueuedContextStruct;
+import org.jenkinsci.plugins.workflow.graph.BlockStartNode;
 import org.jenkinsci.plugins.workflow.graph.FlowNode;
 import org.jenkinsci.plugins.workflow.steps.AbstractStepExecutionImpl;
 import org.jenkinsci.plugins.workflow.steps.BodyExecutionCallback;
@@ -45,10 +54,18 @@ public class LockStepExecution extends AbstractStepExecutionImpl implements Seri
     getContext().get(FlowNode.class).addAction(new PauseAction("Lock"));
     PrintStream logger = getContext().get(TaskListener.class).getLogger();
     logger.println("Trying to acquire lock on [" + step + "]");
+    Run<?, ?> run = getContext().get(Run.class);
+    LockEvents.Requested.emit(step.toString(), run.getExternalizableId());
 
     List<LockableResourcesStruct> resourceHolderList = new ArrayList<>();
 
     for (LockStepResource resource : step.getResources()) {
+      if (resource.resource != null
+        && LockableResourcesManager.get().capacityFromName(resource.resource) != null) {
+        // the quantity is the amount of permits to take
+        resourceHolderList.add(new LockableResourcesStruct(resource.resource, resource.quantity));
+        continue;
+      }
       List<String> resources = new ArrayList<>();
       if (resource.resource != null) {
         if (LockableResourcesManager.get().createResource(resource.resource)) {
@@ -56,27 +73,37 @@ public class LockStepExecution extends AbstractStepExecutionImpl implements Seri
         }
         resources.add(resource.resource);
       }
-      resourceHolderList.add(
-        new LockableResourcesStruct(resources, resource.label, resource.quantity));
+      LockableResourcesStruct struct =
+        new LockableResourcesStruct(resources, resource.label, resource.quantity);
+      struct.shared = resource.isShared();
+      struct.requiredMinNumber = resource.minQuantity;
+      struct.gracePeriod = TimeUnit.SECONDS.toMillis(Math.max(step.quantityGracePeriod, 0));
+      struct.jobName = run.getParent().getFullName();
+      struct.waitForAgent = step.waitForAgent;
+      resourceHolderList.add(struct);
     }
 
-    ResourceSelectStrategy resourceSelectStrategy;
-    try {
-      resourceSelectStrategy = ResourceSelectStrategy.valueOf(step.resourceSelectStrategy.toUpperCase(Locale.ENGLISH));
-    } catch (IllegalArgumentException e) {
+    LockTraceRecorder.requested(
+      traceId(run, getContext().get(FlowNode.class)),
+      System.currentTimeMillis(),
+      resourceHolderList,
+      step.priority);
+
+    ResourceSelector resourceSelector = ResourceSelector.byName(step.resourceSelectStrategy);
+    if (resourceSelector == null) {
       logger.println("Error: invalid resourceSelectStrategy: " + step.resourceSelectStrategy);
       return true;
     }
     // determine if there are enough resources available to proceed
     List<LockableResource> available =
       LockableResourcesManager.get()
-        .checkResourcesAvailability(resourceHolderList, logger, null, step.skipIfLocked, resourceSelectStrategy);
-    Run<?, ?> run = getContext().get(Run.class);
+        .checkResourcesAvailability(resourceHolderList, logger, null, step.skipIfLocked, resourceSelector);
 
     if (available == null
       || !LockableResourcesManager.get()
       .lock(
         available,
+        resourceHolderList,
         run,
         getContext(),
         step.toString(),
@@ -101,17 +128,58 @@ public class LockStepExecution extends AbstractStepExecutionImpl implements Seri
         } else {
           logger.println("[" + step + "] is locked, waiting...");
         }
-        LockableResourcesManager.get()
-          .queueContext(getContext(), resourceHolderList, step.toString(), step.variable);
+        QueuedContextStruct entry =
+          new QueuedContextStruct(
+            getContext(), resourceHolderList, step.toString(), step.variable);
+        entry.setPriority(step.priority);
+        entry.setEnclosingBlockIds(enclosingBlockIds(getContext()));
+        if (step.timeout > 0) {
+          entry.setDeadline(System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(step.timeout));
+          entry.setSkipOnTimeout(step.skipOnTimeout);
+        }
+        LockableResourcesManager.get().queueContext(entry);
+        logger.println(
+          "[" + step + "] " + LockableResourcesManager.get().getWaitEstimate(entry));
       }
     } // proceed is called inside lock if execution is possible
 
     return false;
   }
 
+  private static Set<String> enclosingBlockIds(StepContext context)
+    throws IOException, InterruptedException {
+    Set<String> ids = new HashSet<>();
+    for (BlockStartNode block : context.get(FlowNode.class).getEnclosingBlocks()) {
+      ids.add(block.getId());
+    }
+    return ids;
+  }
+
+  public static void proceed(
+    final List<String> resourceNames,
+    StepContext context,
+    String resourceDescription,
+    final String variable,
+    boolean inversePrecedence) {
+    proceed(
+      resourceNames,
+      Collections.emptyMap(),
+      context,
+      resourceDescription,
+      variable,
+      inversePrecedence);
+  }
+
+  /**
+   * Starts the lock step body.
+   *
+   * @param capacityPermits permits taken from {@link LockableCapacityResource}s, per name. They are
+   *     released when the body ends.
+   */
   @SuppressFBWarnings(value = "REC_CATCH_EXCEPTION", justification = "not sure which exceptions might be catch.")
   public static void proceed(
     final List<String> resourceNames,
+    final Map<String, Integer> capacityPermits,
     StepContext context,
     String resourceDescription,
     final String variable,
@@ -131,13 +199,30 @@ public class LockStepExecution extends AbstractStepExecutionImpl implements Seri
     }
 
     LOGGER.finest("Lock acquired on [" + resourceDescription + "] by " + r.getExternalizableId());
+    LockableResourcesManager.get().recordLockNode(resourceNames, r, node.getId());
     try {
       PauseAction.endCurrentPause(node);
+      long waitMillis = PauseAction.getPauseDuration(node);
+      LockMetrics.get().acquired(waitMillis);
+      LockEvents.Granted.emit(String.join(",", resourceNames), r.getExternalizableId(), waitMillis);
+      LockTraceRecorder.granted(traceId(r, node), resourceNames);
       BodyInvoker bodyInvoker =
         context
           .newBodyInvoker()
-          .withCallback(new Callback(resourceNames, resourceDescription, inversePrecedence));
+          .withCallback(
+            new Callback(
+              resourceNames, capacityPermits, resourceDescription, inversePrecedence));
       if (variable != null && variable.length() > 0) {
+        // agents of the resources, for node() in the body
+        final Map<String, String> agents = new HashMap<>();
+        for (int index = 0; index < resourceNames.size(); ++index) {
+          LockableResource resource = LockableResourcesManager.get().fromName(resourceNames.get(index));
+          String agentLabel = resource != null ? resource.getAgentLabel() : null;
+          if (agentLabel != null) {
+            agents.putIfAbsent(variable + "_AGENT", agentLabel);
+            agents.put(variable + index + "_AGENT", agentLabel);
+          }
+        }
         // set the variable for the duration of the block
         bodyInvoker.withContext(
           EnvironmentExpander.merge(
@@ -153,6 +238,7 @@ public class LockStepExecution extends AbstractStepExecutionImpl implements Seri
                 for (int index = 0; index < resourceNames.size(); ++index) {
                   variables.put(variable + index, resourceNames.get(index));
                 }
+                variables.putAll(agents);
                 LOGGER.finest("Setting "
                   + variables.entrySet().stream().map(e -> e.getKey() + "=" + e.getValue()).collect(Collectors.joining(", "))
                   + " for the duration of the block");
@@ -166,26 +252,83 @@ public class LockStepExecution extends AbstractStepExecutionImpl implements Seri
     }
   }
 
+  /**
+   * Ends a step that waited longer than its timeout. The context has already been removed from
+   * the queue by {@link LockableResourcesManager}.
+   */
+  public static void timeout(
+    StepContext context, String resourceDescription, boolean skipOnTimeout) {
+    try {
+      PauseAction.endCurrentPause(context.get(FlowNode.class));
+      PrintStream logger = context.get(TaskListener.class).getLogger();
+      if (skipOnTimeout) {
+        logger.println(
+          "Timeout while waiting for [" + resourceDescription + "], skipping execution...");
+        context.onSuccess(null);
+      } else {
+        context.onFailure(
+          new AbortException("Timeout while waiting for [" + resourceDescription + "]"));
+      }
+    } catch (Exception e) {
+      context.onFailure(e);
+    }
+  }
+
+  /**
+   * Fails a step which has been removed from the queue by {@link LockableResourcesManager}, e.g.
+   * to break a deadlock.
+   */
+  public static void fail(StepContext context, String message) {
+    try {
+      PauseAction.endCurrentPause(context.get(FlowNode.class));
+    } catch (Exception e) {
+      LOGGER.log(Level.FINE, "Cannot end the pause of " + context, e);
+    }
+    context.onFailure(new AbortException(message));
+  }
+
+  /** Identifies the lock step in the lock trace, see {@link LockTraceRecorder}. */
+  private static String traceId(Run<?, ?> run, FlowNode node) {
+    return run.getExternalizableId() + "/" + node.getId();
+  }
+
   private static final class Callback extends BodyExecutionCallback.TailCall {
 
     private static final long serialVersionUID = -2024890670461847666L;
     private final List<String> resourceNames;
+    private final HashMap<String, Integer> capacityPermits;
     private final String resourceDescription;
     private final boolean inversePrecedence;
+    /** 0 for callbacks serialized by older versions. */
+    private final long acquiredAt;
 
     Callback(
       List<String> resourceNames,
+      Map<String, Integer> capacityPermits,
       String resourceDescription,
       boolean inversePrecedence) {
       this.resourceNames = resourceNames;
+      this.capacityPermits = new HashMap<>(capacityPermits);
       this.resourceDescription = resourceDescription;
       this.inversePrecedence = inversePrecedence;
+      this.acquiredAt = System.currentTimeMillis();
     }
 
     @Override
     protected void finished(StepContext context) throws Exception {
+      Run<?, ?> build = context.get(Run.class);
       LockableResourcesManager.get()
-        .unlockNames(this.resourceNames, context.get(Run.class), this.inversePrecedence);
+        .unlockNames(this.resourceNames, build, this.inversePrecedence);
+      // null for callbacks serialized by older versions
+      LockableResourcesManager.get().releaseCapacity(this.capacityPermits, build);
+      if (acquiredAt > 0) {
+        long holdMillis = System.currentTimeMillis() - acquiredAt;
+        LockMetrics.get().released(holdMillis);
+        LockEvents.Released.emit(
+          String.join(",", this.resourceNames), build.getExternalizableId(), holdMillis);
+      }
+      LockTraceRecorder.released(
+        traceId(build, context.get(FlowNode.class)), this.resourceNames);
       context
         .get(TaskListener.class)
         .getLogger()
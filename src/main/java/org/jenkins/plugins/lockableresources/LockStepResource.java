@@ -31,12 +31,28 @@ public class LockStepResource extends AbstractDescribableImpl<LockStepResource>
 
   public int quantity = 0;
 
+  /**
+   * Elastic quantity: lock at least this amount of resources when {@link #quantity} are not
+   * available. 0 asks for exactly {@link #quantity}.
+   */
+  public int minQuantity = 0;
+
+  /** {@link ResourceLockMode} name, {@code null} to use the mode of the lock step. */
+  @CheckForNull
+  public String mode = null;
+
   LockStepResource(@Nullable String resource, @Nullable String label, int quantity) {
     this.resource = resource;
     this.label = label;
     this.quantity = quantity;
   }
 
+  LockStepResource(
+    @Nullable String resource, @Nullable String label, int quantity, @Nullable String mode) {
+    this(resource, label, quantity);
+    this.mode = mode;
+  }
+
   @DataBoundConstructor
   public LockStepResource(@Nullable String resource) {
     if (resource != null && !resource.isEmpty()) {
@@ -56,14 +72,36 @@ public class LockStepResource extends AbstractDescribableImpl<LockStepResource>
     this.quantity = quantity;
   }
 
+  @DataBoundSetter
+  public void setMinQuantity(int minQuantity) {
+    this.minQuantity = minQuantity;
+  }
+
+  @DataBoundSetter
+  public void setMode(String mode) {
+    this.mode = Util.fixEmptyAndTrim(mode);
+  }
+
+  /** Checks if the resource shall be locked in {@link ResourceLockMode#SHARED} mode. */
+  public boolean isShared() {
+    return mode != null && ResourceLockMode.SHARED.name().equalsIgnoreCase(mode);
+  }
+
   @Override
   public String toString() {
-    return toString(resource, label, quantity);
+    return toString(resource, label, minQuantity, quantity);
   }
 
   public static String toString(String resource, String label, int quantity) {
+    return toString(resource, label, 0, quantity);
+  }
+
+  public static String toString(String resource, String label, int minQuantity, int quantity) {
     // a label takes always priority
     if (label != null) {
+      if (quantity > 0 && minQuantity > 0 && minQuantity < quantity) {
+        return "Label: " + label + ", Quantity: " + minQuantity + "-" + quantity;
+      }
       if (quantity > 0) {
         return "Label: " + label + ", Quantity: " + quantity;
       }
@@ -81,6 +119,7 @@ public class LockStepResource extends AbstractDescribableImpl<LockStepResource>
    */
   public void validate() {
     validate(resource, label, null);
+    validateMinQuantity(label, minQuantity, quantity);
   }
 
   /**
@@ -94,15 +133,38 @@ public class LockStepResource extends AbstractDescribableImpl<LockStepResource>
     if (label != null && !LockableResourcesManager.get().isValidLabel( label ) ) {
       throw new IllegalArgumentException(Messages.error_labelDoesNotExist(label));
     }
-    if (resourceSelectStrategy != null ) {
+    if (resourceSelectStrategy != null && ResourceSelector.byName(resourceSelectStrategy) == null) {
+      throw new IllegalArgumentException(
+        Messages.error_invalidResourceSelectionStrategy(
+          resourceSelectStrategy, ResourceSelector.getNames()));
+    }
+  }
+
+  /** An elastic quantity needs a label and a quantity, which is its upper bound. */
+  public static void validateMinQuantity(@CheckForNull String label, int minQuantity, int quantity) {
+    if (minQuantity < 0 || (minQuantity > 0 && (label == null || minQuantity > quantity))) {
+      throw new IllegalArgumentException(Messages.error_invalidMinQuantity(minQuantity, quantity));
+    }
+  }
+
+  /** The mode, if provided, must be one of {@link ResourceLockMode}. */
+  public static void validateMode(@CheckForNull String mode) {
+    if (mode != null) {
       try {
-        ResourceSelectStrategy.valueOf(resourceSelectStrategy.toUpperCase(Locale.ENGLISH));
+        ResourceLockMode.valueOf(mode.toUpperCase(Locale.ENGLISH));
       } catch (IllegalArgumentException e) {
-        throw new IllegalArgumentException(Messages.error_invalidResourceSelectionStrategy(resourceSelectStrategy, Arrays.stream(ResourceSelectStrategy.values()).map(Enum::toString).map(strategy -> strategy.toLowerCase(Locale.ENGLISH)).collect(Collectors.joining(", "))));
+        throw new IllegalArgumentException(Messages.error_invalidLockMode(mode, lockModes()));
       }
     }
   }
 
+  private static String lockModes() {
+    return Arrays.stream(ResourceLockMode.values())
+      .map(Enum::toString)
+      .map(m -> m.toLowerCase(Locale.ENGLISH))
+      .collect(Collectors.joining(", "));
+  }
+
   private static final long serialVersionUID = 1L;
 
   @Extension
@@ -151,5 +213,22 @@ public class LockStepResource extends AbstractDescribableImpl<LockStepResource>
       @AncestorInPath Item item) {
       return doCheckLabel(label, value, item);
     }
+
+    @RequirePOST
+    public static FormValidation doCheckMode(@QueryParameter String value,
+      @AncestorInPath Item item) {
+      // check permission, security first
+      if (item != null) {
+        item.checkPermission(Item.CONFIGURE);
+      } else {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+      }
+      try {
+        validateMode(Util.fixEmptyAndTrim(value));
+      } catch (IllegalArgumentException e) {
+        return FormValidation.error(e.getMessage());
+      }
+      return FormValidation.ok();
+    }
   }
 }
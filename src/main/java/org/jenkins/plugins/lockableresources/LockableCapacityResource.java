@@ -0,0 +1,254 @@
+package org.jenkins.plugins.lockableresources;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * A pool of interchangeable permits (floating license seats, quota units ...) handled as one
+ * entry. Instead of declaring one {@link LockableResource} per seat, the pool keeps a total
+ * capacity and the amount of permits held by each build, so acquire and release are plain counter
+ * updates.
+ */
+@ExportedBean(defaultVisibility = 999)
+public class LockableCapacityResource extends AbstractDescribableImpl<LockableCapacityResource>
+  implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  /** Same timeout as {@link LockableResource} uses for freestyle queue items (in seconds). */
+  private static final int QUEUE_TIMEOUT = 60;
+
+  private final String name;
+  private String description = "";
+  private int capacity = 1;
+
+  /** Permits held per build, keyed by the build externalizable id. */
+  private Map<String, Integer> holdings = new HashMap<>();
+
+  /** Sum of {@link #holdings}, kept up to date to avoid iterating the map. */
+  private transient int used;
+
+  /**
+   * Permits promised to freestyle queue items, between the queue dispatcher decision and the
+   * build start. Same life cycle as {@link LockableResource#setQueued(long, String)}.
+   */
+  private transient Map<Long, QueuedPermits> queued;
+
+  @DataBoundConstructor
+  public LockableCapacityResource(String name) {
+    this.name = Util.fixNull(name);
+  }
+
+  protected Object readResolve() {
+    if (holdings == null) {
+      holdings = new HashMap<>();
+    }
+    used = 0;
+    for (Integer held : holdings.values()) {
+      used += held;
+    }
+    return this;
+  }
+
+  @Exported
+  public String getName() {
+    return name;
+  }
+
+  @Exported
+  public String getDescription() {
+    return description;
+  }
+
+  @DataBoundSetter
+  public void setDescription(String description) {
+    this.description = Util.fixNull(description);
+  }
+
+  @Exported
+  public int getCapacity() {
+    return capacity;
+  }
+
+  @DataBoundSetter
+  public void setCapacity(int capacity) {
+    this.capacity = Math.max(capacity, 0);
+  }
+
+  /** Amount of permits currently held by builds. */
+  @Exported
+  public int getUsed() {
+    return used;
+  }
+
+  /** Amount of permits that can be acquired right now. */
+  @Exported
+  public int getFree() {
+    return Math.max(capacity - used - getQueuedPermits(), 0);
+  }
+
+  /**
+   * Amount of permits that can be acquired right now by the given freestyle queue item. Permits
+   * already promised to this item count as free.
+   */
+  public int getFree(long queueItemId) {
+    QueuedPermits own = getQueued().get(queueItemId);
+    return getFree() + (own == null ? 0 : own.permits);
+  }
+
+  /** Returns ids of builds holding permits together with the held amount. */
+  @Exported
+  public List<String> getHolders() {
+    List<String> holders = new ArrayList<>();
+    for (Map.Entry<String, Integer> entry : holdings.entrySet()) {
+      holders.add(entry.getKey() + " (" + entry.getValue() + ")");
+    }
+    Collections.sort(holders);
+    return holders;
+  }
+
+  /** Amount of permits held by the given build. */
+  public int getHeldBy(String buildExternalizableId) {
+    Integer held = holdings.get(buildExternalizableId);
+    return held == null ? 0 : held;
+  }
+
+  public boolean isHeldBy(String buildExternalizableId) {
+    return holdings.containsKey(buildExternalizableId);
+  }
+
+  /**
+   * Adds permits to the holding of the given build. The caller ({@link LockableResourcesManager})
+   * is responsible to check availability first.
+   */
+  public void acquire(String buildExternalizableId, int permits) {
+    if (permits <= 0) {
+      return;
+    }
+    holdings.merge(buildExternalizableId, permits, Integer::sum);
+    used += permits;
+  }
+
+  /**
+   * Returns permits held by the given build.
+   *
+   * @return amount of permits really released
+   */
+  public int release(String buildExternalizableId, int permits) {
+    Integer held = holdings.get(buildExternalizableId);
+    if (held == null || permits <= 0) {
+      return 0;
+    }
+    int released = Math.min(held, permits);
+    if (held - released == 0) {
+      holdings.remove(buildExternalizableId);
+    } else {
+      holdings.put(buildExternalizableId, held - released);
+    }
+    used -= released;
+    return released;
+  }
+
+  /**
+   * Returns all permits held by the given build.
+   *
+   * @return amount of permits released
+   */
+  public int releaseAll(String buildExternalizableId) {
+    return release(buildExternalizableId, getHeldBy(buildExternalizableId));
+  }
+
+  /** Releases all permits of all builds, see {@link LockableResource#reset()}. */
+  public void reset() {
+    holdings.clear();
+    used = 0;
+    getQueued().clear();
+  }
+
+  /** Promises permits to a freestyle queue item. Replaces a previous promise of the same item. */
+  public void setQueued(long queueItemId, int permits) {
+    getQueued().put(queueItemId, new QueuedPermits(permits));
+  }
+
+  /**
+   * Removes the promise done to a freestyle queue item.
+   *
+   * @return amount of promised permits, 0 when there were none
+   */
+  public int unqueue(long queueItemId) {
+    QueuedPermits removed = getQueued().remove(queueItemId);
+    return removed == null ? 0 : removed.permits;
+  }
+
+  private int getQueuedPermits() {
+    int permits = 0;
+    long now = System.currentTimeMillis() / 1000;
+    for (Iterator<QueuedPermits> it = getQueued().values().iterator(); it.hasNext(); ) {
+      QueuedPermits q = it.next();
+      if (now - q.since > QUEUE_TIMEOUT) {
+        it.remove();
+      } else {
+        permits += q.permits;
+      }
+    }
+    return permits;
+  }
+
+  private Map<Long, QueuedPermits> getQueued() {
+    if (queued == null) {
+      queued = new HashMap<>();
+    }
+    return queued;
+  }
+
+  /**
+   * Copy the holdings from another instance. Normally called after configuration change, so the
+   * permits held by running builds are not lost.
+   */
+  public void copyUnconfigurableProperties(final LockableCapacityResource source) {
+    if (source != null) {
+      this.holdings = new HashMap<>(source.holdings);
+      this.queued = source.queued;
+      readResolve();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+
+  private static final class QueuedPermits {
+    private final int permits;
+    private final long since;
+
+    QueuedPermits(int permits) {
+      this.permits = permits;
+      this.since = System.currentTimeMillis() / 1000;
+    }
+  }
+
+  @Extension
+  public static class DescriptorImpl extends Descriptor<LockableCapacityResource> {
+
+    @NonNull
+    @Override
+    public String getDisplayName() {
+      return Messages.LockableCapacityResource_displayName();
+    }
+  }
+}
@@ -0,0 +1,89 @@
+package org.jenkins.plugins.lockableresources;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
+import java.io.Serializable;
+import java.util.Locale;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+
+/**
+ * Maximum hold time shared by all resources with a label. A limit configured on the resource
+ * itself ({@link LockableResource#getMaxHoldMinutes()}) wins over the label ones.
+ */
+public class LockableHoldLimit extends AbstractDescribableImpl<LockableHoldLimit>
+  implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  private final String label;
+  private int maxHoldMinutes;
+  private String action = HoldTimeAction.WARN.name();
+
+  @DataBoundConstructor
+  public LockableHoldLimit(String label) {
+    this.label = Util.fixNull(label).trim();
+  }
+
+  public String getLabel() {
+    return label;
+  }
+
+  public int getMaxHoldMinutes() {
+    return maxHoldMinutes;
+  }
+
+  @DataBoundSetter
+  public void setMaxHoldMinutes(int maxHoldMinutes) {
+    this.maxHoldMinutes = Math.max(maxHoldMinutes, 0);
+  }
+
+  public String getAction() {
+    return action;
+  }
+
+  @DataBoundSetter
+  public void setAction(String action) {
+    this.action = HoldTimeAction.valueOf(action.toUpperCase(Locale.ENGLISH)).name();
+  }
+
+  public HoldTimeAction getHoldTimeAction() {
+    return HoldTimeAction.valueOf(action);
+  }
+
+  @Override
+  public String toString() {
+    return label + " (" + maxHoldMinutes + " min, " + action + ")";
+  }
+
+  @Extension
+  public static class DescriptorImpl extends Descriptor<LockableHoldLimit> {
+
+    @NonNull
+    @Override
+    public String getDisplayName() {
+      return Messages.LockableHoldLimit_displayName();
+    }
+
+    public FormValidation doCheckLabel(@QueryParameter String value) {
+      if (Util.fixEmptyAndTrim(value) == null) {
+        return FormValidation.error(Messages.error_holdLimitWithoutLabel());
+      }
+      return FormValidation.ok();
+    }
+
+    public ListBoxModel doFillActionItems() {
+      ListBoxModel items = new ListBoxModel();
+      for (HoldTimeAction action : HoldTimeAction.values()) {
+        items.add(action.name());
+      }
+      return items;
+    }
+  }
+}
@@ -11,6 +11,8 @@ package org.jenkins.plugins.lockableresources;
 import static java.text.DateFormat.MEDIUM;
 import static java.text.DateFormat.SHORT;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.infradna.tool.bridge_method_injector.WithBridgeMethods;
 import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
@@ -28,13 +30,17 @@ import hudson.model.Run;
 import hudson.model.User;
 import hudson.model.labels.LabelAtom;
 import hudson.tasks.Mailer.UserProperty;
+import hudson.util.ListBoxModel;
 import java.io.Serializable;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
@@ -65,9 +71,18 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
   /** @deprecated use labelsAsList instead due performance.
    */
   @Deprecated private transient String labels = null;
-  private List<String> labelsAsList = new ArrayList<>();
+  /** Interned label names, null until the first label is set. See {@link #getLabelsAsList()}. */
+  private List<String> labelsAsList;
+  /**
+   * {@link #labelsAsList} as label atoms, for label expressions. Shared by the resources with the
+   * same labels, looked up again when the labels change.
+   */
+  private transient LabelSet labelSet = null;
   private String reservedBy = null;
-  private Date reservedTimestamp = null;
+  /** @deprecated replaced by {@link #reservedAt}, read from older configurations only. */
+  @Deprecated private Date reservedTimestamp = null;
+  /** Lock or reservation time in milliseconds since epoch, 0 when free. */
+  private long reservedAt = 0;
   private String note = "";
 
   /**
@@ -94,9 +109,47 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
   private long queueItemId = NOT_QUEUED;
   private String queueItemProject = null;
   private transient Run<?, ?> build = null;
+  /**
+   * Set when {@link #buildExternalizableId} has been looked up after a restart and the build is
+   * gone, so {@link #getBuild()} does not look it up again on each queue pass.
+   */
+  private transient boolean buildMissing;
   // Needed to make the state non-transient
   private String buildExternalizableId = null;
   private long queuingStarted = 0;
+  /**
+   * Set when the resource is queued for a member of a matrix gang, see {@link
+   * #setQueuedForGang(long, String)}.
+   */
+  private boolean queuedForGang;
+
+  /**
+   * Builds holding this resource in shared mode (see {@link ResourceLockMode#SHARED}), by
+   * externalizable id. A resource is either locked by {@link #build} or shared by these builds,
+   * never both.
+   */
+  private List<String> sharedBy;
+
+  /**
+   * End of the lease of the current lock (milliseconds since epoch), 0 when no lease was given yet.
+   * Renewed while a holder is building, see {@link LockableResourcesManager#renewAndReclaimLeases}.
+   */
+  private long leaseExpiry = 0;
+
+  /**
+   * Longest time (in minutes) a build may hold this resource, 0 for the limit of its labels, see
+   * {@link LockableHoldLimit}.
+   */
+  private int maxHoldMinutes = 0;
+
+  /** What to do once {@link #maxHoldMinutes} is over. */
+  private String holdAction = HoldTimeAction.WARN.name();
+
+  /**
+   * Label expression of the agents this resource is attached to (a board wired to a machine, a
+   * device on a USB hub), null when it can be used from anywhere.
+   */
+  private String agentLabel;
 
   private static final long serialVersionUID = 1L;
 
@@ -107,7 +160,14 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
    *
    * @deprecated Replaced with LockableResourcesManager.queuedContexts (since 1.11)
    */
-  @Deprecated private List<StepContext> queuedContexts = new ArrayList<>();
+  @Deprecated private List<StepContext> queuedContexts;
+
+  /**
+   * Label atoms per set of labels, shared among the resources: with many (ephemeral) resources,
+   * few distinct sets of labels exist.
+   */
+  private static final Cache<List<String>, LabelSet> LABEL_SETS =
+    Caffeine.newBuilder().maximumSize(10_000).build();
 
   /** @deprecated Use single-argument constructor instead (since 1.8) */
   @Deprecated
@@ -130,13 +190,44 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
   }
 
   protected Object readResolve() {
-    if (queuedContexts == null) { // this field was added after the initial version if this class
-      queuedContexts = new ArrayList<>();
+    // empty lists and duplicated strings add up with many (ephemeral) resources
+    if (queuedContexts != null && queuedContexts.isEmpty()) {
+      queuedContexts = null;
+    }
+    if (sharedBy != null && sharedBy.isEmpty()) {
+      sharedBy = null;
+    }
+    if (reservedTimestamp != null) {
+      reservedAt = reservedTimestamp.getTime();
+      reservedTimestamp = null;
+    }
+    if (labelsAsList != null) {
+      labelsAsList = internLabels(labelsAsList);
+    }
+    description = description == null || description.isEmpty() ? "" : description;
+    note = note == null || note.isEmpty() ? "" : note;
+    for (HoldTimeAction action : HoldTimeAction.values()) {
+      if (action.name().equals(holdAction)) {
+        holdAction = action.name();
+      }
     }
     this.repairLabels();
     return this;
   }
 
+  /** Interned copy of *labels* without room to spare, null when empty. */
+  @CheckForNull
+  private static List<String> internLabels(List<String> labels) {
+    if (labels.isEmpty()) {
+      return null;
+    }
+    String[] interned = new String[labels.size()];
+    for (int i = 0; i < interned.length; i++) {
+      interned[i] = labels.get(i).intern();
+    }
+    return new ArrayList<>(Arrays.asList(interned));
+  }
+
   private void repairLabels() {
     if (this.labels == null) {
       return;
@@ -151,7 +242,7 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
   @Deprecated
   @ExcludeFromJacocoGeneratedReport
   public List<StepContext> getQueuedContexts() {
-    return this.queuedContexts;
+    return this.queuedContexts == null ? Collections.emptyList() : this.queuedContexts;
   }
 
   @Exported
@@ -184,6 +275,52 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
     this.ephemeral = ephemeral;
   }
 
+  @Exported
+  public int getMaxHoldMinutes() {
+    return maxHoldMinutes;
+  }
+
+  @DataBoundSetter
+  public void setMaxHoldMinutes(int maxHoldMinutes) {
+    this.maxHoldMinutes = Math.max(maxHoldMinutes, 0);
+  }
+
+  @Exported
+  public String getHoldAction() {
+    return holdAction == null ? HoldTimeAction.WARN.name() : holdAction;
+  }
+
+  @DataBoundSetter
+  public void setHoldAction(String holdAction) {
+    this.holdAction = HoldTimeAction.valueOf(holdAction.toUpperCase(Locale.ENGLISH)).name();
+  }
+
+  @Exported
+  @CheckForNull
+  public String getAgentLabel() {
+    return agentLabel;
+  }
+
+  @DataBoundSetter
+  public void setAgentLabel(String agentLabel) {
+    this.agentLabel = Util.fixEmptyAndTrim(agentLabel);
+  }
+
+  /** Agents this resource is attached to, null when it can be used from anywhere. */
+  @CheckForNull
+  public Label getAgent() {
+    return agentLabel == null ? null : Jenkins.get().getLabel(agentLabel);
+  }
+
+  /**
+   * Checks whether the resource can be used now together with one of its agents: true when it is
+   * not attached to agents or when one of them is online with an idle executor.
+   */
+  public boolean isAgentAvailable() {
+    Label agent = getAgent();
+    return agent == null || agent.getIdleExecutors() > 0;
+  }
+
   @Exported
   public boolean isEphemeral() {
     return ephemeral;
@@ -212,24 +349,39 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
   @DataBoundSetter
   public void setLabels(String labels) {
     // todo use label parser from Jenkins.Label to allow the same syntax
-    this.labelsAsList = new ArrayList<>();
+    List<String> found = new ArrayList<>();
     for(String label : labels.split("\\s+")) {
       if (label == null || label.isEmpty()) {
         continue;
       }
-      this.labelsAsList.add(label);
+      found.add(label);
     }
+    this.labelsAsList = internLabels(found);
   }
 
   /**
    * Get labels of this resource
-   * @return List of assigned labels.
+   * @return List of assigned labels, can be modified.
    */
-  @Exported
   public List<String> getLabelsAsList() {
+    if (this.labelsAsList == null) {
+      // allocated on demand, most ephemeral resources have no labels
+      this.labelsAsList = new ArrayList<>();
+    }
     return this.labelsAsList;
   }
 
+  /**
+   * Labels of this resource, read only. Unlike {@link #getLabelsAsList()} nothing gets allocated
+   * for a resource without labels, so the remote API reads these.
+   */
+  @Exported(name = "labelsAsList")
+  @Restricted(NoExternalUse.class)
+  @NonNull
+  public List<String> getLabelNames() {
+    return labelsAsList == null ? Collections.emptyList() : Collections.unmodifiableList(labelsAsList);
+  }
+
   /**
    * Checks if the resource has label *labelToFind*
    * @param labelToFind Label to find.
@@ -250,13 +402,35 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
       return true;
     }
 
-    final Label labelExpression = Label.parseExpression(candidate);
-    Set<LabelAtom> atomLabels = new HashSet<>();
-    for(String label : this.getLabelsAsList()) {
-      atomLabels.add(new LabelAtom(label));
+    return matches(Label.parseExpression(candidate));
+  }
+
+  /**
+   * Checks if the labels of this resource match the (already parsed) label expression.
+   * @param labelExpression Label expression, see {@link Label#parseExpression(String)}.
+   * @return {@code true} if the expression matches.
+   */
+  public boolean matches(@NonNull Label labelExpression) {
+    List<String> labels = this.labelsAsList == null ? Collections.emptyList() : this.labelsAsList;
+    if (labelSet == null || !labels.equals(labelSet.labels)) {
+      labelSet = LABEL_SETS.get(List.copyOf(labels), LabelSet::new);
     }
+    return labelExpression.matches(labelSet.atoms);
+  }
 
-    return labelExpression.matches(atomLabels);
+  /** Labels and their atoms, see {@link #LABEL_SETS}. */
+  private static final class LabelSet {
+    private final List<String> labels;
+    private final Set<LabelAtom> atoms;
+
+    LabelSet(List<String> labels) {
+      this.labels = labels;
+      Set<LabelAtom> found = new HashSet<>();
+      for (String label : labels) {
+        found.add(new LabelAtom(label));
+      }
+      this.atoms = Collections.unmodifiableSet(found);
+    }
   }
 
   //----------------------------------------------------------------------------
@@ -266,7 +440,7 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
    * @return {@code true} if resource contains label *candidate*
    */
   private boolean labelsContain(String candidate) {
-    return this.getLabelsAsList().contains(candidate);
+    return this.labelsAsList != null && this.labelsAsList.contains(candidate);
   }
 
   /**
@@ -285,7 +459,7 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
     Binding binding = new Binding(params);
     binding.setVariable("resourceName", name);
     binding.setVariable("resourceDescription", description);
-    binding.setVariable("resourceLabels", this.getLabelsAsList());
+    binding.setVariable("resourceLabels", this.getLabelNames());
     binding.setVariable("resourceNote", note);
     try {
       Object result =
@@ -310,12 +484,20 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
 
   @Exported
   public Date getReservedTimestamp() {
-    return reservedTimestamp == null ? null : new Date(reservedTimestamp.getTime());
+    return reservedAt == 0 ? null : new Date(reservedAt);
   }
 
   @DataBoundSetter
   public void setReservedTimestamp(final Date reservedTimestamp) {
-    this.reservedTimestamp = reservedTimestamp == null ? null : new Date(reservedTimestamp.getTime());
+    this.reservedAt = reservedTimestamp == null ? 0 : reservedTimestamp.getTime();
+  }
+
+  /**
+   * Lock or reservation time in milliseconds since epoch, 0 when free. Same as {@link
+   * #getReservedTimestamp()} without allocating a date.
+   */
+  public long getReservedAt() {
+    return reservedAt;
   }
 
   @Exported
@@ -379,11 +561,83 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
     queueItemId = NOT_QUEUED;
     queueItemProject = null;
     queuingStarted = 0;
+    queuedForGang = false;
   }
 
+  /** Returns {@code true} when the resource is locked by a build, exclusively or shared. */
   @Exported
   public boolean isLocked() {
-    return getBuild() != null;
+    return getBuild() != null || isLockedShared();
+  }
+
+  /** Returns {@code true} when the resource is held by one or more builds in shared mode. */
+  @Exported
+  public boolean isLockedShared() {
+    return sharedBy != null && !sharedBy.isEmpty();
+  }
+
+  /**
+   * Checks if this resource can be taken in the given mode. A shared lock is compatible with other
+   * shared locks only.
+   */
+  public boolean isFreeFor(boolean shared) {
+    if (isReserved()) {
+      return false;
+    }
+    return shared ? getBuild() == null : !isLocked();
+  }
+
+  /** Returns the externalizable ids of the builds holding this resource in shared mode. */
+  @Exported
+  public List<String> getSharedBy() {
+    return sharedBy == null ? Collections.emptyList() : Collections.unmodifiableList(sharedBy);
+  }
+
+  public boolean isSharedBy(@CheckForNull String buildExternalizableId) {
+    return buildExternalizableId != null
+      && sharedBy != null
+      && sharedBy.contains(buildExternalizableId);
+  }
+
+  /** Adds the build to the holders of the shared lock. */
+  public void addSharedBy(@NonNull Run<?, ?> lockedBy) {
+    String id = lockedBy.getExternalizableId();
+    if (sharedBy == null) {
+      sharedBy = new ArrayList<>(1);
+    }
+    if (!sharedBy.contains(id)) {
+      sharedBy.add(id);
+    }
+    if (reservedAt == 0) {
+      reservedAt = System.currentTimeMillis();
+    }
+  }
+
+  /**
+   * Removes the build from the holders of the shared lock.
+   *
+   * @return {@code true} if the build was holding the resource
+   */
+  public boolean removeSharedBy(@CheckForNull String buildExternalizableId) {
+    boolean removed = sharedBy != null && sharedBy.remove(buildExternalizableId);
+    if (removed && sharedBy.isEmpty()) {
+      sharedBy = null;
+      if (getBuild() == null) {
+        reservedAt = 0;
+        leaseExpiry = 0;
+      }
+    }
+    return removed;
+  }
+
+  /** Returns the end of the lease of the current lock, 0 if there is none. */
+  @Exported
+  public long getLeaseExpiry() {
+    return leaseExpiry;
+  }
+
+  public void setLeaseExpiry(long leaseExpiry) {
+    this.leaseExpiry = leaseExpiry;
   }
 
   /**
@@ -394,10 +648,14 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
   @CheckForNull
   public String getLockCause() {
     final DateFormat format = SimpleDateFormat.getDateTimeInstance(MEDIUM, SHORT);
-    final String timestamp = (reservedTimestamp == null ? "<unknown>" : format.format(reservedTimestamp));
+    final String timestamp = (reservedAt == 0 ? "<unknown>" : format.format(new Date(reservedAt)));
     if (isReserved()) {
       return String.format("[%s] is reserved by %s at %s", name, reservedBy, timestamp);
     }
+    if (isLockedShared()) {
+      return String.format(
+        "[%s] is shared by %s at %s", name, String.join(", ", sharedBy), timestamp);
+    }
     if (isLocked()) {
       return String.format("[%s] is locked by %s at %s", name, buildExternalizableId, timestamp);
     }
@@ -406,12 +664,37 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
 
   @WithBridgeMethods(value = AbstractBuild.class, adapterMethod = "getAbstractBuild")
   public Run<?, ?> getBuild() {
-    if (build == null && buildExternalizableId != null) {
+    if (build == null && buildExternalizableId != null && !buildMissing) {
       build = Run.fromExternalizableId(buildExternalizableId);
     }
     return build;
   }
 
+  /**
+   * Takes the build looked up by {@link LockRehydrator} for *id*, unless the resource has been
+   * locked or freed meanwhile.
+   *
+   * @param run the build, null when it is gone
+   */
+  void rehydrate(String id, @CheckForNull Run<?, ?> run) {
+    if (build != null || !id.equals(buildExternalizableId)) {
+      return;
+    }
+    build = run;
+    buildMissing = run == null;
+  }
+
+  /** Whether the build holding the resource exclusively has not been looked up yet. */
+  boolean isBuildUnresolved() {
+    return build == null && buildExternalizableId != null && !buildMissing;
+  }
+
+  /** Id of the build holding the resource exclusively, even when that build is gone. */
+  @CheckForNull
+  public String getBuildExternalizableId() {
+    return buildExternalizableId;
+  }
+
   @Exported
   public String getBuildName() {
     if (getBuild() != null) return getBuild().getFullDisplayName();
@@ -420,12 +703,15 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
 
   public void setBuild(Run<?, ?> lockedBy) {
     this.build = lockedBy;
+    this.buildMissing = false;
+    this.sharedBy = null;
+    this.leaseExpiry = 0;
     if (lockedBy != null) {
       this.buildExternalizableId = lockedBy.getExternalizableId();
-      setReservedTimestamp(new Date());
+      this.reservedAt = System.currentTimeMillis();
     } else {
       this.buildExternalizableId = null;
-      setReservedTimestamp(null);
+      this.reservedAt = 0;
     }
   }
 
@@ -449,6 +735,9 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
   }
 
   public void setQueued(long queueItemId) {
+    if (queueItemId != this.queueItemId) {
+      this.queuedForGang = false;
+    }
     this.queueItemId = queueItemId;
     this.queuingStarted = System.currentTimeMillis() / 1000;
   }
@@ -458,8 +747,22 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
     this.queueItemProject = queueProjectName;
   }
 
+  /**
+   * Queues the resource for a member of a matrix gang. The other members may start much later than
+   * this one, so the resource stays queued past the queuing timeout, until the item takes it or
+   * leaves the queue.
+   */
+  public void setQueuedForGang(long queueItemId, String queueProjectName) {
+    this.setQueued(queueItemId, queueProjectName);
+    this.queuedForGang = true;
+  }
+
+  public boolean isQueuedForGang() {
+    return queuedForGang && queueItemId != NOT_QUEUED;
+  }
+
   private void validateQueuingTimeout() {
-    if (queuingStarted > 0) {
+    if (queuingStarted > 0 && !queuedForGang) {
       long now = System.currentTimeMillis() / 1000;
       if (now - queuingStarted > QUEUE_TIMEOUT) unqueue();
     }
@@ -557,5 +860,13 @@ public class LockableResource extends AbstractDescribableImpl<LockableResource>
     public String getDisplayName() {
       return Messages.LockableResource_displayName();
     }
+
+    public ListBoxModel doFillHoldActionItems() {
+      ListBoxModel items = new ListBoxModel();
+      for (HoldTimeAction action : HoldTimeAction.values()) {
+        items.add(action.name());
+      }
+      return items;
+    }
   }
 }
@@ -26,4 +26,9 @@ public class LockableResources extends Plugin {
   public List<LockableResource> getResources() {
     return Collections.unmodifiableList(LockableResourcesManager.get().getResources());
   }
+
+  @Exported
+  public List<LockableCapacityResource> getCapacityResources() {
+    return Collections.unmodifiableList(LockableResourcesManager.get().getCapacityResources());
+  }
 }
@@ -10,37 +10,60 @@ package org.jenkins.plugins.lockableresources;
 
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.thoughtworks.xstream.converters.basic.AbstractSingleValueConverter;
 import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import edu.umd.cs.findbugs.annotations.Nullable;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import hudson.AbortException;
 import hudson.BulkChange;
 import hudson.Extension;
+import hudson.model.CauseOfInterruption;
+import hudson.model.Executor;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.Result;
 import hudson.model.Run;
 import hudson.model.TaskListener;
 import hudson.Util;
+import hudson.XmlFile;
+import hudson.util.XStream2;
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import jenkins.model.GlobalConfiguration;
 import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+import jenkins.util.Timer;
 import net.sf.json.JSONObject;
 import org.apache.commons.lang.StringUtils;
+import org.jenkins.plugins.lockableresources.metrics.LockEvents;
+import org.jenkins.plugins.lockableresources.metrics.LockMetrics;
+import org.jenkins.plugins.lockableresources.queue.GangMemberStruct;
 import org.jenkins.plugins.lockableresources.queue.LockableResourcesCandidatesStruct;
 import org.jenkins.plugins.lockableresources.queue.LockableResourcesStruct;
 import org.jenkins.plugins.lockableresources.queue.QueuedContextStruct;
+import org.jenkins.plugins.lockableresources.queue.WaitEstimate;
 import org.jenkinsci.plugins.scriptsecurity.sandbox.groovy.SecureGroovyScript;
 import org.jenkinsci.plugins.workflow.steps.StepContext;
 import org.kohsuke.accmod.Restricted;
@@ -53,18 +76,384 @@ public class LockableResourcesManager extends GlobalConfiguration {
 
   private List<LockableResource> resources;
   private transient Cache<Long,List<LockableResource>> cachedCandidates = CacheBuilder.newBuilder().expireAfterWrite(5, TimeUnit.MINUTES).build();
+  /**
+   * Builds holding resources in shared mode, by externalizable id, see {@link #getSharedHolder}.
+   * Weak: a finished build is looked up again, which is rare.
+   */
+  private transient Cache<String, Run<?, ?>> sharedHolders = CacheBuilder.newBuilder().weakValues().build();
 
   /**
    * Only used when this lockable resource is tried to be locked by {@link LockStep}, otherwise
    * (freestyle builds) regular Jenkins queue is used.
+   *
+   * <p>Persisted form of the queue only, read from the queue file (see {@link #saveQueue()}) or,
+   * when written by an older version, from the main file. Null once indexed: the queue itself
+   * lives in {@link #queueByPriority}, {@link #queueByStart} and {@link #queueIndex}.
    */
   private List<QueuedContextStruct> queuedContexts = new ArrayList<>();
 
+  /** Set when the queue changed since the queue file has been written. */
+  private transient boolean queueDirty;
+
+  /** Reads and writes the queue file, see {@link #getQueueFile()}. */
+  private static XStream2 queueXStream;
+
+  /** Queued contexts in queue order: highest aged priority first, then oldest first. */
+  private transient TreeSet<QueuedContextStruct> queueByPriority;
+  /** Queued contexts by priority, then build start time, newest first (inversePrecedence). */
+  private transient TreeSet<QueuedContextStruct> queueByStart;
+  /** Queued contexts with a deadline, the earliest first. */
+  private transient TreeSet<QueuedContextStruct> queueByDeadline;
+  /**
+   * Queued contexts waiting for a capacity resource or a shared lock, in queue order, see {@link
+   * #proceedCompatibleContexts()}.
+   */
+  private transient TreeSet<QueuedContextStruct> queueCompatible;
+  /** Queued contexts by their step context. */
+  private transient Map<StepContext, QueuedContextStruct> queueIndex;
+  /** Last given {@link QueuedContextStruct#getSequence()}. */
+  private transient long queueSequence;
+
+  /**
+   * Waiting time after which a waiter is handled as if it had one more priority level. 0 means
+   * strict priorities, without aging. Read once when the queue gets indexed, so the ordering of
+   * {@link #queueByPriority} stays stable.
+   */
+  private static final long PRIORITY_AGING_MINUTES =
+    SystemProperties.getLong(LockableResourcesManager.class.getName() + ".priorityAgingMinutes", 10L);
+
+  private transient long priorityAgingMillis;
+
+  /** Freestyle queue items waiting for resources, see {@link #isOutranked}. */
+  private transient Map<Long, WaitingItem> waitingItems;
+
+  /**
+   * Resources attached to agents queued for each freestyle queue item, so {@link
+   * #findAgentMismatch} does not scan all resources for each node.
+   */
+  private transient Map<Long, List<LockableResource>> agentBoundByItem;
+
+  /**
+   * Waiting time after which a queued context gets resources kept for it as they free up (head of
+   * line reservation). Other requests then only backfill with resources it does not need. Off by
+   * default (negative), only requests the pool can satisfy get resources kept for them.
+   */
+  @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "tests and script console")
+  @Restricted(NoExternalUse.class)
+  public static long BACKFILL_STARVATION_MINUTES =
+    SystemProperties.getLong(
+      LockableResourcesManager.class.getName() + ".backfillStarvationMinutes", -1L);
+
+  /**
+   * Duration of the lease of a lock. Leases of locks held by running builds are renewed, the
+   * others get reclaimed once expired, see {@link #renewAndReclaimLeases(int)}. 0 (the default)
+   * disables leases.
+   */
+  @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "tests and script console")
+  @Restricted(NoExternalUse.class)
+  public static long LEASE_SECONDS =
+    SystemProperties.getLong(LockableResourcesManager.class.getName() + ".leaseSeconds", 0L);
+
+  /**
+   * Minutes between the warning about a lock held longer than its maximum hold time and the abort
+   * or release, see {@link #enforceHoldLimits(long)}.
+   */
+  @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "tests and script console")
+  @Restricted(NoExternalUse.class)
+  public static long HOLD_GRACE_MINUTES =
+    SystemProperties.getLong(LockableResourcesManager.class.getName() + ".holdGraceMinutes", 5L);
+
+  /** Next resource and queue entry to look at, see {@link #auditLockState(int)}. */
+  private transient int auditResourceCursor;
+  private transient QueuedContextStruct auditQueueCursor;
+  /**
+   * Inconsistencies seen once, fixed when still there on the next visit. Avoids racing with builds
+   * which are about to release their locks.
+   */
+  private transient Map<String, Long> auditSuspects;
+  private transient Set<QueuedContextStruct> auditQueueSuspects;
+  /** Inconsistencies fixed since startup. */
+  private transient AuditCounts auditTotals;
+
+  /**
+   * What to do when nested lock steps wait for each other: {@code FAIL_YOUNGEST} fails the
+   * waiting step queued last, {@code LOG} only logs the cycle. See {@link #findDeadlock}.
+   */
+  @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "tests and script console")
+  @Restricted(NoExternalUse.class)
+  public static String DEADLOCK_POLICY =
+    SystemProperties.getString(
+      LockableResourcesManager.class.getName() + ".deadlockPolicy", "FAIL_YOUNGEST");
+
+  /** Lock step nodes holding each resource, see {@link #recordLockNode}. */
+  private transient Map<String, List<LockNode>> lockNodes;
+  /** Amount of deadlocks found since startup. */
+  private transient long deadlocksDetected;
+
+  /**
+   * Average hold time (in milliseconds) per resource and per label, recent locks weigh more. The
+   * base of the wait estimates, see {@link #recordHoldTime}. Not kept over restarts.
+   */
+  private transient Map<String, Long> holdTimeByResource;
+  private transient Map<String, Long> holdTimeByLabel;
+
+  /** Weight of the last hold time in {@link #holdTimeByResource}. */
+  private static final double HOLD_TIME_WEIGHT = 0.2;
+
+  /**
+   * Wait estimates of the queued contexts, updated when a context is queued, leaves the queue or a
+   * resource is released, see {@link #estimateQueued}.
+   */
+  private transient Map<QueuedContextStruct, QueuedEstimate> waitEstimates;
+  /** Time each resource is expected to be free once all queued contexts had it. */
+  private transient Map<String, Long> freeAfterQueue;
+  /** Amount of queued contexts which may take each resource. */
+  private transient Map<String, Integer> waitersByResource;
+  /**
+   * Set when a context is queued ahead of others, the estimates are computed again on next use, see
+   * {@link #refreshWaitEstimates()}.
+   */
+  private transient boolean waitEstimatesDirty;
+  private transient long waitEstimatesAt;
+  /** Bumped on each change of the estimates, see {@link #updateWaitEstimate}. */
+  private transient long waitEstimatesVersion;
+  /** Wait estimates of the freestyle queue items, read without the lock. */
+  private final transient Map<Long, ItemEstimate> itemEstimates = new ConcurrentHashMap<>();
+
+  /** Usage counters per resource name, for the {@link ResourceSelector}s. */
+  private Map<String, ResourceUsage> resourceUsage = new HashMap<>();
+  /** Last {@link ResourceUsage#getLockSequence()} given. */
+  private transient long lockSequence;
+
+  private static final ResourceUsage NOT_USED = new ResourceUsage();
+
+  /**
+   * Amount of jobs whose last locked resources are kept for {@link ResourceSelector.Affinity}, the
+   * least recently locking ones are forgotten first.
+   */
+  @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "tests and script console")
+  @Restricted(NoExternalUse.class)
+  public static int AFFINITY_JOBS =
+    SystemProperties.getInteger(LockableResourcesManager.class.getName() + ".affinityJobs", 1000);
+
+  /** Amount of resources kept per job for {@link ResourceSelector.Affinity}. */
+  private static final int AFFINITY_RESOURCES = 8;
+
+  /** Resources locked last per job full name, the most recent first. Access ordered. */
+  private transient LinkedHashMap<String, List<String>> lastLockedByJob;
+
+  /** Maximum hold times per label, see {@link LockableHoldLimit}. */
+  private List<LockableHoldLimit> holdLimits = new ArrayList<>();
+
+  /** Hold deadlines of locked resources, the earliest first. May contain outdated entries. */
+  private transient PriorityQueue<HoldDeadline> holdDeadlines;
+  /** Current hold deadline per resource name, tells the outdated entries apart. */
+  private transient Map<String, HoldDeadline> holdDeadlineByName;
+
+  /** Oldest starving context, see {@link #updateBackfill}. */
+  private transient QueuedContextStruct backfillHead;
+  /** Names of the free resources kept for {@link #backfillHead}. */
+  private transient Set<String> earmarked;
+  /** No context starves before this time, saves scanning the queue on each check. */
+  private transient long nextStarvationCheck;
+  /** Amount of heads which got resources kept for them. */
+  private transient long backfillReservations;
+  /** Amount of requests which got resources while a head was waiting for its reservation. */
+  private transient long backfilledRequests;
+
+  /** Counting-semaphore like resources, see {@link LockableCapacityResource}. */
+  private List<LockableCapacityResource> capacityResources = new ArrayList<>();
+
   @SuppressFBWarnings(value = "MC_OVERRIDABLE_METHOD_CALL_IN_CONSTRUCTOR",
                       justification = "Common Jenkins pattern to call method that can be overridden")
   public LockableResourcesManager() {
     resources = new ArrayList<>();
     load();
+    boolean queueInMainFile = !loadQueue();
+    indexQueue();
+    // written by an older version, moves to the queue file on the next save
+    queueDirty = queueInMainFile && !queueByPriority.isEmpty();
+  }
+
+  /** Builds the queue indexes from the persisted {@link #queuedContexts}. */
+  private synchronized void indexQueue() {
+    priorityAgingMillis = TimeUnit.MINUTES.toMillis(Math.max(PRIORITY_AGING_MINUTES, 0));
+    queueByPriority =
+      new TreeSet<>(
+        Comparator.comparingLong(
+            (QueuedContextStruct entry) -> agedKey(entry.getPriority(), entry.getQueuedAt()))
+          .thenComparingLong(QueuedContextStruct::getSequence));
+    queueByStart =
+      new TreeSet<>(
+        Comparator.comparingInt(QueuedContextStruct::getPriority)
+          .thenComparingLong(QueuedContextStruct::getBuildStartTime)
+          .reversed()
+          .thenComparingLong(QueuedContextStruct::getSequence));
+    queueByDeadline =
+      new TreeSet<>(
+        Comparator.comparingLong(QueuedContextStruct::getDeadline)
+          .thenComparingLong(QueuedContextStruct::getSequence));
+    queueCompatible = new TreeSet<>(queueByPriority.comparator());
+    queueIndex = new IdentityHashMap<>();
+    waitingItems = new HashMap<>();
+    agentBoundByItem = new HashMap<>();
+    auditQueueCursor = null;
+    lockNodes = new HashMap<>();
+    auditSuspects = new HashMap<>();
+    auditQueueSuspects = Collections.newSetFromMap(new IdentityHashMap<>());
+    auditTotals = new AuditCounts();
+    rebuildHoldDeadlines();
+    holdTimeByResource = new HashMap<>();
+    holdTimeByLabel = new HashMap<>();
+    if (resourceUsage == null) {
+      resourceUsage = new HashMap<>();
+    }
+    lockSequence = 0;
+    for (ResourceUsage usage : resourceUsage.values()) {
+      lockSequence = Math.max(lockSequence, usage.getLockSequence());
+    }
+    lastLockedByJob =
+      new LinkedHashMap<String, List<String>>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, List<String>> eldest) {
+          return size() > Math.max(AFFINITY_JOBS, 0);
+        }
+      };
+    waitEstimates = new IdentityHashMap<>();
+    freeAfterQueue = new HashMap<>();
+    waitersByResource = new HashMap<>();
+    waitEstimatesDirty = true;
+    backfillHead = null;
+    earmarked = new HashSet<>();
+    nextStarvationCheck = 0;
+    queueSequence = 0;
+    if (queuedContexts == null) {
+      queuedContexts = new ArrayList<>();
+    }
+    for (QueuedContextStruct entry : queuedContexts) {
+      queueSequence = Math.max(queueSequence, entry.getSequence());
+    }
+    for (QueuedContextStruct entry : queuedContexts) {
+      if (entry.getSequence() == 0) {
+        // queued by an older version, keep the list order
+        entry.setSequence(++queueSequence);
+      }
+      addToQueue(entry);
+      scheduleGracePeriodEnd(entry);
+      scheduleDeadline(entry);
+    }
+    // not written into the main file any more
+    queuedContexts = null;
+  }
+
+  private void addToQueue(QueuedContextStruct entry) {
+    queueDirty = true;
+    queueByPriority.add(entry);
+    queueByStart.add(entry);
+    queueIndex.put(entry.getContext(), entry);
+    if (entry.getDeadline() > 0) {
+      queueByDeadline.add(entry);
+    }
+    if (isCompatible(entry)) {
+      queueCompatible.add(entry);
+    }
+    if (!waitEstimatesDirty && queueByPriority.last() == entry) {
+      estimateQueued(entry, System.currentTimeMillis());
+      waitEstimatesVersion++;
+    } else {
+      // ahead of others, their estimates change
+      waitEstimatesDirty = true;
+    }
+  }
+
+  private boolean removeFromQueue(@CheckForNull QueuedContextStruct entry) {
+    if (entry == null || !queueByPriority.remove(entry)) {
+      return false;
+    }
+    unestimateQueued(entry);
+    queueDirty = true;
+    queueByStart.remove(entry);
+    queueIndex.remove(entry.getContext());
+    if (entry.getDeadline() > 0) {
+      queueByDeadline.remove(entry);
+    }
+    queueCompatible.remove(entry);
+    return true;
+  }
+
+  /** Whether *entry* waits for a capacity resource or a shared lock, see {@link #queueCompatible}. */
+  private static boolean isCompatible(QueuedContextStruct entry) {
+    for (LockableResourcesStruct rs : entry.getResources()) {
+      if (rs.capacityName != null || rs.shared) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Drops the queued contexts at their deadline, see {@link #expireWaiters()}. */
+  private void scheduleDeadline(QueuedContextStruct entry) {
+    if (entry.getDeadline() > 0) {
+      Timer.get()
+        .schedule(
+          this::expireWaiters,
+          Math.max(entry.getDeadline() - System.currentTimeMillis(), 0),
+          TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Drops all queued contexts whose deadline is over: the earliest deadlines are at the head of
+   * {@link #queueByDeadline}, each one leaves the queue in O(log n) and the queue is written once
+   * for all of them. The steps are failed or skipped afterwards, outside of the lock.
+   */
+  private void expireWaiters() {
+    List<QueuedContextStruct> expired = new ArrayList<>();
+    synchronized (this) {
+      long now = System.currentTimeMillis();
+      while (!queueByDeadline.isEmpty() && queueByDeadline.first().getDeadline() <= now) {
+        QueuedContextStruct entry = queueByDeadline.first();
+        removeFromQueue(entry);
+        expired.add(entry);
+      }
+      if (expired.isEmpty()) {
+        return;
+      }
+      if (dropBackfillHead()) {
+        proceedQueuedContexts(true);
+      }
+      saveQueue();
+    }
+    for (QueuedContextStruct entry : expired) {
+      LockStepExecution.timeout(
+        entry.getContext(), entry.getResourceDescription(), entry.isSkipOnTimeout());
+    }
+  }
+
+  /**
+   * Sort key of a waiter, lower goes first. Aging is done by moving the queue time of the waiter
+   * back by one aging period per priority level: two waiters keep their relative order while they
+   * wait, so the key never has to be updated, and a low priority waiter gets ahead of a high
+   * priority one once it waited long enough. Without aging the priority alone decides.
+   */
+  private long agedKey(int priority, long queuedAt) {
+    if (priorityAgingMillis <= 0) {
+      return -(long) priority;
+    }
+    return queuedAt - priority * priorityAgingMillis;
+  }
+
+  /** Aging period of {@link #agedKey}, 0 for strict priorities; recorded in lock traces. */
+  @Restricted(NoExternalUse.class)
+  public synchronized long getPriorityAgingMillis() {
+    return priorityAgingMillis;
+  }
+
+  /** Checks whether waiter *a* has to go before waiter *b* because of its priority. */
+  private boolean outranks(int priorityA, long queuedAtA, int priorityB, long queuedAtB) {
+    return priorityA > priorityB && agedKey(priorityA, queuedAtA) < agedKey(priorityB, queuedAtB);
   }
 
   public List<LockableResource> getResources() {
@@ -103,6 +492,9 @@ public class LockableResourcesManager extends GlobalConfiguration {
         locked.setLabels(r.getLabels());
         locked.setEphemeral(false);
         locked.setNote(r.getNote());
+        locked.setMaxHoldMinutes(r.getMaxHoldMinutes());
+        locked.setHoldAction(r.getHoldAction());
+        locked.setAgentLabel(r.getAgentLabel());
         mergedResources.add(locked);
         continue;
       }
@@ -115,10 +507,62 @@ public class LockableResourcesManager extends GlobalConfiguration {
       r.setLabels("");
       r.setNote("");
       r.setEphemeral(true);
+      r.setMaxHoldMinutes(0);
+      r.setAgentLabel(null);
       mergedResources.add(r);
     }
 
     this.resources = mergedResources;
+    rebuildHoldDeadlines();
+  }
+
+  public List<LockableCapacityResource> getCapacityResources() {
+    if (capacityResources == null) {
+      capacityResources = new ArrayList<>();
+    }
+    return capacityResources;
+  }
+
+  @DataBoundSetter
+  public synchronized void setCapacityResources(List<LockableCapacityResource> capacityResources) {
+    // Keep permits held by running builds.
+    Map<String, LockableCapacityResource> previous = new HashMap<>();
+    for (LockableCapacityResource c : getCapacityResources()) {
+      previous.put(c.getName(), c);
+    }
+    List<LockableCapacityResource> merged = new ArrayList<>();
+    Set<String> added = new HashSet<>();
+    for (LockableCapacityResource c : capacityResources) {
+      if (!added.add(c.getName())) {
+        continue;
+      }
+      c.copyUnconfigurableProperties(previous.get(c.getName()));
+      merged.add(c);
+    }
+    this.capacityResources = merged;
+  }
+
+  public List<LockableHoldLimit> getHoldLimits() {
+    if (holdLimits == null) {
+      holdLimits = new ArrayList<>();
+    }
+    return holdLimits;
+  }
+
+  @DataBoundSetter
+  public synchronized void setHoldLimits(List<LockableHoldLimit> holdLimits) {
+    this.holdLimits = new ArrayList<>(holdLimits);
+    rebuildHoldDeadlines();
+  }
+
+  @CheckForNull
+  public synchronized LockableCapacityResource capacityFromName(@CheckForNull String name) {
+    if (name != null) {
+      for (LockableCapacityResource c : getCapacityResources()) {
+        if (name.equals(c.getName())) return c;
+      }
+    }
+    return null;
   }
 
   public List<LockableResource> getResourcesFromProject(String fullName) {
@@ -136,7 +580,7 @@ public class LockableResourcesManager extends GlobalConfiguration {
     List<LockableResource> matching = new ArrayList<>();
     for (LockableResource r : resources) {
       Run<?, ?> rBuild = r.getBuild();
-      if (rBuild != null && rBuild == build) {
+      if ((rBuild != null && rBuild == build) || r.isSharedBy(build.getExternalizableId())) {
         matching.add(r);
       }
     }
@@ -167,7 +611,7 @@ public class LockableResourcesManager extends GlobalConfiguration {
   public Set<String> getAllLabels() {
     Set<String> labels = new HashSet<>();
     for (LockableResource r : this.resources) {
-      List<String> toAdd = r.getLabelsAsList();
+      List<String> toAdd = r.getLabelNames();
       if (toAdd.isEmpty()) {
         continue;
       }
@@ -194,8 +638,17 @@ public class LockableResourcesManager extends GlobalConfiguration {
     if (label == null || label.isEmpty()) {
       return found;
     }
+    // same as LockableResource.isValidLabel(), but the expression is parsed only once
+    Label expression = null;
     for (LockableResource r : this.resources) {
-      if (r.isValidLabel(label, params)) found.add(r);
+      if (r.hasLabel(label)) {
+        found.add(r);
+        continue;
+      }
+      if (expression == null) {
+        expression = Label.parseExpression(label);
+      }
+      if (r.matches(expression)) found.add(r);
     }
     return found;
   }
@@ -249,10 +702,13 @@ public class LockableResourcesManager extends GlobalConfiguration {
   public List<LockableResource> getResourcesMatchingScript(
     @NonNull SecureGroovyScript script, @CheckForNull Map<String, Object> params)
     throws ExecutionException {
+    LockEvents.ScriptMatch event = new LockEvents.ScriptMatch();
+    event.begin();
     List<LockableResource> found = new ArrayList<>();
     for (LockableResource r : this.resources) {
       if (r.scriptMatches(script, params)) found.add(r);
     }
+    event.end(this.resources.size(), found.size());
     return found;
   }
 
@@ -270,17 +726,184 @@ public class LockableResourcesManager extends GlobalConfiguration {
     long queueItemId,
     String queueProjectName
   ) {
+    updateBackfill(null, null);
     for (LockableResource r : resources) {
-      if (r.isReserved() || r.isQueued(queueItemId) || r.isLocked()) {
+      if (r.isReserved() || r.isQueued(queueItemId) || r.isLocked() || isEarmarked(r, null)) {
         return false;
       }
     }
     for (LockableResource r : resources) {
       r.setQueued(queueItemId, queueProjectName);
     }
+    indexAgentBound(queueItemId, resources);
+    countBackfill(null);
+    return true;
+  }
+
+  /**
+   * Candidates of a freestyle queue item: the resources of its label or script, else its resources.
+   * Label and script matches are cached per item.
+   */
+  private List<LockableResource> getCandidates(
+    LockableResourcesStruct requiredResources, long queueItemId, Map<String, Object> params)
+    throws ExecutionException {
+    final SecureGroovyScript systemGroovyScript = requiredResources.getResourceMatchScript();
+    List<LockableResource> candidates = requiredResources.required; // default candidates
+
+    if (systemGroovyScript != null
+      || (requiredResources.label != null && !requiredResources.label.isEmpty())) {
+      candidates = cachedCandidates.getIfPresent(queueItemId);
+      if (candidates != null) {
+        candidates.retainAll(resources);
+      } else {
+        candidates = (systemGroovyScript == null)
+          ? getResourcesWithLabel(requiredResources.label, params)
+          : getResourcesMatchingScript(systemGroovyScript, params);
+        cachedCandidates.put(queueItemId, candidates);
+      }
+    }
+    return candidates;
+  }
+
+  /**
+   * Queues the resources of all *members* of a gang (the configurations of a matrix build, see
+   * {@link RequiredResourcesProperty#isMatrixGang()}) or none of them. Each member then finds its
+   * resources in {@link #tryQueue}, like a freestyle item which got them in an earlier round.
+   *
+   * <p>Members take the full amount of resources they ask for (no elastic quantity) and do not
+   * take resources wanted by waiting items with a higher priority. The resources stay queued
+   * until the member takes them or leaves the queue, however long the other members wait for an
+   * executor, see {@link LockableResource#setQueuedForGang(long, String)}.
+   *
+   * @return false when one of the members can not get its resources now
+   */
+  public synchronized boolean queueGang(List<GangMemberStruct> members) throws ExecutionException {
+    updateBackfill(null, null);
+    Set<LockableResource> taken = new HashSet<>();
+    Map<GangMemberStruct, List<LockableResource>> selection = new IdentityHashMap<>();
+    for (GangMemberStruct member : members) {
+      LockableResourcesStruct requiredResources = member.resources;
+      List<LockableResource> candidates =
+        getCandidates(requiredResources, member.queueItemId, member.params);
+      if (isOutranked(
+        member.queueItemId, requiredResources.priority, member.inQueueSince, candidates)) {
+        return false;
+      }
+      boolean byLabel =
+        requiredResources.getResourceMatchScript() != null
+          || !StringUtils.isBlank(requiredResources.label);
+      int needed = !byLabel || member.number == 0 ? candidates.size() : member.number;
+      List<LockableResource> selected = new ArrayList<>();
+      for (LockableResource candidate : candidates) {
+        if (selected.size() >= needed) {
+          break;
+        }
+        if (!candidate.isReserved()
+          && !candidate.isLocked()
+          && !candidate.isQueued(member.queueItemId)
+          && !isEarmarked(candidate, null)
+          && candidate.isAgentAvailable()
+          && !taken.contains(candidate)) {
+          selected.add(candidate);
+        } else if (!byLabel) {
+          // named resources are all needed
+          return false;
+        }
+      }
+      if (selected.size() < needed) {
+        return false;
+      }
+      taken.addAll(selected);
+      selection.put(member, selected);
+    }
+    for (Map.Entry<GangMemberStruct, List<LockableResource>> entry : selection.entrySet()) {
+      for (LockableResource resource : entry.getValue()) {
+        resource.setQueuedForGang(entry.getKey().queueItemId, entry.getKey().queueItemProject);
+      }
+      indexAgentBound(entry.getKey().queueItemId, entry.getValue());
+    }
+    countBackfill(null);
     return true;
   }
 
+  /**
+   * Frees the resources queued for a gang member which has been cancelled, they do not time out.
+   */
+  @Restricted(NoExternalUse.class) // used by LockQueueListener
+  public synchronized void unqueueGangMember(long queueItemId) {
+    boolean freed = false;
+    for (LockableResource r : resources) {
+      if (r.isQueuedForGang() && r.isQueuedByTask(queueItemId)) {
+        r.unqueue();
+        freed = true;
+      }
+    }
+    if (freed) {
+      save();
+    }
+  }
+
+  /** Queued contexts whose build has not been looked up since the restart, in queue order. */
+  synchronized List<QueuedContextStruct> getUnresolvedContexts() {
+    List<QueuedContextStruct> unresolved = new ArrayList<>();
+    for (QueuedContextStruct entry : queueByPriority) {
+      if (entry.peekBuild() == null) {
+        unresolved.add(entry);
+      }
+    }
+    return unresolved;
+  }
+
+  /** Resources whose holder has not been looked up since the restart, by holder id. */
+  synchronized Map<String, List<LockableResource>> getUnresolvedHolders() {
+    Map<String, List<LockableResource>> unresolved = new LinkedHashMap<>();
+    for (LockableResource resource : resources) {
+      if (resource.isBuildUnresolved()) {
+        unresolved
+          .computeIfAbsent(resource.getBuildExternalizableId(), k -> new ArrayList<>())
+          .add(resource);
+      }
+    }
+    return unresolved;
+  }
+
+  /** Takes the build of a queued context looked up by {@link LockRehydrator}. */
+  synchronized void rehydrated(QueuedContextStruct entry, Run<?, ?> build) {
+    entry.setBuild(build);
+    QueuedEstimate queued = waitEstimates.get(entry);
+    if (queued != null) {
+      WaitEstimate estimate = queued.estimate;
+      queued.estimate =
+        new WaitEstimate(
+          estimate.getRequest(),
+          build.getFullDisplayName(),
+          estimate.getPosition(),
+          estimate.getEstimatedStart());
+    }
+  }
+
+  /**
+   * Takes the holder of *resources* looked up by {@link LockRehydrator}.
+   *
+   * @param build null when the build is gone
+   */
+  synchronized void rehydrated(
+    List<LockableResource> resources, String id, @CheckForNull Run<?, ?> build) {
+    for (LockableResource resource : resources) {
+      resource.rehydrate(id, build);
+    }
+  }
+
+  /** Checks whether resources have been queued for the freestyle queue item already. */
+  public synchronized boolean hasQueuedResources(long queueItemId) {
+    for (LockableResource r : resources) {
+      if (r.isQueuedByTask(queueItemId)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   /**
    * @deprecated USe {@link
    *     #tryQueue(org.jenkins.plugins.lockableresources.queue.LockableResourcesStruct, long,
@@ -374,6 +997,33 @@ public class LockableResourcesManager extends GlobalConfiguration {
     Map<String, Object> params,
     Logger log)
     throws ExecutionException {
+    return tryQueue(
+      requiredResources,
+      queueItemId,
+      queueItemProject,
+      number,
+      params,
+      System.currentTimeMillis(),
+      log);
+  }
+
+  /**
+   * Try to acquire the resources required by the task. The task does not take resources wanted by
+   * a waiter with a higher {@link LockableResourcesStruct#priority}.
+   *
+   * @param inQueueSince time the task entered the queue, used to age its priority
+   * @see #tryQueue(LockableResourcesStruct, long, String, int, Map, Logger)
+   */
+  @CheckForNull
+  public synchronized List<LockableResource> tryQueue(
+    LockableResourcesStruct requiredResources,
+    long queueItemId,
+    String queueItemProject,
+    int number,
+    Map<String, Object> params,
+    long inQueueSince,
+    Logger log)
+    throws ExecutionException {
     List<LockableResource> selected = new ArrayList<>();
 
     if (!checkCurrentResourcesStatus(selected, queueItemProject, queueItemId, log)) {
@@ -385,26 +1035,33 @@ public class LockableResourcesManager extends GlobalConfiguration {
       return null;
     }
 
-    final SecureGroovyScript systemGroovyScript = requiredResources.getResourceMatchScript();
-    boolean candidatesByScript = (systemGroovyScript != null);
-    List<LockableResource> candidates = requiredResources.required; // default candidates
-
-    if (candidatesByScript ||
-      (requiredResources.label != null && !requiredResources.label.isEmpty())) {
-      candidates = cachedCandidates.getIfPresent(queueItemId);
-      if (candidates != null) {
-        candidates.retainAll(resources);
-      } else {
-        candidates = (systemGroovyScript == null)
-          ? getResourcesWithLabel(requiredResources.label, params)
-          : getResourcesMatchingScript(systemGroovyScript, params);
-        cachedCandidates.put(queueItemId, candidates);
-      }
+    boolean candidatesByScript = requiredResources.getResourceMatchScript() != null;
+    List<LockableResource> candidates = getCandidates(requiredResources, queueItemId, params);
+    ResourceSelector selector = ResourceSelector.byName(requiredResources.resourceSelectStrategy);
+    if (selector != null) {
+      candidates = new ArrayList<>(candidates);
+      selector.order(candidates, queueItemProject, this);
     }
 
-    for (LockableResource rs : candidates) {
-      if (number != 0 && (selected.size() >= number)) break;
-      if (!rs.isReserved() && !rs.isLocked() && !rs.isQueued()) selected.add(rs);
+    boolean outranked =
+      isOutranked(queueItemId, requiredResources.priority, inQueueSince, candidates);
+    if (outranked) {
+      log.log(
+        Level.FINEST,
+        "{0} waits for items with a higher priority to proceed first.",
+        new Object[] {queueItemProject});
+    } else {
+      updateBackfill(null, null);
+      for (LockableResource rs : candidates) {
+        if (number != 0 && (selected.size() >= number)) break;
+        if (!rs.isReserved()
+          && !rs.isLocked()
+          && !rs.isQueued()
+          && !isEarmarked(rs, null)
+          && rs.isAgentAvailable()) {
+          selected.add(rs);
+        }
+      }
     }
 
     // if did not get wanted amount or did not get all
@@ -419,8 +1076,10 @@ public class LockableResourcesManager extends GlobalConfiguration {
     } else {
       required_amount = number == 0 ? candidates.size() : number;
     }
+    // elastic quantity, fewer resources are fine once the grace period is over
+    final int minimum_amount = requiredResources.getMinimumAmount(required_amount, inQueueSince);
 
-    if (selected.size() != required_amount) {
+    if (outranked || selected.size() < minimum_amount || selected.size() > required_amount) {
       log.log(
         Level.FINEST,
         "{0} found {1} resource(s) to queue." + "Waiting for correct amount: {2}.",
@@ -430,30 +1089,215 @@ public class LockableResourcesManager extends GlobalConfiguration {
         if (x.getQueueItemProject() != null && x.getQueueItemProject().equals(queueItemProject))
           x.unqueue();
       }
+      agentBoundByItem.remove(queueItemId);
       return null;
     }
 
     for (LockableResource rsc : selected) {
       rsc.setQueued(queueItemId, queueItemProject);
     }
+    indexAgentBound(queueItemId, selected);
+    countBackfill(null);
     return selected;
   }
 
-  // Adds already selected (in previous queue round) resources to 'selected'
-  // Return false if another item queued for this project -> bail out
-  private boolean checkCurrentResourcesStatus(
-    List<LockableResource> selected, String project, long taskId, Logger log) {
-    for (LockableResource r : resources) {
-      // This project might already have something in queue
-      String rProject = r.getQueueItemProject();
-      if (rProject != null && rProject.equals(project)) {
-        if (r.isQueuedByTask(taskId)) {
-          // this item has queued the resource earlier
-          selected.add(r);
-        } else {
-          // The project has another buildable item waiting -> bail out
-          log.log(
-            Level.FINEST,
+  /** Remembers the resources attached to agents among the ones queued for a freestyle item. */
+  private void indexAgentBound(long queueItemId, List<LockableResource> queued) {
+    List<LockableResource> agentBound = new ArrayList<>();
+    for (LockableResource resource : queued) {
+      if (resource.getAgentLabel() != null) {
+        agentBound.add(resource);
+      }
+    }
+    if (agentBound.isEmpty()) {
+      agentBoundByItem.remove(queueItemId);
+    } else {
+      agentBoundByItem.put(queueItemId, agentBound);
+    }
+  }
+
+  /**
+   * Checks whether a freestyle queue item has to leave the resources it asks for to a waiter with a
+   * higher priority, see {@link #isOutranked(long, int, long, List)}.
+   */
+  @Restricted(NoExternalUse.class) // used by LockableResourcesQueueTaskDispatcher
+  public synchronized boolean isOutranked(
+    LockableResourcesStruct requiredResources, long queueItemId, long inQueueSince) {
+    return isOutranked(
+      queueItemId, requiredResources.priority, inQueueSince, requiredResources.required);
+  }
+
+  /**
+   * Checks whether a freestyle queue item has to leave *candidates* to a waiter with a higher
+   * (aged) priority: a queued {@link LockStep} or another freestyle item wanting one of them. The
+   * item is remembered as waiting, so items with a lower priority leave the resources to it in turn.
+   */
+  private boolean isOutranked(
+    long queueItemId, int priority, long inQueueSince, List<LockableResource> candidates) {
+    Set<String> names = toNameSet(getResourcesNames(candidates));
+    if (names.isEmpty()) {
+      return false;
+    }
+    waitingItems.put(queueItemId, new WaitingItem(priority, inQueueSince, names));
+
+    for (QueuedContextStruct entry : this.queueByPriority) {
+      if (!outranks(entry.getPriority(), entry.getQueuedAt(), priority, inQueueSince)) {
+        continue;
+      }
+      for (LockableResourcesStruct rs : entry.getResources()) {
+        for (LockableResource candidate : candidates) {
+          if (matches(candidate, rs)) {
+            return true;
+          }
+        }
+      }
+    }
+
+    Queue queue = Jenkins.get().getQueue();
+    for (Iterator<Map.Entry<Long, WaitingItem>> it = waitingItems.entrySet().iterator();
+      it.hasNext(); ) {
+      Map.Entry<Long, WaitingItem> waiting = it.next();
+      WaitingItem other = waiting.getValue();
+      if (waiting.getKey() == queueItemId
+        || !outranks(other.priority, other.since, priority, inQueueSince)
+        || Collections.disjoint(other.resourceNames, names)) {
+        continue;
+      }
+      if (queue.getItem(waiting.getKey()) == null) {
+        // the item is gone, missed by LockQueueListener
+        it.remove();
+        continue;
+      }
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Re-checks the queue once an elastic quantity request stops waiting for its full quantity. No
+   * resource gets free at that time, so nothing else would check it.
+   */
+  private void scheduleGracePeriodEnd(QueuedContextStruct entry) {
+    long end = 0;
+    for (LockableResourcesStruct rs : entry.getResources()) {
+      if (rs.requiredMinNumber > 0 && rs.gracePeriod > 0) {
+        end = Math.max(end, rs.queuedAt + rs.gracePeriod);
+      }
+    }
+    if (end > 0) {
+      Timer.get()
+        .schedule(
+          this::recheckQueue,
+          Math.max(end - System.currentTimeMillis(), 0),
+          TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private synchronized void recheckQueue() {
+    if (!queueByPriority.isEmpty()) {
+      proceedQueuedContexts(true);
+      saveQueue();
+    }
+  }
+
+  /**
+   * Re-checks the queue when a context waits for the executors of the agents of its resources, see
+   * {@link LockableResourcesStruct#waitForAgent}. Executors getting idle do not free resources, so
+   * nothing else would check it.
+   */
+  @Restricted(NoExternalUse.class) // used by LockAgentWatcher
+  public synchronized void recheckAgentWaiters() {
+    for (QueuedContextStruct entry : queueByPriority) {
+      for (LockableResourcesStruct rs : entry.getResources()) {
+        if (rs.waitForAgent) {
+          recheckQueue();
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Finds a resource queued for the freestyle queue item which is attached to agents *node* is not
+   * one of, see {@link LockableResource#getAgentLabel()}.
+   */
+  @CheckForNull
+  public synchronized LockableResource findAgentMismatch(long queueItemId, Node node) {
+    List<LockableResource> agentBound = agentBoundByItem.get(queueItemId);
+    if (agentBound == null) {
+      return null;
+    }
+    for (LockableResource r : agentBound) {
+      Label agent = r.getAgent();
+      // still queued for the item, it may have been unqueued since
+      if (agent != null && r.isQueuedByTask(queueItemId) && !agent.matches(node)) {
+        return r;
+      }
+    }
+    return null;
+  }
+
+  /** Forgets a freestyle queue item which left the queue, see {@link #isOutranked}. */
+  @Restricted(NoExternalUse.class) // used by LockQueueListener
+  public synchronized void forgetWaitingItem(long queueItemId) {
+    if (waitingItems != null) {
+      waitingItems.remove(queueItemId);
+      agentBoundByItem.remove(queueItemId);
+    }
+    itemEstimates.remove(queueItemId);
+  }
+
+  /** A freestyle queue item waiting for resources, see {@link #isOutranked}. */
+  private static final class WaitingItem {
+    private final int priority;
+    private final long since;
+    private final Set<String> resourceNames;
+
+    WaitingItem(int priority, long since, Set<String> resourceNames) {
+      this.priority = priority;
+      this.since = since;
+      this.resourceNames = resourceNames;
+    }
+  }
+
+  /** Wait estimate of a queued context, see {@link #estimateQueued}. */
+  private static final class QueuedEstimate {
+    private WaitEstimate estimate;
+    /** Names of the resources the context may take. */
+    private final Set<String> waitedFor;
+
+    QueuedEstimate(WaitEstimate estimate, Set<String> waitedFor) {
+      this.estimate = estimate;
+      this.waitedFor = waitedFor;
+    }
+  }
+
+  /** Wait estimate of a freestyle queue item, see {@link #updateWaitEstimate}. */
+  private static final class ItemEstimate {
+    private final long version;
+    private final WaitEstimate estimate;
+
+    ItemEstimate(long version, WaitEstimate estimate) {
+      this.version = version;
+      this.estimate = estimate;
+    }
+  }
+
+  // Adds already selected (in previous queue round) resources to 'selected'
+  // Return false if another item queued for this project -> bail out
+  private boolean checkCurrentResourcesStatus(
+    List<LockableResource> selected, String project, long taskId, Logger log) {
+    for (LockableResource r : resources) {
+      // This project might already have something in queue
+      String rProject = r.getQueueItemProject();
+      if (rProject != null && rProject.equals(project)) {
+        if (r.isQueuedByTask(taskId)) {
+          // this item has queued the resource earlier
+          selected.add(r);
+        } else {
+          // The project has another buildable item waiting -> bail out
+          log.log(
+            Level.FINEST,
             "{0} has another build " + "that already queued resource {1}. Continue queueing.",
             new Object[] {project, r});
           return false;
@@ -476,10 +1320,28 @@ public class LockableResourcesManager extends GlobalConfiguration {
     @Nullable String logmessage,
     final String variable,
     boolean inversePrecedence) {
-    boolean needToWait = false;
+    return lock(
+      resources, null, build, context, logmessage, variable, inversePrecedence);
+  }
+
+  /**
+   * Try to lock the resources and the permits of capacity resources named in
+   * *requiredResources* and return true if locked.
+   */
+  public synchronized boolean lock(
+    List<LockableResource> resources,
+    @Nullable List<LockableResourcesStruct> requiredResources,
+    Run<?, ?> build,
+    @Nullable StepContext context,
+    @Nullable String logmessage,
+    final String variable,
+    boolean inversePrecedence) {
+    boolean needToWait = !hasFreeCapacity(requiredResources, -1, null);
 
     for (LockableResource r : resources) {
-      if (r.isReserved() || r.isLocked()) {
+      if (requiredResources == null
+        ? r.isReserved() || r.isLocked()
+        : !isFreeForRequest(r, requiredResources)) {
         needToWait = true;
         break;
       }
@@ -488,8 +1350,9 @@ public class LockableResourcesManager extends GlobalConfiguration {
     if (!needToWait) {
       for (LockableResource r : resources) {
         r.unqueue();
-        r.setBuild(build);
+        lockResource(r, build, requiredResources);
       }
+      Map<String, Integer> permits = acquireCapacity(requiredResources, build);
       if (context != null) {
         // since LockableResource contains transient variables, they cannot be correctly serialized
         // hence we use their unique resource names
@@ -497,7 +1360,8 @@ public class LockableResourcesManager extends GlobalConfiguration {
         for (LockableResource resource : resources) {
           resourceNames.add(resource.getName());
         }
-        LockStepExecution.proceed(resourceNames, context, logmessage, variable, inversePrecedence);
+        LockStepExecution.proceed(
+          resourceNames, permits, context, logmessage, variable, inversePrecedence);
       }
       save();
     }
@@ -505,6 +1369,322 @@ public class LockableResourcesManager extends GlobalConfiguration {
     return !needToWait;
   }
 
+  /**
+   * Locks *resource* for *build*, as one more shared holder when *requiredResources* asks for it
+   * in {@link ResourceLockMode#SHARED} mode only, exclusively otherwise.
+   */
+  private void lockResource(
+    LockableResource resource,
+    @NonNull Run<?, ?> build,
+    @Nullable List<LockableResourcesStruct> requiredResources) {
+    if (requiredResources == null || isRequiredExclusively(resource, requiredResources)) {
+      resource.setBuild(build);
+    } else {
+      if (resource.getBuild() != null) {
+        // handed over by the exclusive holder
+        resource.setBuild(null);
+      }
+      resource.addSharedBy(build);
+      sharedHolders.put(build.getExternalizableId(), build);
+    }
+    resourceUsage
+      .computeIfAbsent(resource.getName(), name -> new ResourceUsage())
+      .locked(System.currentTimeMillis(), ++lockSequence);
+    recordLastLocked(build.getParent().getFullName(), resource.getName());
+    trackHold(resource);
+    waitEstimatesVersion++;
+    // handed over, the lock steps of the previous holder are gone
+    pruneLockNodes(resource);
+  }
+
+  /** Puts *resourceName* first among the resources locked last by *jobName*. */
+  private void recordLastLocked(String jobName, String resourceName) {
+    List<String> names = lastLockedByJob.computeIfAbsent(jobName, name -> new ArrayList<>());
+    names.remove(resourceName);
+    names.add(0, resourceName);
+    if (names.size() > AFFINITY_RESOURCES) {
+      names.remove(names.size() - 1);
+    }
+  }
+
+  /**
+   * Checks whether *resource* has to be locked exclusively for *requiredResources*. A resource is
+   * locked in shared mode only when every requirement able to select it is a shared one.
+   */
+  private static boolean isRequiredExclusively(
+    LockableResource resource, List<LockableResourcesStruct> requiredResources) {
+    boolean anyShared = false;
+    for (LockableResourcesStruct rs : requiredResources) {
+      if (rs.shared) {
+        anyShared = true;
+        break;
+      }
+    }
+    if (!anyShared) {
+      return true;
+    }
+    for (LockableResourcesStruct rs : requiredResources) {
+      if (!rs.shared && rs.capacityName == null && matches(resource, rs)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean matches(LockableResource resource, LockableResourcesStruct requirement) {
+    if (StringUtils.isBlank(requirement.label)) {
+      return requirement.required.contains(resource);
+    }
+    return resource.isValidLabel(requirement.label, null);
+  }
+
+  /**
+   * Checks if *resource* can be locked right now for *requiredResources*, in the mode they ask
+   * for.
+   */
+  private boolean isFreeForRequest(
+    LockableResource resource, List<LockableResourcesStruct> requiredResources) {
+    if (isRequiredExclusively(resource, requiredResources)) {
+      return resource.isFreeFor(false);
+    }
+    return resource.isFreeFor(true) && !isWantedExclusively(resource);
+  }
+
+  /**
+   * Checks if a queued context waits for *resource* in exclusive mode. Such writers take
+   * precedence over new shared holders, otherwise a steady flow of shared locks would starve them.
+   */
+  private boolean isWantedExclusively(LockableResource resource) {
+    for (QueuedContextStruct entry : this.queueByPriority) {
+      for (LockableResourcesStruct rs : entry.getResources()) {
+        if (!rs.shared && rs.capacityName == null && matches(resource, rs)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Checks whether all capacity resources required by *requiredResources* have enough free
+   * permits.
+   *
+   * @param queueItemId freestyle queue item asking, its own promised permits count as free. Use
+   *     {@code -1} for pipelines.
+   * @param logger where to report missing permits, if any
+   */
+  private boolean hasFreeCapacity(
+    @Nullable List<LockableResourcesStruct> requiredResources,
+    long queueItemId,
+    @Nullable PrintStream logger) {
+    if (requiredResources == null) {
+      return true;
+    }
+    Map<String, Integer> wanted = new HashMap<>();
+    for (LockableResourcesStruct rs : requiredResources) {
+      if (rs.capacityName != null) {
+        wanted.merge(rs.capacityName, rs.capacityPermits, Integer::sum);
+      }
+    }
+    for (Map.Entry<String, Integer> entry : wanted.entrySet()) {
+      LockableCapacityResource capacity = capacityFromName(entry.getKey());
+      int free = capacity == null ? 0 : capacity.getFree(queueItemId);
+      if (free < entry.getValue()) {
+        if (logger != null) {
+          logger.println(
+            "Found "
+              + free
+              + " free permit(s) of capacity resource '"
+              + entry.getKey()
+              + "'. Waiting for correct amount: "
+              + entry.getValue()
+              + ".");
+        }
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Takes the capacity permits required by *requiredResources* for the given build. Availability
+   * must have been checked before.
+   *
+   * @return taken permits per capacity resource name
+   */
+  private Map<String, Integer> acquireCapacity(
+    @Nullable List<LockableResourcesStruct> requiredResources, @Nullable Run<?, ?> build) {
+    Map<String, Integer> permits = new HashMap<>();
+    if (requiredResources == null || build == null) {
+      return permits;
+    }
+    for (LockableResourcesStruct rs : requiredResources) {
+      if (rs.capacityName == null) {
+        continue;
+      }
+      LockableCapacityResource capacity = capacityFromName(rs.capacityName);
+      if (capacity != null) {
+        capacity.acquire(build.getExternalizableId(), rs.capacityPermits);
+        permits.merge(rs.capacityName, rs.capacityPermits, Integer::sum);
+      }
+    }
+    return permits;
+  }
+
+  /**
+   * Promises the capacity permits required by a freestyle queue item. The permits are taken by
+   * {@link #lockQueuedCapacity(LockableResourcesStruct, Run)} when the build starts.
+   *
+   * @return {@code false} when there are not enough free permits
+   */
+  public synchronized boolean queueCapacity(
+    LockableResourcesStruct requiredResources, long queueItemId) {
+    if (requiredResources.capacityName == null) {
+      return true;
+    }
+    if (!hasFreeCapacity(Collections.singletonList(requiredResources), queueItemId, null)) {
+      return false;
+    }
+    LockableCapacityResource capacity = capacityFromName(requiredResources.capacityName);
+    if (capacity != null) {
+      capacity.setQueued(queueItemId, requiredResources.capacityPermits);
+    }
+    return true;
+  }
+
+  /**
+   * Withdraws the capacity permits promised to the queue item by {@link
+   * #queueCapacity(LockableResourcesStruct, long)}, when the item has to wait for something else.
+   */
+  public synchronized void unqueueCapacity(
+    LockableResourcesStruct requiredResources, long queueItemId) {
+    LockableCapacityResource capacity = capacityFromName(requiredResources.capacityName);
+    if (capacity != null) {
+      capacity.unqueue(queueItemId);
+    }
+  }
+
+  /**
+   * Takes the capacity permits promised to the queue item of *build* by {@link
+   * #queueCapacity(LockableResourcesStruct, long)}.
+   *
+   * @return {@code true} if the permits are held by the build now
+   */
+  public synchronized boolean lockQueuedCapacity(
+    LockableResourcesStruct requiredResources, Run<?, ?> build) {
+    LockableCapacityResource capacity = capacityFromName(requiredResources.capacityName);
+    if (capacity == null) {
+      return false;
+    }
+    capacity.unqueue(build.getQueueId());
+    if (capacity.getFree() < requiredResources.capacityPermits) {
+      return false;
+    }
+    capacity.acquire(build.getExternalizableId(), requiredResources.capacityPermits);
+    save();
+    return true;
+  }
+
+  /**
+   * Releases capacity permits taken by a lock step and hands them to waiting contexts.
+   *
+   * @param permits released permits per capacity resource name
+   */
+  public synchronized void releaseCapacity(
+    @Nullable Map<String, Integer> permits, @Nullable Run<?, ?> build) {
+    if (permits == null || permits.isEmpty() || build == null) {
+      return;
+    }
+    for (Map.Entry<String, Integer> entry : permits.entrySet()) {
+      LockableCapacityResource capacity = capacityFromName(entry.getKey());
+      if (capacity != null) {
+        capacity.release(build.getExternalizableId(), entry.getValue());
+      }
+    }
+    proceedCompatibleContexts();
+    save();
+  }
+
+  /**
+   * Releases all capacity permits still held by *build*, e.g. when it completes.
+   *
+   * @return {@code true} if the build was holding some permits
+   */
+  public synchronized boolean releaseCapacity(@NonNull Run<?, ?> build) {
+    boolean released = false;
+    for (LockableCapacityResource capacity : getCapacityResources()) {
+      if (capacity.releaseAll(build.getExternalizableId()) > 0) {
+        released = true;
+      }
+    }
+    if (released) {
+      proceedCompatibleContexts();
+      save();
+    }
+    return released;
+  }
+
+  /**
+   * Starts all queued contexts which can run together once something was released, in queue order.
+   * The hand-over done by {@link #unlockNames(List, Run, boolean)} stops at the first context
+   * taking a freed resource. That is enough for exclusive locks, but freed capacity permits (they
+   * are not named) and shared locks can be given to several waiting contexts at once. So every
+   * context waiting for a capacity resource or a shared lock is re-evaluated here.
+   */
+  private void proceedCompatibleContexts() {
+    proceedQueuedContexts(false);
+  }
+
+  /**
+   * Proceeds queued contexts which can get their resources now.
+   *
+   * @param all false checks only the contexts waiting for a capacity resource or a shared lock (see
+   *     {@link #proceedCompatibleContexts()}), true checks every context, e.g. when resources kept
+   *     for a starving context get free for others
+   */
+  private void proceedQueuedContexts(boolean all) {
+    if (!all && queueCompatible.isEmpty()) {
+      return;
+    }
+    // copied, the contexts which get their resources leave the queue
+    for (QueuedContextStruct entry :
+      new ArrayList<>(all ? this.queueByPriority : this.queueCompatible)) {
+      if (queueIndex.get(entry.getContext()) != entry) {
+        // left the queue in the meantime
+        continue;
+      }
+
+      List<LockableResource> available =
+        checkResourcesAvailability(entry.getResources(), null, null);
+      if (available == null) {
+        continue;
+      }
+      Run<?, ?> run = entry.getBuild();
+      removeFromQueue(entry);
+      if (run == null) {
+        // same as in unlockAndHandOver(), the build is gone
+        continue;
+      }
+      if (!lock(
+        available,
+        entry.getResources(),
+        run,
+        entry.getContext(),
+        entry.getResourceDescription(),
+        entry.getVariableName(),
+        false)) {
+        // available for the queue, not for lock() (e.g. capacity permits): keeps waiting
+        LOGGER.log(
+          Level.FINE,
+          "Could not lock {0} for {1}, it keeps waiting",
+          new Object[] {available, entry.getResourceDescription()});
+        addToQueue(entry);
+        continue;
+      }
+      countBackfill(entry.getResources());
+    }
+  }
+
   private synchronized void freeResources(
     List<String> unlockResourceNames, @Nullable Run<?, ?> build) {
     for (String unlockResourceName : unlockResourceNames) {
@@ -515,6 +1695,7 @@ public class LockableResourcesManager extends GlobalConfiguration {
           && resource.getName() != null
           && resource.getName().equals(unlockResourceName)) {
           if (build == null
+            || !resource.isLocked()
             || (resource.getBuild() != null
             && build
             .getExternalizableId()
@@ -523,8 +1704,10 @@ public class LockableResourcesManager extends GlobalConfiguration {
             resource.unqueue();
             resource.setBuild(null);
             uncacheIfFreeing(resource, true, false);
+            lockNodes.remove(resource.getName());
             if (resource.isEphemeral()) {
               resourceIterator.remove();
+              resourceUsage.remove(resource.getName());
             }
           }
         }
@@ -553,8 +1736,22 @@ public class LockableResourcesManager extends GlobalConfiguration {
     this.unlockNames(resourceNamesToUnLock, build, inversePrecedence);
   }
 
-  @SuppressFBWarnings(value = "REC_CATCH_EXCEPTION", justification = "not sure which exceptions might be catch.")
   public synchronized void unlockNames(
+    @Nullable List<String> resourceNamesToUnLock,
+    @Nullable Run<?, ?> build,
+    boolean inversePrecedence) {
+    LockEvents.QueueEvaluation event = new LockEvents.QueueEvaluation();
+    event.begin();
+    try {
+      unlockAndHandOver(resourceNamesToUnLock, build, inversePrecedence);
+    } finally {
+      event.end(
+        resourceNamesToUnLock == null ? null : String.join(",", resourceNamesToUnLock),
+        queueByPriority.size());
+    }
+  }
+
+  private void unlockAndHandOver(
     @Nullable List<String> resourceNamesToUnLock,
     @Nullable Run<?, ?> build,
     boolean inversePrecedence) {
@@ -563,9 +1760,49 @@ public class LockableResourcesManager extends GlobalConfiguration {
       return;
     }
 
+    long now = System.currentTimeMillis();
+    for (String name : resourceNamesToUnLock) {
+      LockableResource resource = fromName(name);
+      if (resource != null
+        && (build == null || build.getExternalizableId().equals(resource.getBuildExternalizableId()))) {
+        recordHoldTime(resource, now);
+      }
+      if (!waitersByResource.containsKey(name)) {
+        // free from now on, no queued context expects it later
+        freeAfterQueue.remove(name);
+      }
+    }
+    waitEstimatesVersion++;
+
     // process as many contexts as possible
     List<String> remainingResourceNamesToUnLock = new ArrayList<>(resourceNamesToUnLock);
 
+    // shared locks are given back by their holders one by one, the resource is free only once the
+    // last holder is gone
+    boolean sharedReleased = false;
+    for (Iterator<String> it = remainingResourceNamesToUnLock.iterator(); it.hasNext(); ) {
+      LockableResource resource = fromName(it.next());
+      if (resource == null || !resource.isLockedShared()) {
+        continue;
+      }
+      if (build == null) {
+        // forced unlock, drop all holders
+        resource.setBuild(null);
+      } else if (resource.removeSharedBy(build.getExternalizableId())) {
+        sharedReleased = true;
+        if (resource.isLocked()) {
+          it.remove();
+        }
+      }
+      pruneLockNodes(resource);
+    }
+    if (remainingResourceNamesToUnLock.isEmpty()) {
+      if (sharedReleased) {
+        save();
+      }
+      return;
+    }
+
     QueuedContextStruct nextContext = null;
     while (!remainingResourceNamesToUnLock.isEmpty()) {
       // check if there are resources which can be unlocked (and shall not be unlocked)
@@ -575,6 +1812,7 @@ public class LockableResourcesManager extends GlobalConfiguration {
       // no context is queued which can be started once these resources are free'd.
       if (nextContext == null) {
         this.freeResources(remainingResourceNamesToUnLock, build);
+        proceedCompatibleContexts();
         save();
         return;
       }
@@ -595,7 +1833,7 @@ public class LockableResourcesManager extends GlobalConfiguration {
           break;
         }
         if (!remainingResourceNamesToUnLock.contains(requiredResource.getName())) {
-          if (requiredResource.isReserved() || requiredResource.isLocked()) {
+          if (!isFreeForRequest(requiredResource, nextContext.getResources())) {
             needToWait = true;
             break;
           }
@@ -604,29 +1842,25 @@ public class LockableResourcesManager extends GlobalConfiguration {
 
       if (!needToWait) {
         // remove context from queue and process it
-        unqueueContext(nextContext.getContext());
+        removeFromQueue(nextContext);
+
+        Run<?, ?> nextBuild = nextContext.getBuild();
+        if (nextBuild == null) {
+          // skip this context, the build waiting for the lock was deleted or hard killed
+          LOGGER.log(
+            Level.WARNING,
+            "Skipping queued context for lock. Cannot get the Run object of {0}, the build "
+              + "waiting for the lock was deleted or hard killed.",
+            nextContext.getBuildExternalizableId());
+          continue;
+        }
 
         List<String> resourceNamesToLock = new ArrayList<>();
 
         // lock all (old and new resources)
         for (LockableResource requiredResource : requiredResourceForNextContext) {
-          try {
-            requiredResource.setBuild(nextContext.getContext().get(Run.class));
-            resourceNamesToLock.add(requiredResource.getName());
-          } catch (Exception e) {
-            // skip this context, as the build cannot be retrieved (maybe it was deleted while
-            // running?)
-            LOGGER.log(
-              Level.WARNING,
-              "Skipping queued context for lock. Cannot get the Run object from the context to "
-                + "proceed with lock; this could be a legitimate state if the build waiting "
-                + "for the lock was deleted or hard killed. More information is logged at "
-                + "Level.FINE for debugging purposes.");
-            LOGGER.log(
-              Level.FINE, "Cannot get the Run object from the context to proceed with lock", e);
-            unlockNames(remainingResourceNamesToUnLock, build, inversePrecedence);
-            return;
-          }
+          lockResource(requiredResource, nextBuild, nextContext.getResources());
+          resourceNamesToLock.add(requiredResource.getName());
         }
 
         // determine old resources no longer needed
@@ -646,105 +1880,586 @@ public class LockableResourcesManager extends GlobalConfiguration {
           }
         }
 
-        // keep unused resources
-        remainingResourceNamesToUnLock.retainAll(freeResources);
+        // keep unused resources
+        remainingResourceNamesToUnLock.retainAll(freeResources);
+
+        Map<String, Integer> permits =
+          acquireCapacity(nextContext.getResources(), nextBuild);
+
+        // continue with next context
+        LockStepExecution.proceed(
+          resourceNamesToLock,
+          permits,
+          nextContext.getContext(),
+          nextContext.getResourceDescription(),
+          nextContext.getVariableName(),
+          inversePrecedence);
+      }
+    }
+    proceedQueuedContexts(dropBackfillHead());
+    save();
+  }
+
+  /** Returns names (IDs) of given *resources*.
+  */
+  @Restricted(NoExternalUse.class)
+  public static List<String> getResourcesNames(List<LockableResource> resources) {
+    List<String> resourceNames = new ArrayList<>();
+    if (resources != null) {
+      for (LockableResource resource : resources) {
+        resourceNames.add(resource.getName());
+      }
+    }
+    return resourceNames;
+  }
+
+  /** @see #getNextQueuedContext(List, List, boolean, QueuedContextStruct) */
+  @CheckForNull
+  private QueuedContextStruct getNextQueuedContext(
+    List<String> resourceNamesToUnLock,
+    boolean inversePrecedence,
+    QueuedContextStruct from
+  ) {
+    return this.getNextQueuedContext(resourceNamesToUnLock, null, inversePrecedence, from);
+  }
+
+  /**
+   * Returns the next queued context with all its requirements satisfied.
+   *
+   * @param resourceNamesToUnLock resource names locked at the moment but available if required (as
+   *     they are going to be unlocked soon)
+   * @param resourceNamesToUnReserve resource names reserved at the moment but available if required
+   *     (as they are going to be un-reserved soon)
+   * @param inversePrecedence false pick up context as they are in the queue or true to take the
+   *     most recent one (satisfying requirements)
+   * @return the context or null
+   */
+  @CheckForNull
+  private QueuedContextStruct getNextQueuedContext(
+    @Nullable List<String> resourceNamesToUnLock,
+    @Nullable List<String> resourceNamesToUnReserve,
+    boolean inversePrecedence,
+    QueuedContextStruct from
+  ) {
+    updateBackfill(resourceNamesToUnLock, resourceNamesToUnReserve);
+    // contexts before *from* were checked already, with at least the same resources to be freed
+    TreeSet<QueuedContextStruct> queue = inversePrecedence ? this.queueByStart : this.queueByPriority;
+    for (QueuedContextStruct entry : from != null ? queue.tailSet(from, false) : queue) {
+      if (checkResourcesAvailability(
+              entry.getResources(), null, resourceNamesToUnLock, resourceNamesToUnReserve)
+          != null) {
+        countBackfill(entry.getResources());
+        return entry;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Head of line reservation (EASY backfilling). The oldest context waiting for longer than the
+   * starvation bound becomes the head: resources it can use are kept for it as they free up, up
+   * to the amount it asks for. Other requests keep going with the remaining resources, so they
+   * backfill without delaying the head. There are no run time estimates for the holders, so a
+   * backfill never takes resources the head could use, which is the conservative form of EASY.
+   *
+   * @param resourceNamesToUnLock resources about to be unlocked, they can be kept for the head
+   * @param resourceNamesToUnReserve resources about to be un-reserved, same as above
+   */
+  private void updateBackfill(
+    @Nullable List<String> resourceNamesToUnLock,
+    @Nullable List<String> resourceNamesToUnReserve) {
+    if (BACKFILL_STARVATION_MINUTES < 0) {
+      backfillHead = null;
+      earmarked.clear();
+      return;
+    }
+    long starvationMillis = TimeUnit.MINUTES.toMillis(BACKFILL_STARVATION_MINUTES);
+    dropBackfillHead();
+    long now = System.currentTimeMillis();
+    Set<String> toUnlock = toNameSet(resourceNamesToUnLock);
+    Set<String> toUnreserve = toNameSet(resourceNamesToUnReserve);
+    if (backfillHead != null && !isFeasible(backfillHead, toUnreserve)) {
+      // e.g. a resource it needs got reserved by a user, keeping the others would stall them all
+      LOGGER.fine(
+        "No more keeping resources for " + backfillHead.getResourceDescription()
+          + ", the pool can not satisfy it");
+      backfillHead = null;
+      earmarked.clear();
+      nextStarvationCheck = 0;
+    }
+    if (backfillHead == null) {
+      if (now < nextStarvationCheck) {
+        return;
+      }
+      nextStarvationCheck = Long.MAX_VALUE;
+      for (QueuedContextStruct entry : this.queueByPriority) {
+        if (now - entry.getQueuedAt() < starvationMillis) {
+          nextStarvationCheck =
+            Math.min(nextStarvationCheck, entry.getQueuedAt() + starvationMillis);
+        } else if (!hasLockableRequirement(entry)) {
+          continue;
+        } else if (!isFeasible(entry, toUnreserve)) {
+          // may become feasible once reservations are gone, look again later
+          nextStarvationCheck =
+            Math.min(nextStarvationCheck, now + TimeUnit.MINUTES.toMillis(1));
+        } else {
+          backfillHead = entry;
+          backfillReservations++;
+          LOGGER.fine(
+            "Keeping free resources for " + entry.getResourceDescription() + ", waiting too long");
+          break;
+        }
+      }
+      if (backfillHead == null) {
+        return;
+      }
+    }
+
+    Set<String> kept = new HashSet<>();
+    for (LockableResourcesStruct rs : backfillHead.getResources()) {
+      List<LockableResource> candidates;
+      int needed = 0;
+      if (StringUtils.isBlank(rs.label)) {
+        candidates = rs.required;
+      } else {
+        candidates = getResourcesWithLabel(rs.label, null);
+        if (rs.requiredNumber != null) {
+          try {
+            needed = Integer.parseInt(rs.requiredNumber);
+          } catch (NumberFormatException e) {
+            needed = 0;
+          }
+        }
+      }
+      if (needed <= 0) {
+        needed = candidates.size();
+      }
+      // resources kept already first, the reservation should not move around
+      int count = 0;
+      for (LockableResource candidate : candidates) {
+        if (count < needed
+          && earmarked.contains(candidate.getName())
+          && isFreeOrFreed(candidate, toUnlock, toUnreserve)) {
+          kept.add(candidate.getName());
+          count++;
+        }
+      }
+      for (LockableResource candidate : candidates) {
+        if (count < needed
+          && !kept.contains(candidate.getName())
+          && isFreeOrFreed(candidate, toUnlock, toUnreserve)) {
+          kept.add(candidate.getName());
+          count++;
+        }
+      }
+    }
+    earmarked = kept;
+  }
+
+  /**
+   * Forgets the head once it got its resources or left the queue.
+   *
+   * @return true when resources were kept for it, they are free for the others now
+   */
+  private boolean dropBackfillHead() {
+    if (backfillHead == null || queueIndex.get(backfillHead.getContext()) == backfillHead) {
+      return false;
+    }
+    backfillHead = null;
+    boolean kept = !earmarked.isEmpty();
+    earmarked.clear();
+    nextStarvationCheck = 0;
+    return kept;
+  }
+
+  /**
+   * Checks whether the pool can satisfy all requirements of *entry* once the current holders are
+   * done. Resources reserved by users do not count, nobody knows when they come back.
+   *
+   * @param toUnreserve resources about to be un-reserved, they count
+   */
+  private boolean isFeasible(QueuedContextStruct entry, @CheckForNull Set<String> toUnreserve) {
+    for (LockableResourcesStruct rs : entry.getResources()) {
+      if (StringUtils.isBlank(rs.label)) {
+        for (LockableResource resource : rs.required) {
+          if (isUserReserved(resource, toUnreserve)) {
+            return false;
+          }
+        }
+        continue;
+      }
+      List<LockableResource> candidates = getResourcesWithLabel(rs.label, null);
+      int usable = 0;
+      for (LockableResource candidate : candidates) {
+        if (!isUserReserved(candidate, toUnreserve)) {
+          usable++;
+        }
+      }
+      int needed = candidates.size();
+      if (rs.requiredNumber != null) {
+        try {
+          needed = Integer.parseInt(rs.requiredNumber);
+        } catch (NumberFormatException e) {
+          // all of them
+        }
+      }
+      if (needed <= 0) {
+        needed = candidates.size();
+      }
+      if (rs.requiredMinNumber > 0) {
+        needed = Math.min(needed, rs.requiredMinNumber);
+      }
+      if (usable < needed) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean isUserReserved(
+    LockableResource resource, @CheckForNull Set<String> toUnreserve) {
+    return resource.isReserved()
+      && (toUnreserve == null || !toUnreserve.contains(resource.getName()));
+  }
+
+  private static boolean hasLockableRequirement(QueuedContextStruct entry) {
+    for (LockableResourcesStruct rs : entry.getResources()) {
+      if (!rs.required.isEmpty() || StringUtils.isNotBlank(rs.label)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean isFreeOrFreed(
+    LockableResource resource, @CheckForNull Set<String> toUnlock, @CheckForNull Set<String> toUnreserve) {
+    String name = resource.getName();
+    return (!resource.isLocked() || (toUnlock != null && toUnlock.contains(name)))
+      && (!resource.isReserved() || (toUnreserve != null && toUnreserve.contains(name)))
+      && !resource.isQueued();
+  }
+
+  /** Checks if *resource* is kept for the head, and so not available for *requiredResources*. */
+  private boolean isEarmarked(
+    LockableResource resource, @CheckForNull List<LockableResourcesStruct> requiredResources) {
+    return !earmarked.isEmpty()
+      && (backfillHead == null || backfillHead.getResources() != requiredResources)
+      && earmarked.contains(resource.getName());
+  }
+
+  /** Counts a request served while the head waits for its reservation. */
+  private void countBackfill(@CheckForNull List<LockableResourcesStruct> requiredResources) {
+    if (backfillHead != null && backfillHead.getResources() != requiredResources) {
+      backfilledRequests++;
+    }
+  }
+
+  /** Amount of starving contexts which got free resources kept for them, since startup. */
+  public synchronized long getBackfillReservations() {
+    return backfillReservations;
+  }
+
+  /**
+   * Amount of requests which got resources while a starving context waited for its reservation,
+   * since startup. These requests did not take any resource the starving context could use.
+   */
+  public synchronized long getBackfilledRequests() {
+    return backfilledRequests;
+  }
+
+  /** Names of the free resources kept for the oldest starving context. */
+  public synchronized List<String> getEarmarkedResources() {
+    List<String> names = new ArrayList<>(earmarked);
+    Collections.sort(names);
+    return names;
+  }
+
+  /** Returns current queue */
+  @Restricted(NoExternalUse.class) // used by jelly
+  public synchronized List<QueuedContextStruct> getCurrentQueuedContext() {
+    return Collections.unmodifiableList(new ArrayList<>(this.queueByPriority));
+  }
+
+  /** Usage counters of the resource, never null. */
+  @NonNull
+  public synchronized ResourceUsage getResourceUsage(String resourceName) {
+    ResourceUsage usage = resourceUsage.get(resourceName);
+    return usage != null ? usage : NOT_USED;
+  }
+
+  /**
+   * Names of the resources the job locked last, the most recent first, see {@link
+   * ResourceSelector.Affinity}. Not persisted, forgotten on restart.
+   *
+   * @param jobName full name of the job
+   */
+  @NonNull
+  public synchronized List<String> getLastLocked(@CheckForNull String jobName) {
+    List<String> names = jobName == null ? null : lastLockedByJob.get(jobName);
+    return names == null ? Collections.emptyList() : new ArrayList<>(names);
+  }
+
+  /** Position and expected start of a queued context. */
+  @NonNull
+  public synchronized WaitEstimate getWaitEstimate(QueuedContextStruct entry) {
+    refreshWaitEstimates();
+    QueuedEstimate queued = waitEstimates.get(entry);
+    if (queued == null) {
+      // not queued (any more)
+      Run<?, ?> build = entry.getBuild();
+      return new WaitEstimate(
+        entry.getResourceDescription(), build != null ? build.getFullDisplayName() : null, 0, 0);
+    }
+    return queued.estimate;
+  }
+
+  /** Wait estimates of all queued contexts, in queue order. */
+  public synchronized List<WaitEstimate> getWaitEstimates() {
+    refreshWaitEstimates();
+    List<WaitEstimate> estimates = new ArrayList<>(queueByPriority.size());
+    for (QueuedContextStruct entry : queueByPriority) {
+      estimates.add(waitEstimates.get(entry).estimate);
+    }
+    return estimates;
+  }
+
+  /**
+   * Position and expected start of a request which is not queued as lock step (freestyle queue
+   * items), behind all queued contexts.
+   */
+  @NonNull
+  public synchronized WaitEstimate estimateWait(LockableResourcesStruct requirement) {
+    refreshWaitEstimates();
+    return estimate(
+      requirement.toString(),
+      null,
+      Collections.singletonList(requirement),
+      System.currentTimeMillis(),
+      null);
+  }
+
+  /**
+   * Estimates the wait of freestyle queue item *queueItemId* again when the estimates changed
+   * since the last time, for {@link #peekWaitEstimate(long)}.
+   */
+  @Restricted(NoExternalUse.class) // used by LockableResourcesQueueTaskDispatcher
+  public synchronized void updateWaitEstimate(
+    long queueItemId, LockableResourcesStruct requirement) {
+    refreshWaitEstimates();
+    ItemEstimate cached = itemEstimates.get(queueItemId);
+    if (cached != null && cached.version == waitEstimatesVersion) {
+      return;
+    }
+    itemEstimates.put(
+      queueItemId, new ItemEstimate(waitEstimatesVersion, estimateWait(requirement)));
+  }
+
+  /**
+   * Last wait estimate of freestyle queue item *queueItemId*, see {@link #updateWaitEstimate}. Does
+   * not wait for the other threads using the manager, for the queue page.
+   */
+  @CheckForNull
+  public WaitEstimate peekWaitEstimate(long queueItemId) {
+    ItemEstimate cached = itemEstimates.get(queueItemId);
+    return cached == null ? null : cached.estimate;
+  }
+
+  /**
+   * Adds the hold time of *resource*, locked exclusively until *now*, to the averages of the
+   * resource and its labels.
+   */
+  private void recordHoldTime(LockableResource resource, long now) {
+    long since = resource.getReservedAt();
+    if (since == 0 || resource.getBuild() == null) {
+      // free, reserved or shared: no lock to measure
+      return;
+    }
+    long held = Math.max(now - since, 0);
+    resourceUsage.computeIfAbsent(resource.getName(), name -> new ResourceUsage()).released(held);
+    holdTimeByResource.merge(resource.getName(), held, LockableResourcesManager::weigh);
+    for (String label : resource.getLabelNames()) {
+      holdTimeByLabel.merge(label, held, LockableResourcesManager::weigh);
+    }
+  }
+
+  private static Long weigh(Long average, Long held) {
+    return Math.round(average + HOLD_TIME_WEIGHT * (held - average));
+  }
 
-        // continue with next context
-        LockStepExecution.proceed(
-          resourceNamesToLock,
-          nextContext.getContext(),
-          nextContext.getResourceDescription(),
-          nextContext.getVariableName(),
-          inversePrecedence);
+  /** Expected hold time of *resource*, -1 when no lock on it or its labels was seen yet. */
+  private long expectedHoldTime(LockableResource resource) {
+    Long held = holdTimeByResource.get(resource.getName());
+    if (held != null) {
+      return held;
+    }
+    long sum = 0;
+    int count = 0;
+    for (String label : resource.getLabelNames()) {
+      Long labelHeld = holdTimeByLabel.get(label);
+      if (labelHeld != null) {
+        sum += labelHeld;
+        count++;
       }
     }
-    save();
+    return count == 0 ? -1 : sum / count;
   }
 
-  /** Returns names (IDs) of given *resources*.
-  */
-  @Restricted(NoExternalUse.class)
-  public static List<String> getResourcesNames(List<LockableResource> resources) {
-    List<String> resourceNames = new ArrayList<>();
-    if (resources != null) {
-      for (LockableResource resource : resources) {
-        resourceNames.add(resource.getName());
-      }
+  /** Time *resource* is expected to be free, {@link Long#MAX_VALUE} when unknown. */
+  private long expectedFreeTime(LockableResource resource, long now) {
+    Long afterQueue = freeAfterQueue.get(resource.getName());
+    if (afterQueue != null) {
+      return afterQueue;
     }
-    return resourceNames;
+    if (resource.isReserved()) {
+      // until someone un-reserves it
+      return Long.MAX_VALUE;
+    }
+    if (!resource.isLocked()) {
+      return now;
+    }
+    long since = resource.getReservedAt();
+    long held = expectedHoldTime(resource);
+    if (since == 0 || held < 0) {
+      return Long.MAX_VALUE;
+    }
+    return Math.max(since + held, now);
   }
 
-  /** @see #getNextQueuedContext(List, List, boolean, QueuedContextStruct) */
-  @CheckForNull
-  private QueuedContextStruct getNextQueuedContext(
-    List<String> resourceNamesToUnLock,
-    boolean inversePrecedence,
-    QueuedContextStruct from
-  ) {
-    return this.getNextQueuedContext(resourceNamesToUnLock, null, inversePrecedence, from);
+  /**
+   * Computes the wait estimates of all queued contexts again, when a context was queued ahead of
+   * others or the estimates are older than a minute (changes of the resources themselves, like
+   * reservations, show up then). The queue is walked in order once; each context takes the
+   * resources expected to be free first, which are then expected to be free again one hold time
+   * later.
+   */
+  private void refreshWaitEstimates() {
+    long now = System.currentTimeMillis();
+    if (!waitEstimatesDirty && now - waitEstimatesAt < TimeUnit.MINUTES.toMillis(1)) {
+      return;
+    }
+    waitEstimatesDirty = false;
+    waitEstimatesAt = now;
+    waitEstimatesVersion++;
+    waitEstimates.clear();
+    freeAfterQueue.clear();
+    waitersByResource.clear();
+    for (QueuedContextStruct entry : queueByPriority) {
+      estimateQueued(entry, now);
+    }
+  }
+
+  /** Estimates *entry*, behind the contexts already estimated, and counts it as waiting. */
+  private void estimateQueued(QueuedContextStruct entry, long now) {
+    // not looked up yet after a restart: no name until LockRehydrator got it
+    Run<?, ?> build = entry.peekBuild();
+    Set<String> waitedFor = new HashSet<>();
+    WaitEstimate estimate =
+      estimate(
+        entry.getResourceDescription(),
+        build != null ? build.getFullDisplayName() : null,
+        entry.getResources(),
+        now,
+        waitedFor);
+    waitEstimates.put(entry, new QueuedEstimate(estimate, waitedFor));
   }
 
   /**
-   * Returns the next queued context with all its requirements satisfied.
+   * Forgets the estimate of *entry*, which left the queue: the contexts behind it waiting for the
+   * same resources move up one position. Their start stays, the resources taken by *entry* are
+   * expected to be held as long as estimated.
+   */
+  private void unestimateQueued(QueuedContextStruct entry) {
+    QueuedEstimate removed = waitEstimates.remove(entry);
+    if (removed == null || waitEstimatesDirty) {
+      return;
+    }
+    for (String name : removed.waitedFor) {
+      waitersByResource.computeIfPresent(name, (k, waiters) -> waiters > 1 ? waiters - 1 : null);
+    }
+    for (QueuedContextStruct later : queueByPriority.tailSet(entry, false)) {
+      QueuedEstimate queued = waitEstimates.get(later);
+      if (queued == null || Collections.disjoint(queued.waitedFor, removed.waitedFor)) {
+        continue;
+      }
+      WaitEstimate estimate = queued.estimate;
+      queued.estimate =
+        new WaitEstimate(
+          estimate.getRequest(),
+          estimate.getBuild(),
+          Math.max(estimate.getPosition() - 1, 1),
+          estimate.getEstimatedStart());
+    }
+    waitEstimatesVersion++;
+  }
+
+  /**
+   * Estimates the position and start of a request behind the contexts already estimated, see
+   * {@link #estimateQueued}.
    *
-   * @param resourceNamesToUnLock resource names locked at the moment but available if required (as
-   *     they are going to be unlocked soon)
-   * @param resourceNamesToUnReserve resource names reserved at the moment but available if required
-   *     (as they are going to be un-reserved soon)
-   * @param inversePrecedence false pick up context as they are in the queue or true to take the
-   *     most recent one (satisfying requirements)
-   * @return the context or null
+   * @param waitedFor when not null, the request is counted as waiting and taking its resources for
+   *     the requests after it, and the names of the resources it waits for are added
    */
-  @CheckForNull
-  private QueuedContextStruct getNextQueuedContext(
-    @Nullable List<String> resourceNamesToUnLock,
-    @Nullable List<String> resourceNamesToUnReserve,
-    boolean inversePrecedence,
-    QueuedContextStruct from
-  ) {
-    QueuedContextStruct newestEntry = null;
-    int fromIndex = from != null ? this.queuedContexts.indexOf(from) + 1 : 0;
-    if (!inversePrecedence) {
-      for (int i = fromIndex; i < this.queuedContexts.size(); i++) {
-        QueuedContextStruct entry = this.queuedContexts.get(i);
-        if (checkResourcesAvailability(
-                entry.getResources(), null, resourceNamesToUnLock, resourceNamesToUnReserve)
-            != null) {
-          return entry;
+  private WaitEstimate estimate(
+    String request,
+    @CheckForNull String build,
+    List<LockableResourcesStruct> requirements,
+    long now,
+    @CheckForNull Set<String> waitedFor) {
+    int position = 1;
+    long start = now;
+    List<LockableResource> candidatesWaitedFor = new ArrayList<>();
+    List<LockableResource> taken = new ArrayList<>();
+    for (LockableResourcesStruct rs : requirements) {
+      List<LockableResource> candidates = new ArrayList<>();
+      int needed = 0;
+      if (StringUtils.isBlank(rs.label)) {
+        for (LockableResource required : rs.required) {
+          LockableResource resource = fromName(required.getName());
+          if (resource != null) {
+            candidates.add(resource);
+          }
         }
-      }
-    } else {
-      long newest = 0;
-      List<QueuedContextStruct> orphan = new ArrayList<>();
-      for (int i = fromIndex; i < this.queuedContexts.size(); i++) {
-        QueuedContextStruct entry = this.queuedContexts.get(i);
-        if (checkResourcesAvailability(
-                entry.getResources(), null, resourceNamesToUnLock, resourceNamesToUnReserve)
-            != null) {
+      } else {
+        candidates.addAll(getResourcesWithLabel(rs.label, null));
+        if (rs.requiredNumber != null) {
           try {
-            Run<?, ?> run = entry.getContext().get(Run.class);
-            if (run != null && run.getStartTimeInMillis() > newest) {
-              newest = run.getStartTimeInMillis();
-              newestEntry = entry;
-            }
-          } catch (IOException | InterruptedException e) {
-            // skip this one, for some reason there is no Run object for this context
-            orphan.add(entry);
+            needed = Integer.parseInt(rs.requiredNumber);
+          } catch (NumberFormatException e) {
+            needed = 0;
           }
         }
       }
-      if (!orphan.isEmpty()) {
-        this.queuedContexts.removeAll(orphan);
+      if (candidates.isEmpty()) {
+        // capacity permits or resources matched by a script, no hold times for them
+        start = Long.MAX_VALUE;
+        continue;
+      }
+      if (needed <= 0 || needed > candidates.size()) {
+        needed = candidates.size();
       }
+      Map<String, Long> freeTimes = new HashMap<>();
+      for (LockableResource candidate : candidates) {
+        position = Math.max(position, waitersByResource.getOrDefault(candidate.getName(), 0) + 1);
+        freeTimes.put(candidate.getName(), expectedFreeTime(candidate, now));
+      }
+      candidates.sort(Comparator.comparingLong(candidate -> freeTimes.get(candidate.getName())));
+      start = Math.max(start, freeTimes.get(candidates.get(needed - 1).getName()));
+      candidatesWaitedFor.addAll(candidates);
+      taken.addAll(candidates.subList(0, needed));
     }
-
-    return newestEntry;
-  }
-
-  /** Returns current queue */
-  @Restricted(NoExternalUse.class) // used by jelly
-  public List<QueuedContextStruct> getCurrentQueuedContext() {
-    return Collections.unmodifiableList(this.queuedContexts);
+    if (waitedFor != null) {
+      for (LockableResource resource : candidatesWaitedFor) {
+        waitersByResource.merge(resource.getName(), 1, Integer::sum);
+        waitedFor.add(resource.getName());
+      }
+      for (LockableResource resource : taken) {
+        long held = expectedHoldTime(resource);
+        freeAfterQueue.put(
+          resource.getName(),
+          start == Long.MAX_VALUE || held < 0 ? Long.MAX_VALUE : start + held);
+      }
+    }
+    return new WaitEstimate(request, build, position, start == Long.MAX_VALUE ? 0 : start);
   }
 
   /** Creates the resource if it does not exist. */
@@ -844,7 +2559,6 @@ public class LockableResourcesManager extends GlobalConfiguration {
     save();
   }
 
-  @SuppressFBWarnings(value = "REC_CATCH_EXCEPTION", justification = "not sure which exceptions might be catch.")
   public synchronized void unreserve(List<LockableResource> resources) {
     // make sure there is a list of resources to unreserve
     if (resources == null || resources.isEmpty()) {
@@ -886,7 +2600,7 @@ public class LockableResourcesManager extends GlobalConfiguration {
       checkResourcesAvailability(
         nextContext.getResources(), nextContextLogger,
         null, resourceNamesToUnreserve);
-    this.queuedContexts.remove(nextContext);
+    removeFromQueue(nextContext);
 
     // resourceNamesToUnreserve contains the names of the previous resources.
     // requiredResourceForNextContext contains the resource objects which are required for the next
@@ -896,7 +2610,7 @@ public class LockableResourcesManager extends GlobalConfiguration {
     boolean needToWait = false;
     for (LockableResource requiredResource : requiredResourceForNextContext) {
       if (!resourceNamesToUnreserve.contains(requiredResource.getName())) {
-        if (requiredResource.isReserved() || requiredResource.isLocked()) {
+        if (!isFreeForRequest(requiredResource, nextContext.getResources())) {
           needToWait = true;
           break;
         }
@@ -908,35 +2622,37 @@ public class LockableResourcesManager extends GlobalConfiguration {
       return;
     } else {
       unreserveResources(resources);
+      Run<?, ?> nextBuild = nextContext.getBuild();
+      if (nextBuild == null) {
+        // skip this context, the build waiting for the lock was deleted or hard killed
+        LOGGER.log(
+          Level.WARNING,
+          "Skipping queued context for lock. Cannot get the Run object of {0}, the build "
+            + "waiting for the lock was deleted or hard killed.",
+          nextContext.getBuildExternalizableId());
+        proceedQueuedContexts(true);
+        save();
+        return;
+      }
       List<String> resourceNamesToLock = new ArrayList<>();
 
       // lock all (old and new resources)
       for (LockableResource requiredResource : requiredResourceForNextContext) {
-        try {
-          requiredResource.setBuild(nextContext.getContext().get(Run.class));
-          resourceNamesToLock.add(requiredResource.getName());
-        } catch (Exception e) {
-          // skip this context, as the build cannot be retrieved (maybe it was deleted while
-          // running?)
-          LOGGER.log(
-            Level.WARNING,
-            "Skipping queued context for lock. Cannot get the Run object from the context to "
-              + "proceed with lock; this could be a legitimate state if the build waiting for "
-              + "the lock was deleted or hard killed. More information is logged at "
-              + "Level.FINE for debugging purposes.");
-          LOGGER.log(
-            Level.FINE, "Cannot get the Run object from the context to proceed with lock", e);
-          return;
-        }
+        lockResource(requiredResource, nextBuild, nextContext.getResources());
+        resourceNamesToLock.add(requiredResource.getName());
       }
 
+      Map<String, Integer> permits = acquireCapacity(nextContext.getResources(), nextBuild);
+
       // continue with next context
       LockStepExecution.proceed(
         resourceNamesToLock,
+        permits,
         nextContext.getContext(),
         nextContext.getResourceDescription(),
         nextContext.getVariableName(),
         false);
+      proceedQueuedContexts(dropBackfillHead());
     }
     save();
   }
@@ -969,6 +2685,305 @@ public class LockableResourcesManager extends GlobalConfiguration {
     this.unreserve(resources);
   }
 
+  /**
+   * Renews the leases of locks held by running builds and reclaims the expired ones. A lock held by
+   * builds which are not running any more (controller crash, hard-killed build, lost callback ...)
+   * is not renewed, so it is given back to the queue once its lease is over, as a normal unlock
+   * would do.
+   *
+   * @param batchSize maximal amount of resources to reclaim, the others wait for the next call
+   * @return the amount of reclaimed resources
+   */
+  @Restricted(NoExternalUse.class) // used by LockLeaseReaper
+  public synchronized int renewAndReclaimLeases(int batchSize) {
+    if (LEASE_SECONDS <= 0) {
+      return 0;
+    }
+    long now = System.currentTimeMillis();
+    long lease = TimeUnit.SECONDS.toMillis(LEASE_SECONDS);
+    long renewed = now + lease;
+    List<String> expired = new ArrayList<>();
+    boolean updated = false;
+    for (LockableResource resource : this.resources) {
+      if (resource.isBuildUnresolved()
+        || (resource.getBuildExternalizableId() == null && !resource.isLockedShared())) {
+        // free, or the holder is still to be looked up after a restart, see LockRehydrator
+        continue;
+      }
+      if (pruneSharedHolders(resource)) {
+        updated = true;
+      }
+      if (isHeldByRunningBuild(resource)) {
+        // renewed at half of the lease only, the configuration file is written each time
+        if (resource.getLeaseExpiry() - now < lease / 2) {
+          resource.setLeaseExpiry(renewed);
+          updated = true;
+        }
+      } else if (resource.getLeaseExpiry() == 0) {
+        // locked before leases were enabled, or by an older version
+        resource.setLeaseExpiry(renewed);
+        updated = true;
+      } else if (resource.getLeaseExpiry() <= now && expired.size() < batchSize) {
+        expired.add(resource.getName());
+      }
+    }
+    if (!expired.isEmpty()) {
+      LOGGER.warning("Reclaiming lockable resources with an expired lease: " + expired);
+      // forced unlock (no build), hands the resources to the queue
+      unlockNames(expired, null, false);
+    } else if (updated) {
+      save();
+    }
+    return expired.size();
+  }
+
+  /** Checks whether a holder of the locked *resource* is still running. */
+  private boolean isHeldByRunningBuild(LockableResource resource) {
+    Run<?, ?> build = resource.getBuild();
+    if (build != null) {
+      return build.isBuilding();
+    }
+    for (String holder : resource.getSharedBy()) {
+      Run<?, ?> sharedBy = getSharedHolder(holder);
+      if (sharedBy != null && sharedBy.isBuilding()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Drops the shared holders of *resource* which are not running any more, a finished build can
+   * not hold a lock. The last one is kept, its lease decides about it.
+   *
+   * @return true when a holder was dropped
+   */
+  private boolean pruneSharedHolders(LockableResource resource) {
+    boolean pruned = false;
+    for (String holder : new ArrayList<>(resource.getSharedBy())) {
+      Run<?, ?> sharedBy = getSharedHolder(holder);
+      if ((sharedBy == null || !sharedBy.isBuilding()) && resource.getSharedBy().size() > 1) {
+        resource.removeSharedBy(holder);
+        pruned = true;
+      }
+    }
+    return pruned;
+  }
+
+  /** Build holding a resource in shared mode, looked up once while it is in memory. */
+  @CheckForNull
+  private Run<?, ?> getSharedHolder(String externalizableId) {
+    Run<?, ?> holder = sharedHolders.getIfPresent(externalizableId);
+    if (holder == null) {
+      holder = Run.fromExternalizableId(externalizableId);
+      if (holder != null) {
+        sharedHolders.put(externalizableId, holder);
+      }
+    }
+    return holder;
+  }
+
+  /**
+   * Looks at the next *sliceSize* resources and queued contexts for leaked state:
+   *
+   * <ul>
+   *   <li>locks held by builds which completed or have been deleted,
+   *   <li>queued contexts whose build cannot be resolved any more or is not running,
+   *   <li>freestyle queue reservations of queue items which are gone or cancelled.
+   * </ul>
+   *
+   * Each one is fixed on the next visit if still there: locks are released through {@link
+   * #unlockNames(List, Run, boolean)} so waiting builds get them, queue entries are dropped.
+   *
+   * @return the inconsistencies fixed by this call
+   */
+  public AuditCounts auditLockState(int sliceSize) {
+    AuditCounts fixed = new AuditCounts();
+    List<QueuedContextStruct> slice = new ArrayList<>();
+    synchronized (this) {
+      List<String> leaked = new ArrayList<>();
+      boolean updated = false;
+      int size = this.resources.size();
+      for (int i = 0; i < Math.min(sliceSize, size); i++) {
+        auditResourceCursor = (auditResourceCursor + 1) % size;
+        LockableResource resource = this.resources.get(auditResourceCursor);
+        String leakKey = "lock:" + resource.getName();
+        String reservationKey = "queued:" + resource.getName();
+        if (hasLeakedLock(resource)) {
+          long since = resource.getReservedAt();
+          if (Long.valueOf(since).equals(auditSuspects.put(leakKey, since))) {
+            auditSuspects.remove(leakKey);
+            // also when the build has been deleted: waiting contexts get the resource, ephemeral
+            // resources go away
+            leaked.add(resource.getName());
+            fixed.leakedLocks++;
+          }
+        } else {
+          auditSuspects.remove(leakKey);
+        }
+        if (hasStaleReservation(resource)) {
+          long queueItemId = resource.getQueueItemId();
+          if (Long.valueOf(queueItemId).equals(auditSuspects.put(reservationKey, queueItemId))) {
+            auditSuspects.remove(reservationKey);
+            resource.unqueue();
+            updated = true;
+            fixed.staleReservations++;
+          }
+        } else {
+          auditSuspects.remove(reservationKey);
+        }
+      }
+      if (!leaked.isEmpty()) {
+        LOGGER.warning("Releasing lockable resources held by builds which are not running: " + leaked);
+        // forced unlock (no build), hands the resources to the queue
+        unlockNames(leaked, null, false);
+      } else if (updated) {
+        save();
+      }
+
+      // walk the queue from the last visited entry on, each step is O(log n)
+      auditQueueSuspects.removeIf(entry -> !queueIndex.containsKey(entry.getContext()));
+      for (int i = 0; i < Math.min(sliceSize, queueByPriority.size()); i++) {
+        QueuedContextStruct next =
+          auditQueueCursor == null ? null : queueByPriority.higher(auditQueueCursor);
+        auditQueueCursor = next != null ? next : queueByPriority.first();
+        slice.add(auditQueueCursor);
+      }
+    }
+
+    // resolving the build of a context may wait for the pipeline to load, not under the lock
+    List<QueuedContextStruct> stale = new ArrayList<>();
+    for (QueuedContextStruct entry : slice) {
+      if (isStale(entry)) {
+        stale.add(entry);
+      }
+    }
+    List<QueuedContextStruct> removed = new ArrayList<>();
+    synchronized (this) {
+      auditQueueSuspects.removeIf(entry -> slice.contains(entry) && !stale.contains(entry));
+      for (QueuedContextStruct entry : stale) {
+        if (auditQueueSuspects.add(entry)) {
+          continue;
+        }
+        auditQueueSuspects.remove(entry);
+        if (removeFromQueue(entry)) {
+          removed.add(entry);
+          fixed.staleQueuedContexts++;
+        }
+      }
+      if (!removed.isEmpty()) {
+        if (dropBackfillHead()) {
+          proceedQueuedContexts(true);
+        }
+        saveQueue();
+      }
+      auditTotals.add(fixed);
+    }
+    for (QueuedContextStruct entry : removed) {
+      try {
+        entry
+          .getContext()
+          .onFailure(
+            new AbortException(
+              "Removed from the lockable resources queue, the build is not running any more"));
+      } catch (RuntimeException e) {
+        LOGGER.log(Level.FINE, "Cannot end stale queued context " + entry, e);
+      }
+    }
+    return fixed;
+  }
+
+  /** Inconsistencies fixed by {@link #auditLockState(int)} since startup. */
+  public synchronized AuditCounts getAuditTotals() {
+    return auditTotals.copy();
+  }
+
+  private boolean hasLeakedLock(LockableResource resource) {
+    if (resource.isBuildUnresolved()) {
+      // not looked up yet after a restart, LockRehydrator does it outside of the lock
+      return false;
+    }
+    if (resource.getBuildExternalizableId() != null) {
+      Run<?, ?> build = resource.getBuild();
+      return build == null || !build.isBuilding();
+    }
+    if (!resource.isLockedShared()) {
+      return false;
+    }
+    for (String holder : resource.getSharedBy()) {
+      Run<?, ?> sharedBy = getSharedHolder(holder);
+      if (sharedBy != null && sharedBy.isBuilding()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean hasStaleReservation(LockableResource resource) {
+    if (!resource.isQueued()) {
+      return false;
+    }
+    Queue.Item item = Queue.getInstance().getItem(resource.getQueueItemId());
+    return item == null || (item instanceof Queue.LeftItem && ((Queue.LeftItem) item).isCancelled());
+  }
+
+  private static boolean isStale(QueuedContextStruct entry) {
+    try {
+      Run<?, ?> build = entry.getContext().get(Run.class);
+      return build == null || !build.isBuilding();
+    } catch (IOException | InterruptedException | RuntimeException e) {
+      return true;
+    }
+  }
+
+  /** Amounts of inconsistencies fixed by {@link #auditLockState(int)}. */
+  public static final class AuditCounts {
+    private int leakedLocks;
+    private int staleQueuedContexts;
+    private int staleReservations;
+
+    /** Locks held by builds which completed or have been deleted. */
+    public int getLeakedLocks() {
+      return leakedLocks;
+    }
+
+    /** Queued contexts of builds which are not running any more. */
+    public int getStaleQueuedContexts() {
+      return staleQueuedContexts;
+    }
+
+    /** Freestyle queue reservations of items which left the queue without starting. */
+    public int getStaleReservations() {
+      return staleReservations;
+    }
+
+    public boolean isEmpty() {
+      return leakedLocks == 0 && staleQueuedContexts == 0 && staleReservations == 0;
+    }
+
+    private void add(AuditCounts other) {
+      leakedLocks += other.leakedLocks;
+      staleQueuedContexts += other.staleQueuedContexts;
+      staleReservations += other.staleReservations;
+    }
+
+    private AuditCounts copy() {
+      AuditCounts copy = new AuditCounts();
+      copy.add(this);
+      return copy;
+    }
+
+    @Override
+    public String toString() {
+      return leakedLocks
+        + " leaked lock(s), "
+        + staleQueuedContexts
+        + " stale queued context(s), "
+        + staleReservations
+        + " stale queue reservation(s)";
+    }
+  }
+
   @Override
   public boolean configure(StaplerRequest req, JSONObject json) {
     final List<LockableResource> oldDeclaredResources = new ArrayList<>(getDeclaredResources());
@@ -976,6 +2991,13 @@ public class LockableResourcesManager extends GlobalConfiguration {
     try (BulkChange bc = new BulkChange(this)) {
       // reset resources to default which are not currently locked
       this.resources.removeIf(resource -> !resource.isLocked());
+      // an empty repeatable is not submitted, make sure the last capacity resource can be removed
+      if (!json.has("capacityResources")) {
+        setCapacityResources(new ArrayList<>());
+      }
+      if (!json.has("holdLimits")) {
+        setHoldLimits(new ArrayList<>());
+      }
       req.bindJSON(this, json);
       bc.commit();
     } catch (IOException exception) {
@@ -984,65 +3006,269 @@ public class LockableResourcesManager extends GlobalConfiguration {
       return false;
     }
 
-    // Copy unconfigurable properties from old instances
-    boolean updated = false;
-    for (LockableResource oldDeclaredResource : oldDeclaredResources) {
-      final LockableResource updatedResource = fromName(oldDeclaredResource.getName());
-      if (updatedResource != null) {
-        updatedResource.copyUnconfigurableProperties(oldDeclaredResource);
-        updated = true;
+    // Copy unconfigurable properties from old instances
+    boolean updated = false;
+    for (LockableResource oldDeclaredResource : oldDeclaredResources) {
+      final LockableResource updatedResource = fromName(oldDeclaredResource.getName());
+      if (updatedResource != null) {
+        updatedResource.copyUnconfigurableProperties(oldDeclaredResource);
+        updated = true;
+      }
+    }
+    if (updated) {
+      save();
+    }
+
+    return true;
+  }
+
+  /**
+   * Computes the hold deadline of the current lock of *resource*: its own maximum hold time, or
+   * the shortest one of its labels.
+   */
+  @CheckForNull
+  private HoldDeadline holdDeadline(LockableResource resource) {
+    long since = resource.getReservedAt();
+    // not isLocked(), that would look up the holder of each resource while loading
+    if ((resource.getBuildExternalizableId() == null && !resource.isLockedShared()) || since == 0) {
+      return null;
+    }
+    int minutes = resource.getMaxHoldMinutes();
+    HoldTimeAction action = HoldTimeAction.valueOf(resource.getHoldAction());
+    if (minutes <= 0) {
+      for (LockableHoldLimit limit : getHoldLimits()) {
+        if (limit.getMaxHoldMinutes() > 0
+          && (minutes <= 0 || limit.getMaxHoldMinutes() < minutes)
+          && resource.hasLabel(limit.getLabel())) {
+          minutes = limit.getMaxHoldMinutes();
+          action = limit.getHoldTimeAction();
+        }
+      }
+    }
+    if (minutes <= 0) {
+      return null;
+    }
+    long deadline = since + TimeUnit.MINUTES.toMillis(minutes);
+    return new HoldDeadline(resource.getName(), since, minutes, action, deadline, false);
+  }
+
+  /** Adds the hold deadline of a newly locked resource, once per lock (not per shared holder). */
+  private void trackHold(LockableResource resource) {
+    HoldDeadline deadline = holdDeadline(resource);
+    if (deadline == null) {
+      return;
+    }
+    HoldDeadline current = holdDeadlineByName.get(deadline.name);
+    if (current != null && current.since == deadline.since) {
+      return;
+    }
+    holdDeadlineByName.put(deadline.name, deadline);
+    holdDeadlines.add(deadline);
+  }
+
+  /** Recomputes all hold deadlines, after loading and after configuration changes. */
+  private synchronized void rebuildHoldDeadlines() {
+    holdDeadlines = new PriorityQueue<>(Comparator.comparingLong((HoldDeadline d) -> d.deadline));
+    holdDeadlineByName = new HashMap<>();
+    for (LockableResource resource : this.resources) {
+      trackHold(resource);
+    }
+  }
+
+  /**
+   * Handles the locks held longer than their maximum hold time at *now*. Such a lock gets a
+   * warning first; unless the action is {@link HoldTimeAction#WARN}, it is aborted or released
+   * {@link #HOLD_GRACE_MINUTES} later. Only the due deadlines are looked at.
+   */
+  @Restricted(NoExternalUse.class)
+  public void enforceHoldLimits(long now) {
+    List<String> warnings = new ArrayList<>();
+    Map<Run<?, ?>, HoldTimeExceeded> toAbort = new HashMap<>();
+    synchronized (this) {
+      List<String> toRelease = new ArrayList<>();
+      List<HoldDeadline> graces = new ArrayList<>();
+      while (!holdDeadlines.isEmpty() && holdDeadlines.peek().deadline <= now) {
+        HoldDeadline due = holdDeadlines.poll();
+        LockableResource resource = fromName(due.name);
+        if (holdDeadlineByName.get(due.name) != due
+          || resource == null
+          || !resource.isLocked()
+          || resource.getReservedAt() != due.since) {
+          // unlocked or locked again since
+          continue;
+        }
+        if (!due.warned) {
+          warnings.add(
+            String.format(
+              "[%s] is held longer than %d minute(s) by %s",
+              due.name, due.minutes, holdersOf(resource)));
+          if (due.action != HoldTimeAction.WARN) {
+            HoldDeadline grace =
+              new HoldDeadline(
+                due.name, due.since, due.minutes, due.action,
+                due.deadline + TimeUnit.MINUTES.toMillis(Math.max(HOLD_GRACE_MINUTES, 0)),
+                true);
+            holdDeadlineByName.put(due.name, grace);
+            graces.add(grace);
+          } else {
+            holdDeadlineByName.remove(due.name);
+          }
+          continue;
+        }
+        holdDeadlineByName.remove(due.name);
+        if (due.action == HoldTimeAction.RELEASE) {
+          toRelease.add(due.name);
+        } else {
+          for (Run<?, ?> holder : runningHolders(resource)) {
+            toAbort.put(holder, new HoldTimeExceeded(due.name, due.minutes));
+          }
+        }
+      }
+      // grace deadlines may be due already, keep them for the next run
+      holdDeadlines.addAll(graces);
+      if (!toRelease.isEmpty()) {
+        LOGGER.warning("Releasing lockable resources held longer than allowed: " + toRelease);
+        // forced unlock (no build), hands the resources to the queue
+        unlockNames(toRelease, null, false);
+      }
+    }
+    for (String warning : warnings) {
+      LOGGER.warning(warning);
+    }
+    for (Map.Entry<Run<?, ?>, HoldTimeExceeded> abort : toAbort.entrySet()) {
+      Executor executor = abort.getKey().getExecutor();
+      if (executor != null) {
+        LOGGER.warning("Aborting " + abort.getKey() + ": " + abort.getValue().getShortDescription());
+        executor.interrupt(Result.ABORTED, abort.getValue());
+      }
+    }
+  }
+
+  private static String holdersOf(LockableResource resource) {
+    if (resource.isLockedShared()) {
+      return String.join(", ", resource.getSharedBy());
+    }
+    return resource.getBuildName();
+  }
+
+  private List<Run<?, ?>> runningHolders(LockableResource resource) {
+    List<Run<?, ?>> holders = new ArrayList<>();
+    if (resource.getBuild() != null && resource.getBuild().isBuilding()) {
+      holders.add(resource.getBuild());
+    }
+    for (String id : resource.getSharedBy()) {
+      Run<?, ?> holder = getSharedHolder(id);
+      if (holder != null && holder.isBuilding()) {
+        holders.add(holder);
       }
     }
-    if (updated) {
-      save();
+    return holders;
+  }
+
+  /** Deadline of a lock, see {@link #enforceHoldLimits(long)}. */
+  private static final class HoldDeadline {
+    private final String name;
+    /** Lock time, {@link LockableResource#getReservedAt()}. */
+    private final long since;
+    private final int minutes;
+    private final HoldTimeAction action;
+    private final long deadline;
+    /** {@code true} once the warning is done, the deadline is the end of the grace time then. */
+    private final boolean warned;
+
+    HoldDeadline(
+      String name, long since, int minutes, HoldTimeAction action, long deadline, boolean warned) {
+      this.name = name;
+      this.since = since;
+      this.minutes = minutes;
+      this.action = action;
+      this.deadline = deadline;
+      this.warned = warned;
     }
+  }
 
-    return true;
+  /** Shown in the log of builds aborted by {@link #enforceHoldLimits(long)}. */
+  public static final class HoldTimeExceeded extends CauseOfInterruption {
+    private static final long serialVersionUID = 1L;
+
+    private final String resourceName;
+    private final int minutes;
+
+    public HoldTimeExceeded(String resourceName, int minutes) {
+      this.resourceName = resourceName;
+      this.minutes = minutes;
+    }
+
+    @Override
+    public String getShortDescription() {
+      return "Lockable resource [" + resourceName + "] held longer than " + minutes + " minute(s)";
+    }
   }
 
-  /** @see #checkResourcesAvailability(List, PrintStream, List, List, boolean, ResourceSelectStrategy) */
+  /** @see #checkResourcesAvailability(List, PrintStream, List, List, boolean, ResourceSelector) */
   public synchronized List<LockableResource> checkResourcesAvailability(
     List<LockableResourcesStruct> requiredResourcesList,
     @Nullable PrintStream logger,
     @Nullable List<String> lockedResourcesAboutToBeUnlocked) {
     boolean skipIfLocked = false;
-    ResourceSelectStrategy selectStrategy = ResourceSelectStrategy.SEQUENTIAL;
+    ResourceSelector selector = null;
 
     return this.checkResourcesAvailability(
-      requiredResourcesList, logger, lockedResourcesAboutToBeUnlocked, null, skipIfLocked, selectStrategy);
+      requiredResourcesList, logger, lockedResourcesAboutToBeUnlocked, null, skipIfLocked, selector);
   }
 
-  /** @see #checkResourcesAvailability(List, PrintStream, List, List, boolean, ResourceSelectStrategy) */
+  /** @see #checkResourcesAvailability(List, PrintStream, List, List, boolean, ResourceSelector) */
   public synchronized List<LockableResource> checkResourcesAvailability(
     List<LockableResourcesStruct> requiredResourcesList,
     @Nullable PrintStream logger,
     @Nullable List<String> lockedResourcesAboutToBeUnlocked,
     boolean skipIfLocked) {
-    ResourceSelectStrategy selectStrategy = ResourceSelectStrategy.SEQUENTIAL;
+    ResourceSelector selector = null;
 
     return this.checkResourcesAvailability(
-      requiredResourcesList, logger, lockedResourcesAboutToBeUnlocked, null, skipIfLocked, selectStrategy);
+      requiredResourcesList, logger, lockedResourcesAboutToBeUnlocked, null, skipIfLocked, selector);
   }
 
-  /** @see #checkResourcesAvailability(List, PrintStream, List, List, boolean, ResourceSelectStrategy) */
+  /** @see #checkResourcesAvailability(List, PrintStream, List, boolean, ResourceSelector) */
   public synchronized List<LockableResource> checkResourcesAvailability(
     List<LockableResourcesStruct> requiredResourcesList,
     @Nullable PrintStream logger,
     @Nullable List<String> lockedResourcesAboutToBeUnlocked,
     boolean skipIfLocked,
     ResourceSelectStrategy selectStrategy) {
-    return this.checkResourcesAvailability(
-      requiredResourcesList, logger, lockedResourcesAboutToBeUnlocked, null, skipIfLocked, selectStrategy);
+    return checkResourcesAvailability(
+      requiredResourcesList,
+      logger,
+      lockedResourcesAboutToBeUnlocked,
+      skipIfLocked,
+      ResourceSelector.of(selectStrategy));
+  }
+
+  /** @see #checkResourcesAvailability(List, PrintStream, List, List, boolean, ResourceSelector) */
+  public synchronized List<LockableResource> checkResourcesAvailability(
+    List<LockableResourcesStruct> requiredResourcesList,
+    @Nullable PrintStream logger,
+    @Nullable List<String> lockedResourcesAboutToBeUnlocked,
+    boolean skipIfLocked,
+    @CheckForNull ResourceSelector selector) {
+    updateBackfill(lockedResourcesAboutToBeUnlocked, null);
+    List<LockableResource> available =
+      this.checkResourcesAvailability(
+        requiredResourcesList, logger, lockedResourcesAboutToBeUnlocked, null, skipIfLocked, selector);
+    if (available != null) {
+      countBackfill(requiredResourcesList);
+    }
+    return available;
   }
 
-  /** @see #checkResourcesAvailability(List, PrintStream, List, List, boolean, ResourceSelectStrategy) */
+  /** @see #checkResourcesAvailability(List, PrintStream, List, List, boolean, ResourceSelector) */
   public synchronized List<LockableResource> checkResourcesAvailability(
     List<LockableResourcesStruct> requiredResourcesList,
     @Nullable PrintStream logger,
     @Nullable List<String> lockedResourcesAboutToBeUnlocked,
     @Nullable List<String> reservedResourcesAboutToBeUnreserved) {
     boolean skipIfLocked = false;
-    ResourceSelectStrategy selectStrategy = ResourceSelectStrategy.SEQUENTIAL;
+    ResourceSelector selector = null;
 
     return this.checkResourcesAvailability(
       requiredResourcesList,
@@ -1050,13 +3276,32 @@ public class LockableResourcesManager extends GlobalConfiguration {
       lockedResourcesAboutToBeUnlocked,
       reservedResourcesAboutToBeUnreserved,
       skipIfLocked,
-      selectStrategy);
+      selector);
+  }
+
+  /** @see #checkResourcesAvailability(List, PrintStream, List, List, boolean, ResourceSelector) */
+  public synchronized List<LockableResource> checkResourcesAvailability(
+    List<LockableResourcesStruct> requiredResourcesList,
+    @Nullable PrintStream logger,
+    @Nullable List<String> lockedResourcesAboutToBeUnlocked,
+    @Nullable List<String> reservedResourcesAboutToBeUnreserved,
+    boolean skipIfLocked,
+    ResourceSelectStrategy selectStrategy) {
+    return checkResourcesAvailability(
+      requiredResourcesList,
+      logger,
+      lockedResourcesAboutToBeUnlocked,
+      reservedResourcesAboutToBeUnreserved,
+      skipIfLocked,
+      ResourceSelector.of(selectStrategy));
   }
 
   /**
    * Checks if there are enough resources available to satisfy the requirements specified within
    * requiredResources and returns the necessary available resources. If not enough resources are
    * available, returns null.
+   *
+   * @param selector orders the candidates of each requirement, null keeps the configuration order
    */
   public synchronized List<LockableResource> checkResourcesAvailability(
     List<LockableResourcesStruct> requiredResourcesList,
@@ -1064,9 +3309,19 @@ public class LockableResourcesManager extends GlobalConfiguration {
     @Nullable List<String> lockedResourcesAboutToBeUnlocked,
     @Nullable List<String> reservedResourcesAboutToBeUnreserved,
     boolean skipIfLocked,
-    ResourceSelectStrategy selectStrategy) {
+    @CheckForNull ResourceSelector selector) {
+
+    if (!hasFreeCapacity(requiredResourcesList, -1, skipIfLocked ? null : logger)) {
+      return null;
+    }
 
-    List<LockableResourcesCandidatesStruct> requiredResourcesCandidatesList = new ArrayList<>();
+    // this runs for each queued context on every unlock, keep the lookups cheap
+    Set<String> toUnlock = toNameSet(lockedResourcesAboutToBeUnlocked);
+    Set<String> toUnreserve = toNameSet(reservedResourcesAboutToBeUnreserved);
+    RequestModes modes = new RequestModes(requiredResourcesList);
+
+    List<LockableResourcesCandidatesStruct> requiredResourcesCandidatesList =
+      new ArrayList<>(requiredResourcesList.size());
 
     // Build possible resources for each requirement
     for (LockableResourcesStruct requiredResources : requiredResourcesList) {
@@ -1089,9 +3344,16 @@ public class LockableResourcesManager extends GlobalConfiguration {
       if (requiredAmount == 0) {
         requiredAmount = candidates.size();
       }
+      if (requiredResources.waitForAgent) {
+        // taken together with an executor of their agents, as busy until one is idle
+        candidates.removeIf(candidate -> !candidate.isAgentAvailable());
+      }
 
       requiredResourcesCandidatesList.add(
-        new LockableResourcesCandidatesStruct(candidates, requiredAmount));
+        new LockableResourcesCandidatesStruct(
+          candidates,
+          requiredAmount,
+          requiredResources.getMinimumAmount(requiredAmount, requiredResources.queuedAt)));
     }
 
     // Process freed resources
@@ -1103,9 +3365,10 @@ public class LockableResourcesManager extends GlobalConfiguration {
     // now, but we do not bail out and end the looping either.
     int totalReserved = 0;
 
-    for (LockableResourcesCandidatesStruct requiredResources : requiredResourcesCandidatesList) {
-      if (selectStrategy.equals(ResourceSelectStrategy.RANDOM)) {
-        Collections.shuffle(requiredResources.candidates);
+    for (int i = 0; i < requiredResourcesCandidatesList.size(); i++) {
+      LockableResourcesCandidatesStruct requiredResources = requiredResourcesCandidatesList.get(i);
+      if (selector != null) {
+        selector.order(requiredResources.candidates, requiredResourcesList.get(i).jobName, this);
       }
       // start with an empty set of selected resources
       List<LockableResource> selected = new ArrayList<>();
@@ -1113,21 +3376,15 @@ public class LockableResourcesManager extends GlobalConfiguration {
       // some resources might be already locked, but will be freed.
       // Determine if these resources can be reused
       // FIXME? Why is this check not outside the for loop?
-      if (lockedResourcesAboutToBeUnlocked != null
-        ||  reservedResourcesAboutToBeUnreserved != null
-      ) {
+      if (toUnlock != null || toUnreserve != null) {
         for (LockableResource candidate : requiredResources.candidates) {
           if (selected.size() >= requiredResources.requiredAmount) {
             break;
           }
 
           String candidateName = candidate.getName();
-          boolean listedUnlock =
-              (lockedResourcesAboutToBeUnlocked != null
-                  && lockedResourcesAboutToBeUnlocked.contains(candidateName));
-          boolean listedUnreserve =
-              (reservedResourcesAboutToBeUnreserved != null
-                  && reservedResourcesAboutToBeUnreserved.contains(candidateName));
+          boolean listedUnlock = toUnlock != null && toUnlock.contains(candidateName);
+          boolean listedUnreserve = toUnreserve != null && toUnreserve.contains(candidateName);
           boolean isReserved = candidate.isReserved();
           boolean isLocked = candidate.isLocked();
 
@@ -1163,7 +3420,10 @@ public class LockableResourcesManager extends GlobalConfiguration {
           } else {
             // If the resource is not reserved (as checked above)
             // but listed for releasing in either category, select it
-            if (listedUnlock || listedUnreserve) {
+            // (unless waiting writers go first, see isWantedExclusively)
+            if ((listedUnlock || listedUnreserve)
+              && !modes.isWriterFirst(candidate)
+              && !isEarmarked(candidate, requiredResourcesList)) {
               selected.add(candidate);
             }
           }
@@ -1181,43 +3441,61 @@ public class LockableResourcesManager extends GlobalConfiguration {
     // the loop above was effectively skipped
     if (totalSelected == 0
         && totalReserved == 0
-        && (lockedResourcesAboutToBeUnlocked != null
-            || reservedResourcesAboutToBeUnreserved != null)
+        && (toUnlock != null || toUnreserve != null)
     ) {
       return null;
     }
 
-    // Find remaining resources
-    LinkedHashSet<LockableResource> allSelected = new LinkedHashSet<>();
-
-    for (LockableResourcesCandidatesStruct requiredResources : requiredResourcesCandidatesList) {
+    // Find remaining resources.
+    // Requirements taking all their candidates (resource names, label without quantity) have no
+    // choice, they go first. Requirements with a quantity then re-use what is selected already and
+    // prefer the candidates wanted by other quantity requirements too, so the request locks as few
+    // resources as possible and does not keep other builds waiting for nothing.
+    List<LockableResourcesCandidatesStruct> processingOrder =
+      new ArrayList<>(requiredResourcesCandidatesList);
+    processingOrder.sort(Comparator.comparing(LockableResourcesManager::isPartial));
+    Map<LockableResource, Integer> demand = getPartialDemand(processingOrder);
+    Set<LockableResource> allSelected = new HashSet<>();
+
+    for (LockableResourcesCandidatesStruct requiredResources : processingOrder) {
       List<LockableResource> candidates = requiredResources.candidates;
       List<LockableResource> selected = requiredResources.selected;
       int requiredAmount = requiredResources.requiredAmount;
+      boolean partial = isPartial(requiredResources);
+
+      // resources about to be freed, selected above
+      boolean preselected = !selected.isEmpty();
 
       // Try and re-use as many previously selected resources first
-      List<LockableResource> alreadySelectedCandidates = new ArrayList<>(candidates);
-      alreadySelectedCandidates.retainAll(allSelected);
-      for (LockableResource rs : alreadySelectedCandidates) {
-        if (selected.size() >= requiredAmount) {
-          break;
-        }
-        if (!rs.isReserved() && !rs.isLocked()) {
-          selected.add(rs);
+      if (!allSelected.isEmpty()) {
+        for (LockableResource rs : candidates) {
+          if (selected.size() >= requiredAmount) {
+            break;
+          }
+          if (allSelected.contains(rs)
+            && modes.isFree(rs)
+            && !(preselected && selected.contains(rs))) {
+            selected.add(rs);
+          }
         }
       }
 
-      candidates.removeAll(alreadySelectedCandidates);
+      if (demand != null && partial) {
+        // stable sort, keeps the order of the select strategy among equally wanted candidates
+        candidates.sort(Comparator.comparing(rs -> -demand.getOrDefault(rs, 0)));
+      }
       for (LockableResource rs : candidates) {
         if (selected.size() >= requiredAmount) {
           break;
         }
-        if (!rs.isReserved() && !rs.isLocked()) {
+        if (!allSelected.contains(rs)
+          && modes.isFree(rs)
+          && !(preselected && selected.contains(rs))) {
           selected.add(rs);
         }
       }
 
-      if (selected.size() < requiredAmount) {
+      if (selected.size() < requiredResources.minimumAmount) {
         // Note: here we are looping over requiredResourcesCandidatesList
         // based on original argument requiredResourcesList with its specs
         // (maybe several) of required resources and their amounts.
@@ -1228,7 +3506,9 @@ public class LockableResourcesManager extends GlobalConfiguration {
             "Found "
               + selected.size()
               + " available resource(s). Waiting for correct amount: "
-              + requiredAmount
+              + (requiredResources.minimumAmount < requiredAmount
+                  ? "at least " + requiredResources.minimumAmount
+                  : String.valueOf(requiredAmount))
               + ".");
         }
         return null;
@@ -1237,7 +3517,128 @@ public class LockableResourcesManager extends GlobalConfiguration {
       allSelected.addAll(selected);
     }
 
-    return new ArrayList<>(allSelected);
+    // keep the order of the requirements, it is the order of the resources in the variable
+    if (requiredResourcesCandidatesList.size() == 1) {
+      return requiredResourcesCandidatesList.get(0).selected;
+    }
+    LinkedHashSet<LockableResource> result = new LinkedHashSet<>();
+    for (LockableResourcesCandidatesStruct requiredResources : requiredResourcesCandidatesList) {
+      result.addAll(requiredResources.selected);
+    }
+    return new ArrayList<>(result);
+  }
+
+  @CheckForNull
+  private static Set<String> toNameSet(@CheckForNull List<String> names) {
+    return names == null ? null : new HashSet<>(names);
+  }
+
+  /**
+   * Lock modes of the requirements of one request. Evaluated once per resource and per
+   * availability check, instead of once per candidate and requirement.
+   */
+  private final class RequestModes {
+    private final List<LockableResourcesStruct> requiredResources;
+    private final boolean anyShared;
+    /** Resources taken in shared mode, lazily. */
+    private Map<LockableResource, Boolean> shared;
+    /** Resources queued contexts wait for in exclusive mode, lazily. */
+    private Set<LockableResource> wantedExclusively;
+
+    RequestModes(List<LockableResourcesStruct> requiredResources) {
+      this.requiredResources = requiredResources;
+      boolean any = false;
+      for (LockableResourcesStruct rs : requiredResources) {
+        if (rs.shared) {
+          any = true;
+          break;
+        }
+      }
+      this.anyShared = any;
+    }
+
+    private boolean isShared(LockableResource resource) {
+      if (!anyShared) {
+        return false;
+      }
+      if (shared == null) {
+        shared = new HashMap<>();
+      }
+      return shared.computeIfAbsent(
+        resource, r -> !isRequiredExclusively(r, requiredResources));
+    }
+
+    private boolean isWantedExclusively(LockableResource resource) {
+      if (wantedExclusively == null) {
+        wantedExclusively = new HashSet<>();
+        for (QueuedContextStruct entry : queueByPriority) {
+          for (LockableResourcesStruct rs : entry.getResources()) {
+            if (rs.shared || rs.capacityName != null) {
+              continue;
+            }
+            if (StringUtils.isBlank(rs.label)) {
+              wantedExclusively.addAll(rs.required);
+            } else {
+              wantedExclusively.addAll(getResourcesWithLabel(rs.label, null));
+            }
+          }
+        }
+      }
+      return wantedExclusively.contains(resource);
+    }
+
+    /**
+     * Same as {@link #isFreeForRequest(LockableResource, List)}, but resources kept for a starving
+     * context are not free for others.
+     */
+    boolean isFree(LockableResource resource) {
+      if (isEarmarked(resource, requiredResources)) {
+        return false;
+      }
+      if (!isShared(resource)) {
+        return resource.isFreeFor(false);
+      }
+      return resource.isFreeFor(true) && !isWantedExclusively(resource);
+    }
+
+    /** Checks if a waiting writer has to get *resource* before this shared request. */
+    boolean isWriterFirst(LockableResource resource) {
+      return isShared(resource) && isWantedExclusively(resource);
+    }
+  }
+
+  /** Checks if the requirement needs only some of its candidates (label with quantity). */
+  private static boolean isPartial(LockableResourcesCandidatesStruct requiredResources) {
+    return requiredResources.requiredAmount < requiredResources.candidates.size();
+  }
+
+  /**
+   * Counts for each candidate how many requirements with a quantity could take it.
+   *
+   * @return {@code null} when there are less than two such requirements, nothing to share then
+   */
+  @CheckForNull
+  private static Map<LockableResource, Integer> getPartialDemand(
+    List<LockableResourcesCandidatesStruct> requiredResourcesCandidatesList) {
+    Map<LockableResource, Integer> demand = null;
+    int partial = 0;
+    for (LockableResourcesCandidatesStruct requiredResources : requiredResourcesCandidatesList) {
+      if (isPartial(requiredResources)) {
+        partial++;
+      }
+    }
+    if (partial < 2) {
+      return demand;
+    }
+    demand = new HashMap<>();
+    for (LockableResourcesCandidatesStruct requiredResources : requiredResourcesCandidatesList) {
+      if (isPartial(requiredResources)) {
+        for (LockableResource rs : requiredResources.candidates) {
+          demand.merge(rs, 1, Integer::sum);
+        }
+      }
+    }
+    return demand;
   }
 
   /*
@@ -1249,25 +3650,254 @@ public class LockableResourcesManager extends GlobalConfiguration {
     List<LockableResourcesStruct> requiredResources,
     String resourceDescription,
     String variableName) {
-    for (QueuedContextStruct entry : this.queuedContexts) {
-      if (entry.getContext() == context) {
-        return;
+    queueContext(context, requiredResources, resourceDescription, variableName, 0);
+  }
+
+  /*
+   * Same as above, queued contexts with a higher priority get the resources
+   * first, see agedKey().
+   */
+  public synchronized void queueContext(
+    StepContext context,
+    List<LockableResourcesStruct> requiredResources,
+    String resourceDescription,
+    String variableName,
+    int priority) {
+    QueuedContextStruct entry =
+      new QueuedContextStruct(context, requiredResources, resourceDescription, variableName);
+    entry.setPriority(priority);
+    queueContext(entry);
+  }
+
+  /*
+   * Adds the given entry to the queue if its context is not yet queued.
+   * The entry carries the step settings (priority, deadline ...).
+   */
+  public synchronized void queueContext(QueuedContextStruct entry) {
+    if (this.queueIndex.containsKey(entry.getContext())) {
+      return;
+    }
+
+    entry.setSequence(++queueSequence);
+    scheduleGracePeriodEnd(entry);
+    scheduleDeadline(entry);
+    if (BACKFILL_STARVATION_MINUTES >= 0) {
+      nextStarvationCheck =
+        Math.min(
+          nextStarvationCheck,
+          entry.getQueuedAt() + TimeUnit.MINUTES.toMillis(BACKFILL_STARVATION_MINUTES));
+    }
+    addToQueue(entry);
+    List<QueuedContextStruct> cycle = findDeadlock(entry);
+    if (cycle != null) {
+      resolveDeadlock(cycle);
+    }
+    saveQueue();
+  }
+
+  /**
+   * Remembers the lock step (flow node *nodeId* of *build*) holding *resourceNames*. Exclusive
+   * locks replace the previous holders, shared ones are added.
+   */
+  public synchronized void recordLockNode(List<String> resourceNames, Run<?, ?> build, String nodeId) {
+    LockNode lockNode = new LockNode(build.getExternalizableId(), nodeId);
+    for (String name : resourceNames) {
+      LockableResource resource = fromName(name);
+      if (resource == null) {
+        continue;
       }
+      List<LockNode> holders = new ArrayList<>(currentLockNodes(resource));
+      holders.add(lockNode);
+      lockNodes.put(name, holders);
     }
+  }
 
-    this.queuedContexts.add(
-      new QueuedContextStruct(context, requiredResources, resourceDescription, variableName));
-    save();
+  /**
+   * Drops the lock step nodes which no longer hold *resource*, so the map does not grow with each
+   * lock.
+   */
+  private void pruneLockNodes(LockableResource resource) {
+    List<LockNode> holders = lockNodes.get(resource.getName());
+    if (holders == null) {
+      return;
+    }
+    List<LockNode> current = currentLockNodes(resource);
+    if (current.isEmpty()) {
+      lockNodes.remove(resource.getName());
+    } else if (current.size() < holders.size()) {
+      lockNodes.put(resource.getName(), current);
+    }
+  }
+
+  /** Lock step nodes still holding *resource*, outdated entries are left out. */
+  private List<LockNode> currentLockNodes(LockableResource resource) {
+    List<LockNode> holders = new ArrayList<>();
+    for (LockNode lockNode : lockNodes.getOrDefault(resource.getName(), Collections.emptyList())) {
+      if (lockNode.buildId.equals(resource.getBuildExternalizableId())
+        || resource.isSharedBy(lockNode.buildId)) {
+        holders.add(lockNode);
+      }
+    }
+    return holders;
+  }
+
+  /**
+   * Looks for a cycle through the newly queued *entry* in the wait-for graph: a queued context
+   * waits for the lock steps holding the named resources it needs, a lock step waits for the
+   * queued contexts inside its body. Label requirements can be satisfied by other resources and
+   * add no edge, so does any context restored after a restart.
+   *
+   * @return the queued contexts of the cycle, starting with *entry*, or null
+   */
+  @CheckForNull
+  private List<QueuedContextStruct> findDeadlock(QueuedContextStruct entry) {
+    if (entry.getBuildExternalizableId() == null) {
+      return null;
+    }
+    Map<String, List<QueuedContextStruct>> waitingByBuild = new HashMap<>();
+    for (QueuedContextStruct queued : queueByPriority) {
+      if (queued.getBuildExternalizableId() != null && !queued.getEnclosingBlockIds().isEmpty()) {
+        waitingByBuild
+          .computeIfAbsent(queued.getBuildExternalizableId(), k -> new ArrayList<>())
+          .add(queued);
+      }
+    }
+    List<QueuedContextStruct> path = new ArrayList<>();
+    path.add(entry);
+    Set<QueuedContextStruct> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+    visited.add(entry);
+    return findDeadlock(entry, entry, path, visited, waitingByBuild) ? path : null;
+  }
+
+  private boolean findDeadlock(
+    QueuedContextStruct start,
+    QueuedContextStruct current,
+    List<QueuedContextStruct> path,
+    Set<QueuedContextStruct> visited,
+    Map<String, List<QueuedContextStruct>> waitingByBuild) {
+    for (LockNode holder : blockingLockNodes(current)) {
+      for (QueuedContextStruct waiting :
+        waitingByBuild.getOrDefault(holder.buildId, Collections.emptyList())) {
+        if (!waiting.getEnclosingBlockIds().contains(holder.nodeId)) {
+          continue;
+        }
+        if (waiting == start) {
+          return true;
+        }
+        if (visited.add(waiting)) {
+          path.add(waiting);
+          if (findDeadlock(start, waiting, path, visited, waitingByBuild)) {
+            return true;
+          }
+          path.remove(path.size() - 1);
+        }
+      }
+    }
+    return false;
+  }
+
+  /** Lock steps holding the named resources *entry* waits for. */
+  private Set<LockNode> blockingLockNodes(QueuedContextStruct entry) {
+    Set<LockNode> holders = new HashSet<>();
+    for (LockableResourcesStruct rs : entry.getResources()) {
+      if (StringUtils.isNotBlank(rs.label) || rs.capacityName != null || rs.required == null) {
+        continue;
+      }
+      for (LockableResource required : rs.required) {
+        LockableResource resource = fromName(required.getName());
+        if (resource != null && (rs.shared ? resource.getBuild() != null : resource.isLocked())) {
+          holders.addAll(currentLockNodes(resource));
+        }
+      }
+    }
+    return holders;
+  }
+
+  /** Applies {@link #DEADLOCK_POLICY} to the queued contexts of a deadlock. */
+  private void resolveDeadlock(List<QueuedContextStruct> cycle) {
+    deadlocksDetected++;
+    StringBuilder description = new StringBuilder();
+    QueuedContextStruct youngest = cycle.get(0);
+    for (QueuedContextStruct queued : cycle) {
+      description
+        .append(description.length() == 0 ? "" : " -> ")
+        .append(queued.getBuildExternalizableId())
+        .append(" waiting for [")
+        .append(queued.getResourceDescription())
+        .append("]");
+      if (queued.getSequence() > youngest.getSequence()) {
+        youngest = queued;
+      }
+    }
+    LOGGER.warning("Deadlock between lock steps: " + description);
+    if (!"FAIL_YOUNGEST".equalsIgnoreCase(DEADLOCK_POLICY) || !removeFromQueue(youngest)) {
+      return;
+    }
+    if (dropBackfillHead()) {
+      proceedQueuedContexts(true);
+    }
+    StepContext victim = youngest.getContext();
+    String message = "Deadlock while waiting for [" + youngest.getResourceDescription() + "]: " + description;
+    // not under the manager lock
+    Timer.get().submit(() -> LockStepExecution.fail(victim, message));
+  }
+
+  /** Amount of queued lock steps per requested label. */
+  public synchronized Map<String, Integer> getQueueDepthByLabel() {
+    Map<String, Integer> depth = new HashMap<>();
+    for (QueuedContextStruct entry : queueByPriority) {
+      for (LockableResourcesStruct rs : entry.getResources()) {
+        if (rs.label != null && !rs.label.isEmpty()) {
+          depth.merge(rs.label, 1, Integer::sum);
+        }
+      }
+    }
+    return depth;
+  }
+
+  /** Amount of resources with lock step nodes recorded, see {@link #recordLockNode}. */
+  synchronized int getLockNodeCount() {
+    return lockNodes.size();
+  }
+
+  /** Amount of deadlocks between lock steps found since startup. */
+  public synchronized long getDeadlocksDetected() {
+    return deadlocksDetected;
+  }
+
+  /** A lock step of a build, identified by its flow node. */
+  private static final class LockNode {
+    private final String buildId;
+    private final String nodeId;
+
+    LockNode(String buildId, String nodeId) {
+      this.buildId = buildId;
+      this.nodeId = nodeId;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof LockNode)) {
+        return false;
+      }
+      LockNode other = (LockNode) o;
+      return buildId.equals(other.buildId) && nodeId.equals(other.nodeId);
+    }
+
+    @Override
+    public int hashCode() {
+      return buildId.hashCode() * 31 + nodeId.hashCode();
+    }
   }
 
   public synchronized boolean unqueueContext(StepContext context) {
-    for (Iterator<QueuedContextStruct> iter = this.queuedContexts.listIterator();
-      iter.hasNext(); ) {
-      if (iter.next().getContext() == context) {
-        iter.remove();
-        save();
-        return true;
+    QueuedContextStruct entry = this.queueIndex.get(context);
+    if (removeFromQueue(entry)) {
+      if (dropBackfillHead()) {
+        proceedQueuedContexts(true);
       }
+      saveQueue();
+      return true;
     }
     return false;
   }
@@ -1277,15 +3907,126 @@ public class LockableResourcesManager extends GlobalConfiguration {
       Jenkins.get().getDescriptorOrDie(LockableResourcesManager.class);
   }
 
+  /**
+   * Writes the resources and the other state, and the queue when it changed. The queue goes first:
+   * if the main file of an older version still holds it, the queue file wins over it on the next
+   * load.
+   */
   @Override
   public synchronized void save() {
     if (BulkChange.contains(this)) return;
 
+    saveQueue();
+    LockEvents.Save event = new LockEvents.Save();
+    event.begin();
+    long start = System.nanoTime();
     try {
       getConfigFile().write(this);
     } catch (IOException e) {
       LOGGER.log(Level.WARNING, "Failed to save " + getConfigFile(), e);
     }
+    LockMetrics.get().saved(System.nanoTime() - start);
+    event.end(this.resources.size(), 0);
+  }
+
+  /**
+   * Writes the queue to its own file when it changed, so queuing and leaving the queue do not write
+   * all resources, and changes of the resources do not write the queue.
+   */
+  private synchronized void saveQueue() {
+    if (!queueDirty || queueByPriority == null || BulkChange.contains(this)) {
+      // nothing new, still loading, or written when the bulk change commits
+      return;
+    }
+    queueDirty = false;
+    List<QueuedContextStruct> queue = new ArrayList<>(queueByPriority);
+    LockEvents.Save event = new LockEvents.Save();
+    event.begin();
+    long start = System.nanoTime();
+    XmlFile file = getQueueFile();
+    try {
+      file.write(queue);
+    } catch (IOException e) {
+      queueDirty = true;
+      LOGGER.log(Level.WARNING, "Failed to save " + file, e);
+    }
+    LockMetrics.get().saved(System.nanoTime() - start);
+    event.end(0, queue.size());
+  }
+
+  /**
+   * Reads the queue written by {@link #saveQueue()} into {@link #queuedContexts}, after the
+   * resources have been loaded.
+   *
+   * @return false when there is no queue file yet
+   */
+  @SuppressWarnings("unchecked")
+  private boolean loadQueue() {
+    XmlFile file = getQueueFile();
+    if (!file.exists()) {
+      return false;
+    }
+    try {
+      queuedContexts = (List<QueuedContextStruct>) file.read();
+    } catch (IOException | RuntimeException e) {
+      LOGGER.log(Level.WARNING, "Failed to load " + file, e);
+      return true;
+    }
+    if (queuedContexts == null) {
+      return true;
+    }
+    // the requirements refer to the resources by name
+    Map<String, LockableResource> byName = new HashMap<>();
+    for (LockableResource resource : resources) {
+      byName.put(resource.getName(), resource);
+    }
+    for (QueuedContextStruct entry : queuedContexts) {
+      for (LockableResourcesStruct rs : entry.getResources()) {
+        if (rs.required != null) {
+          rs.required.replaceAll(r -> byName.getOrDefault(r.getName(), r));
+        }
+      }
+    }
+    return true;
+  }
+
+  /** The file holding the lock steps waiting for resources, next to the main file. */
+  private XmlFile getQueueFile() {
+    return new XmlFile(
+      getQueueXStream(), new File(Jenkins.get().getRootDir(), getId() + ".queue.xml"));
+  }
+
+  private static synchronized XStream2 getQueueXStream() {
+    if (queueXStream == null) {
+      queueXStream = new XStream2();
+      queueXStream.setClassLoader(Jenkins.get().getPluginManager().uberClassLoader);
+      queueXStream.alias("context", QueuedContextStruct.class);
+      queueXStream.alias("resource", LockableResource.class);
+      queueXStream.registerConverter(new ResourceNameConverter(), XStream2.PRIORITY_VERY_HIGH);
+    }
+    return queueXStream;
+  }
+
+  /**
+   * Writes a {@link LockableResource} of the queue file as its name. Reads it back as a bare
+   * resource of that name, replaced by the configured one in {@link #loadQueue()}.
+   */
+  private static final class ResourceNameConverter extends AbstractSingleValueConverter {
+    @Override
+    @SuppressWarnings("rawtypes")
+    public boolean canConvert(Class type) {
+      return type == LockableResource.class;
+    }
+
+    @Override
+    public String toString(Object obj) {
+      return ((LockableResource) obj).getName();
+    }
+
+    @Override
+    public Object fromString(String name) {
+      return new LockableResource(name);
+    }
   }
 
   private static final Logger LOGGER = Logger.getLogger(LockableResourcesManager.class.getName());
@@ -19,6 +19,7 @@ import hudson.model.Job;
 import hudson.model.JobProperty;
 import hudson.model.JobPropertyDescriptor;
 import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
 import java.util.ArrayList;
 import java.util.List;
 import jenkins.model.Jenkins;
@@ -27,6 +28,7 @@ import org.jenkinsci.plugins.scriptsecurity.sandbox.groovy.SecureGroovyScript;
 import org.jenkinsci.plugins.scriptsecurity.scripts.ApprovalContext;
 import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.interceptor.RequirePOST;
@@ -38,6 +40,11 @@ public class RequiredResourcesProperty extends JobProperty<Job<?, ?>> {
   private final String resourceNumber;
   private final String labelName;
   private final @CheckForNull SecureGroovyScript resourceMatchScript;
+  private int priority = 0;
+  private String resourceMinNumber;
+  private int resourceNumberGracePeriod = 0;
+  private String resourceSelectStrategy;
+  private boolean matrixGang = false;
 
   @DataBoundConstructor
   public RequiredResourcesProperty(String resourceNames,
@@ -88,9 +95,15 @@ public class RequiredResourcesProperty extends JobProperty<Job<?, ?>> {
   private Object readResolve() {
     // SECURITY-368 migration logic
     if (resourceMatchScript == null && labelName != null && labelName.startsWith(LockableResource.GROOVY_LABEL_MARKER)) {
-      return new RequiredResourcesProperty(resourceNames, resourceNamesVar, resourceNumber, null,
+      RequiredResourcesProperty migrated = new RequiredResourcesProperty(resourceNames, resourceNamesVar, resourceNumber, null,
         new SecureGroovyScript(labelName.substring(LockableResource.GROOVY_LABEL_MARKER.length()), false, null)
           .configuring(ApprovalContext.create()));
+      migrated.priority = priority;
+      migrated.resourceMinNumber = resourceMinNumber;
+      migrated.resourceNumberGracePeriod = resourceNumberGracePeriod;
+      migrated.resourceSelectStrategy = resourceSelectStrategy;
+      migrated.matrixGang = matrixGang;
+      return migrated;
     }
 
     return this;
@@ -116,10 +129,73 @@ public class RequiredResourcesProperty extends JobProperty<Job<?, ?>> {
     return resourceNumber;
   }
 
+  /**
+   * Gets the elastic lower bound of {@link #getResourceNumber()}: the build starts with at least
+   * this amount of resources once {@link #getResourceNumberGracePeriod()} is over.
+   */
+  public String getResourceMinNumber() {
+    return resourceMinNumber;
+  }
+
+  @DataBoundSetter
+  public void setResourceMinNumber(String resourceMinNumber) {
+    this.resourceMinNumber = Util.fixEmptyAndTrim(resourceMinNumber);
+  }
+
+  /** Seconds to wait for {@link #getResourceNumber()} resources before taking fewer. */
+  public int getResourceNumberGracePeriod() {
+    return resourceNumberGracePeriod;
+  }
+
+  @DataBoundSetter
+  public void setResourceNumberGracePeriod(int resourceNumberGracePeriod) {
+    this.resourceNumberGracePeriod = resourceNumberGracePeriod;
+  }
+
   public String getLabelName() {
     return labelName;
   }
 
+  /**
+   * Gets the priority of the build when it waits for resources. Items with a higher priority get
+   * the resources first, see {@link LockableResourcesManager#tryQueue}.
+   */
+  public int getPriority() {
+    return priority;
+  }
+
+  @DataBoundSetter
+  public void setPriority(int priority) {
+    this.priority = priority;
+  }
+
+  /**
+   * Gets the name of the {@link ResourceSelector} choosing among the free resources of the label,
+   * null for the configuration order.
+   */
+  @CheckForNull
+  public String getResourceSelectStrategy() {
+    return resourceSelectStrategy;
+  }
+
+  @DataBoundSetter
+  public void setResourceSelectStrategy(String resourceSelectStrategy) {
+    this.resourceSelectStrategy = Util.fixEmptyAndTrim(resourceSelectStrategy);
+  }
+
+  /**
+   * Checks whether the configurations of a matrix build get their resources all together or wait,
+   * instead of one after the other, see {@link LockableResourcesManager#queueGang}.
+   */
+  public boolean isMatrixGang() {
+    return matrixGang;
+  }
+
+  @DataBoundSetter
+  public void setMatrixGang(boolean matrixGang) {
+    this.matrixGang = matrixGang;
+  }
+
   /**
    * Gets a system Groovy script to be executed in order to determine if the {@link LockableResource} matches the condition.
    * @return System Groovy Script if defined
@@ -179,6 +255,9 @@ public class RequiredResourcesProperty extends JobProperty<Job<?, ?>> {
               break;
             }
           }
+          if (!found && LockableResourcesManager.get().capacityFromName(name) != null) {
+            found = true;
+          }
           if (!found)
             wrongNames.add(name);
         }
@@ -245,6 +324,12 @@ public class RequiredResourcesProperty extends JobProperty<Job<?, ?>> {
       }
       int numResources = 0;
       if (names != null) {
+        for (String name : names.split("\\s+")) {
+          if (LockableResourcesManager.get().capacityFromName(name) != null) {
+            // the number is the amount of permits requested from the capacity resource
+            return FormValidation.ok();
+          }
+        }
         numResources = names.split("\\s+").length;
       } else if (label != null || script != null) {
         numResources = Integer.MAX_VALUE;
@@ -259,6 +344,44 @@ public class RequiredResourcesProperty extends JobProperty<Job<?, ?>> {
       return FormValidation.ok();
     }
 
+    @RequirePOST
+    public FormValidation doCheckResourceMinNumber(@QueryParameter String value,
+      @QueryParameter String resourceNumber,
+      @QueryParameter String labelName,
+      @QueryParameter String resourceMatchScript,
+      @AncestorInPath Item item) {
+      // check permission, security first
+      checkPermission(item);
+
+      String minNumber = Util.fixEmptyAndTrim(value);
+      if (minNumber == null || minNumber.equals("0")) {
+        return FormValidation.ok();
+      }
+      int minAsInt;
+      int numAsInt;
+      try {
+        minAsInt = Integer.parseInt(minNumber);
+        numAsInt = Integer.parseInt(Util.fixNull(Util.fixEmptyAndTrim(resourceNumber)));
+      } catch (NumberFormatException e) {
+        return FormValidation.error(Messages.error_couldNotParseToint());
+      }
+      if (minAsInt < 0
+        || minAsInt > numAsInt
+        || (Util.fixEmptyAndTrim(labelName) == null
+          && Util.fixEmptyAndTrim(resourceMatchScript) == null)) {
+        return FormValidation.error(Messages.error_invalidMinQuantity(minAsInt, numAsInt));
+      }
+      return FormValidation.ok();
+    }
+
+    public ListBoxModel doFillResourceSelectStrategyItems() {
+      ListBoxModel items = new ListBoxModel();
+      for (ResourceSelector selector : ResourceSelector.all()) {
+        items.add(selector.getName());
+      }
+      return items;
+    }
+
     @RequirePOST
     public AutoCompletionCandidates doAutoCompleteLabelName(
       @QueryParameter String value,
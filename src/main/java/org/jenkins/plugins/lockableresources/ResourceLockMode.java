@@ -0,0 +1,9 @@
+package org.jenkins.plugins.lockableresources;
+
+/** How a resource is held by the {@link LockStep}. */
+public enum ResourceLockMode {
+  /** Nobody else can hold the resource (default). */
+  EXCLUSIVE,
+  /** Other shared holders are allowed, exclusive ones have to wait. */
+  SHARED
+}
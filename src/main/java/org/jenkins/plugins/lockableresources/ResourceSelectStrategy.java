@@ -1,5 +1,11 @@
 package org.jenkins.plugins.lockableresources;
 
+/**
+ * The strategies available before {@link ResourceSelector} became an extension point.
+ *
+ * @deprecated use {@link ResourceSelector#byName(String)}
+ */
+@Deprecated
 public enum ResourceSelectStrategy {
   SEQUENTIAL,
   RANDOM
@@ -0,0 +1,197 @@
+package org.jenkins.plugins.lockableresources;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.ExtensionPoint;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.Collectors;
+
+/**
+ * Decides which of the resources able to satisfy a requirement get locked first, selected by the
+ * {@code resourceSelectStrategy} option of the {@code lock} step.
+ *
+ * <p>Implementations are called with the {@link LockableResourcesManager} lock held, for each
+ * requirement each time the queue is evaluated, so they have to be cheap. The usage counters of the
+ * resources are available from {@link LockableResourcesManager#getResourceUsage(String)}.
+ */
+public abstract class ResourceSelector implements ExtensionPoint {
+
+  /** Name given in {@code resourceSelectStrategy}, lower case. */
+  public abstract String getName();
+
+  /**
+   * Orders *candidates* by preference. The first free ones get locked.
+   *
+   * @param candidates the resources able to satisfy the requirement, in configuration order; the
+   *     list can be reordered in place
+   */
+  public abstract void order(List<LockableResource> candidates, LockableResourcesManager manager);
+
+  /**
+   * Orders *candidates* for a request of the job *jobName*. Selectors looking at who asks override
+   * this one, the default ignores the job.
+   *
+   * @param jobName full name of the job asking, null when not known
+   */
+  public void order(
+    List<LockableResource> candidates,
+    @CheckForNull String jobName,
+    LockableResourcesManager manager) {
+    order(candidates, manager);
+  }
+
+  public static ExtensionList<ResourceSelector> all() {
+    return ExtensionList.lookup(ResourceSelector.class);
+  }
+
+  /** Finds the selector with the given name, ignoring the case. */
+  @CheckForNull
+  public static ResourceSelector byName(@CheckForNull String name) {
+    if (name == null) {
+      return null;
+    }
+    for (ResourceSelector selector : all()) {
+      if (selector.getName().equalsIgnoreCase(name)) {
+        return selector;
+      }
+    }
+    return null;
+  }
+
+  /** Names of all selectors, for error messages. */
+  public static String getNames() {
+    return all().stream().map(ResourceSelector::getName).collect(Collectors.joining(", "));
+  }
+
+  /** Selector of a {@link ResourceSelectStrategy}, for callers of the older API. */
+  @CheckForNull
+  static ResourceSelector of(@CheckForNull ResourceSelectStrategy strategy) {
+    return strategy == null ? null : byName(strategy.name().toLowerCase(Locale.ENGLISH));
+  }
+
+  /** Configuration order, the default. */
+  @Extension(ordinal = 100)
+  public static class Sequential extends ResourceSelector {
+    @Override
+    public String getName() {
+      return "sequential";
+    }
+
+    @Override
+    public void order(List<LockableResource> candidates, LockableResourcesManager manager) {
+      // already in configuration order
+    }
+  }
+
+  /** Random order. */
+  @Extension(ordinal = 90)
+  public static class Random extends ResourceSelector {
+    @Override
+    public String getName() {
+      return "random";
+    }
+
+    @Override
+    public void order(List<LockableResource> candidates, LockableResourcesManager manager) {
+      Collections.shuffle(candidates);
+    }
+  }
+
+  /** The resource locked the longest time ago (or never) first. */
+  @Extension(ordinal = 80)
+  public static class LeastRecentlyUsed extends ResourceSelector {
+    @Override
+    public String getName() {
+      return "least_recently_used";
+    }
+
+    @Override
+    public void order(List<LockableResource> candidates, LockableResourcesManager manager) {
+      candidates.sort(
+        Comparator.comparingLong(
+          (LockableResource r) -> manager.getResourceUsage(r.getName()).getLockSequence()));
+    }
+  }
+
+  /** The resource locked for the shortest time in total first, spreads the wear. */
+  @Extension(ordinal = 70)
+  public static class LeastTotalHoldTime extends ResourceSelector {
+    @Override
+    public String getName() {
+      return "least_total_hold_time";
+    }
+
+    @Override
+    public void order(List<LockableResource> candidates, LockableResourcesManager manager) {
+      candidates.sort(
+        Comparator.comparingLong(
+          (LockableResource r) -> manager.getResourceUsage(r.getName()).getTotalHoldMillis()));
+    }
+  }
+
+  /**
+   * Configuration order, starting after the candidate locked last: consecutive locks go through
+   * the resources one after the other.
+   */
+  @Extension(ordinal = 60)
+  public static class RoundRobin extends ResourceSelector {
+    @Override
+    public String getName() {
+      return "round_robin";
+    }
+
+    @Override
+    public void order(List<LockableResource> candidates, LockableResourcesManager manager) {
+      int last = -1;
+      long lastSequence = 0;
+      for (int i = 0; i < candidates.size(); i++) {
+        long sequence = manager.getResourceUsage(candidates.get(i).getName()).getLockSequence();
+        if (sequence > lastSequence) {
+          lastSequence = sequence;
+          last = i;
+        }
+      }
+      Collections.rotate(candidates, -(last + 1));
+    }
+  }
+
+  /**
+   * The resources the same job locked last first, the most recent first, then the others in
+   * configuration order. Keeps a job on the device or VM with its warm caches, as long as that one
+   * is free.
+   */
+  @Extension(ordinal = 50)
+  public static class Affinity extends ResourceSelector {
+    @Override
+    public String getName() {
+      return "affinity";
+    }
+
+    @Override
+    public void order(List<LockableResource> candidates, LockableResourcesManager manager) {
+      // no job, configuration order
+    }
+
+    @Override
+    public void order(
+      List<LockableResource> candidates,
+      @CheckForNull String jobName,
+      LockableResourcesManager manager) {
+      List<String> lastLocked = manager.getLastLocked(jobName);
+      if (lastLocked.isEmpty()) {
+        return;
+      }
+      // stable, the resources never locked by the job keep their order
+      candidates.sort(
+        Comparator.comparingInt(
+          (LockableResource r) -> {
+            int index = lastLocked.indexOf(r.getName());
+            return index < 0 ? Integer.MAX_VALUE : index;
+          }));
+    }
+  }
+}
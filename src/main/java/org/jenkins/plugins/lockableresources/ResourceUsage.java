@@ -0,0 +1,49 @@
+package org.jenkins.plugins.lockableresources;
+
+import java.io.Serializable;
+
+/**
+ * Usage counters of a resource, kept by {@link LockableResourcesManager} for the {@link
+ * ResourceSelector}s spreading the locks over the resources.
+ */
+public final class ResourceUsage implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  private long lastLocked;
+  private long lockSequence;
+  private long totalHoldMillis;
+  private long lockCount;
+
+  /** Time the resource has been locked last, 0 if never. */
+  public long getLastLocked() {
+    return lastLocked;
+  }
+
+  /**
+   * Number of the last lock of this resource among all locks, higher is more recent. Tells apart
+   * locks done in the same millisecond.
+   */
+  public long getLockSequence() {
+    return lockSequence;
+  }
+
+  /** Sum of the time the resource has been locked exclusively. */
+  public long getTotalHoldMillis() {
+    return totalHoldMillis;
+  }
+
+  public long getLockCount() {
+    return lockCount;
+  }
+
+  void locked(long time, long sequence) {
+    lastLocked = time;
+    lockSequence = sequence;
+    lockCount++;
+  }
+
+  void released(long heldMillis) {
+    totalHoldMillis += heldMillis;
+  }
+}
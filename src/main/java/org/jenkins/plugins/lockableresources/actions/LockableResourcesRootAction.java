@@ -21,13 +21,19 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import javax.servlet.ServletException;
 import jenkins.model.Jenkins;
 import org.json.JSONObject;
 import org.jenkinsci.plugins.workflow.job.WorkflowJob;
 import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.jenkins.plugins.lockableresources.history.Utilization;
+import org.jenkins.plugins.lockableresources.history.UtilizationHistory;
+import org.jenkins.plugins.lockableresources.history.UtilizationSeries;
 import org.jenkins.plugins.lockableresources.queue.LockableResourcesStruct;
 import org.jenkins.plugins.lockableresources.queue.QueuedContextStruct;
+import org.jenkins.plugins.lockableresources.queue.WaitEstimate;
+import org.jenkins.plugins.lockableresources.LockableCapacityResource;
 import org.jenkins.plugins.lockableresources.LockableResource;
 import org.jenkins.plugins.lockableresources.LockableResourcesManager;
 import org.jenkins.plugins.lockableresources.Messages;
@@ -101,6 +107,27 @@ public class LockableResourcesRootAction implements RootAction {
     return LockableResourcesManager.get().getResources();
   }
 
+  @Exported
+  public List<LockableCapacityResource> getCapacityResources() {
+    return LockableResourcesManager.get().getCapacityResources();
+  }
+
+  /** Position and expected start of each waiting lock step, in queue order. */
+  @Exported
+  public List<WaitEstimate> getQueue() {
+    return LockableResourcesManager.get().getWaitEstimates();
+  }
+
+  /**
+   * Get position and expected start of a queued context.
+   *
+   * <p>Used by {@code actions/LockableResourcesRootAction/tableQueue/table.jelly}
+   */
+  @Restricted(NoExternalUse.class)
+  public WaitEstimate getWaitEstimate(QueuedContextStruct context) {
+    return LockableResourcesManager.get().getWaitEstimate(context);
+  }
+
   public LockableResource getResource(final String resourceName) {
     return LockableResourcesManager.get().fromName(resourceName);
   }
@@ -151,6 +178,29 @@ public class LockableResourcesRootAction implements RootAction {
     return LockableResourcesManager.get().getAllLabels().size();
   }
 
+  /**
+   * Get the utilization of a resource over the last *hours*.
+   *
+   * <p>Used by {@code actions/LockableResourcesRootAction/tableUtilization/table.jelly}
+   */
+  @Restricted(NoExternalUse.class)
+  public Utilization getResourceUtilization(String resourceName, int hours) {
+    return summarize(UtilizationHistory.get().getResource(resourceName), hours);
+  }
+
+  /** Get the utilization of all resources with *label* over the last *hours*. */
+  @Restricted(NoExternalUse.class)
+  public Utilization getLabelUtilization(String label, int hours) {
+    return summarize(UtilizationHistory.get().getLabel(label), hours);
+  }
+
+  private static Utilization summarize(@CheckForNull UtilizationSeries series, int hours) {
+    if (series == null) {
+      return Utilization.EMPTY;
+    }
+    return series.summarize(System.currentTimeMillis(), TimeUnit.HOURS.toMillis(hours));
+  }
+
   private Run<WorkflowJob, WorkflowRun> getJenkinsBuild(String job, String build) {
     Jenkins jenkins = Jenkins.get();
     if (job == null || job.trim().isEmpty() || build == null || build.trim().isEmpty())
@@ -408,7 +458,8 @@ public class LockableResourcesRootAction implements RootAction {
         String buildName = lr.getBuildName();
         Run<WorkflowJob, WorkflowRun> jenkinsBuild = getJenkinsBuild(job, build);
         if (jenkinsBuild != null) {
-          if (buildName.equals(jenkinsBuild.getFullDisplayName())) {
+          if (jenkinsBuild.getFullDisplayName().equals(buildName)
+            || lr.isSharedBy(jenkinsBuild.getExternalizableId())) {
             buildMatches = true;
           }
         }
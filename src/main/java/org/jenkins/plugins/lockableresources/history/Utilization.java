@@ -0,0 +1,38 @@
+package org.jenkins.plugins.lockableresources.history;
+
+/** Utilization of a resource or label over a time span. */
+public final class Utilization {
+
+  public static final Utilization EMPTY = new Utilization(0, 0, 0);
+
+  private final double busy;
+  private final double reserved;
+  private final int peakWaiting;
+
+  Utilization(double busy, double reserved, int peakWaiting) {
+    this.busy = busy;
+    this.reserved = reserved;
+    this.peakWaiting = peakWaiting;
+  }
+
+  /** Share of the time the resources were locked, 0-100. */
+  public int getBusyPercentage() {
+    return (int) Math.round(busy * 100);
+  }
+
+  /** Share of the time the resources were reserved, 0-100. */
+  public int getReservedPercentage() {
+    return (int) Math.round(reserved * 100);
+  }
+
+  /** Highest amount of lock requests waiting at the same time. */
+  public int getPeakWaiting() {
+    return peakWaiting;
+  }
+
+  @Override
+  public String toString() {
+    return getBusyPercentage() + "% busy, " + getReservedPercentage() + "% reserved, "
+      + peakWaiting + " waiting";
+  }
+}
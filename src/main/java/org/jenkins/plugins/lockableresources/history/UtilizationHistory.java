@@ -0,0 +1,179 @@
+package org.jenkins.plugins.lockableresources.history;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import jenkins.model.Jenkins;
+import org.jenkins.plugins.lockableresources.LockableResource;
+import org.jenkins.plugins.lockableresources.LockableResourcesManager;
+import org.jenkins.plugins.lockableresources.queue.LockableResourcesStruct;
+import org.jenkins.plugins.lockableresources.queue.QueuedContextStruct;
+
+/**
+ * Utilization history of all resources and labels, sampled by {@link UtilizationSampler}. Series
+ * of removed resources and labels are dropped, so the memory use only depends on the amount of
+ * resources and labels. The history is kept in a compact binary file next to the manager
+ * configuration.
+ */
+public final class UtilizationHistory {
+
+  private static final Logger LOGGER = Logger.getLogger(UtilizationHistory.class.getName());
+
+  static final long SAMPLE_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+  private static final int FORMAT_VERSION = 1;
+
+  private static UtilizationHistory instance;
+
+  private final Map<String, UtilizationSeries> resources = new ConcurrentHashMap<>();
+  private final Map<String, UtilizationSeries> labels = new ConcurrentHashMap<>();
+
+  UtilizationHistory() {}
+
+  public static synchronized UtilizationHistory get() {
+    if (instance == null) {
+      instance = new UtilizationHistory();
+      instance.load();
+    }
+    return instance;
+  }
+
+  @CheckForNull
+  public UtilizationSeries getResource(String name) {
+    return resources.get(name);
+  }
+
+  @CheckForNull
+  public UtilizationSeries getLabel(String label) {
+    return labels.get(label);
+  }
+
+  /** Records the current state of all resources and labels of *manager*. */
+  void sample(LockableResourcesManager manager, long now) {
+    Map<String, Integer> waitingByResource = new HashMap<>();
+    Map<String, Integer> waitingByLabel = new HashMap<>();
+    Map<String, int[]> labelState = new HashMap<>();
+    Set<String> names = new HashSet<>();
+    synchronized (manager) {
+      for (QueuedContextStruct entry : manager.getCurrentQueuedContext()) {
+        for (LockableResourcesStruct rs : entry.getResources()) {
+          if (rs.label != null && !rs.label.isEmpty()) {
+            waitingByLabel.merge(rs.label, 1, Integer::sum);
+          }
+          if (rs.required != null) {
+            for (LockableResource required : rs.required) {
+              waitingByResource.merge(required.getName(), 1, Integer::sum);
+            }
+          }
+        }
+      }
+      for (LockableResource resource : manager.getResources()) {
+        int busy = resource.isLocked() ? 1 : 0;
+        int reserved = resource.isReserved() ? 1 : 0;
+        names.add(resource.getName());
+        resources
+          .computeIfAbsent(resource.getName(), k -> new UtilizationSeries(SAMPLE_MILLIS))
+          .add(now, 1, busy, reserved, waitingByResource.getOrDefault(resource.getName(), 0));
+        for (String label : resource.getLabelNames()) {
+          int[] state = labelState.computeIfAbsent(label, k -> new int[3]);
+          state[0]++;
+          state[1] += busy;
+          state[2] += reserved;
+        }
+      }
+    }
+    for (Map.Entry<String, int[]> label : labelState.entrySet()) {
+      int[] state = label.getValue();
+      labels
+        .computeIfAbsent(label.getKey(), k -> new UtilizationSeries(SAMPLE_MILLIS))
+        .add(now, state[0], state[1], state[2], waitingByLabel.getOrDefault(label.getKey(), 0));
+    }
+    resources.keySet().retainAll(names);
+    labels.keySet().retainAll(labelState.keySet());
+  }
+
+  static File getFile() {
+    return new File(
+      Jenkins.get().getRootDir(), LockableResourcesManager.class.getName() + ".history.gz");
+  }
+
+  synchronized void save() {
+    File file = getFile();
+    File tmp = new File(file.getPath() + ".tmp");
+    try (OutputStream os = Files.newOutputStream(tmp.toPath());
+         DataOutputStream out =
+           new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(os)))) {
+      out.writeInt(FORMAT_VERSION);
+      write(out, resources);
+      write(out, labels);
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Failed to save " + file, e);
+      return;
+    }
+    try {
+      Files.move(
+        tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Failed to save " + file, e);
+    }
+  }
+
+  private static void write(DataOutputStream out, Map<String, UtilizationSeries> series)
+    throws IOException {
+    Map<String, UtilizationSeries> copy = new HashMap<>(series);
+    out.writeInt(copy.size());
+    for (Map.Entry<String, UtilizationSeries> entry : copy.entrySet()) {
+      out.writeUTF(entry.getKey());
+      entry.getValue().write(out);
+    }
+  }
+
+  private void load() {
+    File file = getFile();
+    if (!file.exists()) {
+      return;
+    }
+    try (InputStream is = Files.newInputStream(file.toPath());
+         DataInputStream in =
+           new DataInputStream(new BufferedInputStream(new GZIPInputStream(is)))) {
+      if (in.readInt() != FORMAT_VERSION) {
+        return;
+      }
+      read(in, resources);
+      read(in, labels);
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Failed to load " + file + ", the history starts over", e);
+      resources.clear();
+      labels.clear();
+    }
+  }
+
+  private static void read(DataInputStream in, Map<String, UtilizationSeries> series)
+    throws IOException {
+    int size = in.readInt();
+    for (int i = 0; i < size; i++) {
+      String name = in.readUTF();
+      UtilizationSeries s = new UtilizationSeries(SAMPLE_MILLIS);
+      s.read(in);
+      series.put(name, s);
+    }
+  }
+}
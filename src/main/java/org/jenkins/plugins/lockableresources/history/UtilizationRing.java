@@ -0,0 +1,208 @@
+package org.jenkins.plugins.lockableresources.history;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Fixed size ring of time slots of one resolution (minute, hour or day). The slot being filled is
+ * accumulated exactly; once the time moves on it is folded into one byte per value, so the memory
+ * use does not depend on the amount of samples.
+ */
+final class UtilizationRing {
+
+  private static final int SCALE = 255;
+
+  private final long slotMillis;
+  private final long samplesPerSlot;
+  private final byte[] busy;
+  private final byte[] reserved;
+  private final byte[] coverage;
+  private final char[] waiting;
+
+  /** Absolute number (time / slotMillis) of the slot being filled, -1 before the first sample. */
+  private long headSlot = -1;
+
+  private long accSamples;
+  private long accBusy;
+  private long accReserved;
+  private int accTicks;
+  private int accWaiting;
+
+  UtilizationRing(long slotMillis, int slots, long sampleMillis) {
+    this.slotMillis = slotMillis;
+    this.samplesPerSlot = Math.max(slotMillis / sampleMillis, 1);
+    this.busy = new byte[slots];
+    this.reserved = new byte[slots];
+    this.coverage = new byte[slots];
+    this.waiting = new char[slots];
+  }
+
+  long getSlotMillis() {
+    return slotMillis;
+  }
+
+  int size() {
+    return busy.length;
+  }
+
+  /**
+   * Adds one sample.
+   *
+   * @param weight amount of resources looked at (1 for a resource, the resources of a label)
+   * @param busyCount amount of them locked
+   * @param reservedCount amount of them reserved
+   * @param waiters lock requests waiting for them
+   */
+  void add(long time, int weight, int busyCount, int reservedCount, int waiters) {
+    long slot = time / slotMillis;
+    if (slot < headSlot) {
+      // clock went backwards, keep it in the current slot
+      slot = headSlot;
+    }
+    if (slot != headSlot) {
+      roll(slot);
+    }
+    accSamples += weight;
+    accBusy += busyCount;
+    accReserved += reservedCount;
+    accTicks++;
+    accWaiting = Math.max(accWaiting, waiters);
+  }
+
+  private void roll(long slot) {
+    if (headSlot >= 0) {
+      int head = index(headSlot);
+      busy[head] = quantize(accBusy, accSamples);
+      reserved[head] = quantize(accReserved, accSamples);
+      coverage[head] = quantize(accTicks, samplesPerSlot);
+      waiting[head] = (char) Math.min(accWaiting, Character.MAX_VALUE);
+      // slots without samples (controller down)
+      long skipped = Math.min(slot - headSlot - 1, size());
+      for (long s = headSlot + 1; s <= headSlot + skipped; s++) {
+        clear(index(s));
+      }
+    }
+    headSlot = slot;
+    clear(index(slot));
+    accSamples = 0;
+    accBusy = 0;
+    accReserved = 0;
+    accTicks = 0;
+    accWaiting = 0;
+  }
+
+  private void clear(int i) {
+    busy[i] = 0;
+    reserved[i] = 0;
+    coverage[i] = 0;
+    waiting[i] = 0;
+  }
+
+  private int index(long slot) {
+    return (int) (slot % size());
+  }
+
+  private static byte quantize(long value, long total) {
+    if (total <= 0) {
+      return 0;
+    }
+    return (byte) Math.round(Math.min((double) value / total, 1.0) * SCALE);
+  }
+
+  private static double unquantize(byte value) {
+    return (value & 0xff) / (double) SCALE;
+  }
+
+  /** Summarizes the slots covering the last *spanMillis* before *now*, the current one included. */
+  Utilization summarize(long now, long spanMillis) {
+    if (headSlot < 0) {
+      return Utilization.EMPTY;
+    }
+    long last = Math.max(now / slotMillis, headSlot);
+    long first = last - Math.min(Math.max(spanMillis / slotMillis, 1), size()) + 1;
+    double busySum = 0;
+    double reservedSum = 0;
+    double covered = 0;
+    int peakWaiting = 0;
+    for (long slot = Math.max(first, headSlot - size() + 1); slot <= headSlot; slot++) {
+      double slotCoverage;
+      double slotBusy;
+      double slotReserved;
+      int slotWaiting;
+      if (slot == headSlot) {
+        if (accSamples == 0) {
+          continue;
+        }
+        slotCoverage = Math.min((double) accTicks / samplesPerSlot, 1.0);
+        slotBusy = (double) accBusy / accSamples;
+        slotReserved = (double) accReserved / accSamples;
+        slotWaiting = accWaiting;
+      } else {
+        int i = index(slot);
+        slotCoverage = unquantize(coverage[i]);
+        slotBusy = unquantize(busy[i]);
+        slotReserved = unquantize(reserved[i]);
+        slotWaiting = waiting[i];
+      }
+      busySum += slotBusy * slotCoverage;
+      reservedSum += slotReserved * slotCoverage;
+      covered += slotCoverage;
+      peakWaiting = Math.max(peakWaiting, slotWaiting);
+    }
+    if (covered == 0) {
+      return Utilization.EMPTY;
+    }
+    return new Utilization(busySum / covered, reservedSum / covered, peakWaiting);
+  }
+
+  void write(DataOutputStream out) throws IOException {
+    out.writeLong(headSlot);
+    out.writeLong(accSamples);
+    out.writeLong(accBusy);
+    out.writeLong(accReserved);
+    out.writeInt(accTicks);
+    out.writeInt(accWaiting);
+    out.writeInt(size());
+    out.write(busy);
+    out.write(reserved);
+    out.write(coverage);
+    for (char w : waiting) {
+      out.writeChar(w);
+    }
+  }
+
+  void read(DataInputStream in) throws IOException {
+    long storedHead = in.readLong();
+    long storedSamples = in.readLong();
+    long storedBusy = in.readLong();
+    long storedReserved = in.readLong();
+    int storedTicks = in.readInt();
+    int storedWaiting = in.readInt();
+    int storedSize = in.readInt();
+    byte[] storedBusySlots = new byte[storedSize];
+    byte[] storedReservedSlots = new byte[storedSize];
+    byte[] storedCoverage = new byte[storedSize];
+    char[] storedWaitingSlots = new char[storedSize];
+    in.readFully(storedBusySlots);
+    in.readFully(storedReservedSlots);
+    in.readFully(storedCoverage);
+    for (int i = 0; i < storedSize; i++) {
+      storedWaitingSlots[i] = in.readChar();
+    }
+    if (storedSize != size()) {
+      // written with another ring size, start over
+      return;
+    }
+    headSlot = storedHead;
+    accSamples = storedSamples;
+    accBusy = storedBusy;
+    accReserved = storedReserved;
+    accTicks = storedTicks;
+    accWaiting = storedWaiting;
+    System.arraycopy(storedBusySlots, 0, busy, 0, storedSize);
+    System.arraycopy(storedReservedSlots, 0, reserved, 0, storedSize);
+    System.arraycopy(storedCoverage, 0, coverage, 0, storedSize);
+    System.arraycopy(storedWaitingSlots, 0, waiting, 0, storedSize);
+  }
+}
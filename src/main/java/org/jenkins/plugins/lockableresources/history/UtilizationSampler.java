@@ -0,0 +1,38 @@
+package org.jenkins.plugins.lockableresources.history;
+
+import hudson.Extension;
+import hudson.init.Terminator;
+import hudson.model.PeriodicWork;
+import java.util.concurrent.TimeUnit;
+import jenkins.util.Timer;
+import org.jenkins.plugins.lockableresources.LockableResourcesManager;
+
+/** Samples the state of the resources for {@link UtilizationHistory} and saves it regularly. */
+@Extension
+public class UtilizationSampler extends PeriodicWork {
+
+  private static final long SAVE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+  private long lastSave = System.currentTimeMillis();
+
+  @Override
+  public long getRecurrencePeriod() {
+    return UtilizationHistory.SAMPLE_MILLIS;
+  }
+
+  @Override
+  protected void doRun() {
+    long now = System.currentTimeMillis();
+    UtilizationHistory history = UtilizationHistory.get();
+    history.sample(LockableResourcesManager.get(), now);
+    if (now - lastSave >= SAVE_MILLIS) {
+      lastSave = now;
+      Timer.get().submit(history::save);
+    }
+  }
+
+  @Terminator
+  public static void saveOnShutdown() {
+    UtilizationHistory.get().save();
+  }
+}
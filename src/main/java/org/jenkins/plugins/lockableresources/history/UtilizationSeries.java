@@ -0,0 +1,55 @@
+package org.jenkins.plugins.lockableresources.history;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * History of one resource or label: minutes of the last day, hours of the last two weeks and days
+ * of the last year. Every sample goes to the three rings, the coarser ones are the downsampling.
+ */
+public final class UtilizationSeries {
+
+  static final int MINUTES = 24 * 60;
+  static final int HOURS = 14 * 24;
+  static final int DAYS = 365;
+
+  private final UtilizationRing minutes;
+  private final UtilizationRing hours;
+  private final UtilizationRing days;
+
+  UtilizationSeries(long sampleMillis) {
+    minutes = new UtilizationRing(TimeUnit.MINUTES.toMillis(1), MINUTES, sampleMillis);
+    hours = new UtilizationRing(TimeUnit.HOURS.toMillis(1), HOURS, sampleMillis);
+    days = new UtilizationRing(TimeUnit.DAYS.toMillis(1), DAYS, sampleMillis);
+  }
+
+  synchronized void add(long time, int weight, int busyCount, int reservedCount, int waiters) {
+    minutes.add(time, weight, busyCount, reservedCount, waiters);
+    hours.add(time, weight, busyCount, reservedCount, waiters);
+    days.add(time, weight, busyCount, reservedCount, waiters);
+  }
+
+  /** Utilization over the last *spanMillis*, from the finest ring covering the span. */
+  public synchronized Utilization summarize(long now, long spanMillis) {
+    for (UtilizationRing ring : new UtilizationRing[] {minutes, hours}) {
+      if (spanMillis <= ring.getSlotMillis() * ring.size()) {
+        return ring.summarize(now, spanMillis);
+      }
+    }
+    return days.summarize(now, spanMillis);
+  }
+
+  synchronized void write(DataOutputStream out) throws IOException {
+    minutes.write(out);
+    hours.write(out);
+    days.write(out);
+  }
+
+  synchronized void read(DataInputStream in) throws IOException {
+    minutes.read(in);
+    hours.read(in);
+    days.read(in);
+  }
+}
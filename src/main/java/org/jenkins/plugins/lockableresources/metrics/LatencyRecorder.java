@@ -0,0 +1,83 @@
+package org.jenkins.plugins.lockableresources.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations. Values are counted in buckets of exponentially growing width
+ * (8 buckets per power of two, like HdrHistogram with one significant digit), so recording is a
+ * couple of atomic increments and percentiles are accurate within 12.5%.
+ */
+public final class LatencyRecorder {
+
+  private static final int SUB_BUCKET_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+  /** Records one value, negative values count as 0. */
+  public void record(long value) {
+    long v = Math.max(value, 0);
+    buckets.incrementAndGet(bucketOf(v));
+    count.increment();
+    sum.add(v);
+    max.accumulate(v);
+  }
+
+  static int bucketOf(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  /** Highest value counted in *bucket*. */
+  static long highestValueOf(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+    long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+    return lowest + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+  }
+
+  /** Copies the current state, concurrent records may be partially included. */
+  public LatencySnapshot snapshot() {
+    long[] counts = new long[BUCKETS];
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      counts[i] = buckets.get(i);
+      total += counts[i];
+    }
+    long highest = max.get();
+    return new LatencySnapshot(
+      count.sum(),
+      sum.sum(),
+      highest,
+      percentile(counts, total, 0.50, highest),
+      percentile(counts, total, 0.95, highest),
+      percentile(counts, total, 0.99, highest));
+  }
+
+  private static long percentile(long[] counts, long total, double quantile, long highest) {
+    if (total == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(total * quantile);
+    long seen = 0;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return Math.min(highestValueOf(i), highest);
+      }
+    }
+    return highest;
+  }
+}
@@ -0,0 +1,51 @@
+package org.jenkins.plugins.lockableresources.metrics;
+
+/** Values of a {@link LatencyRecorder} at a point in time. */
+public final class LatencySnapshot {
+
+  private final long count;
+  private final long sum;
+  private final long max;
+  private final long p50;
+  private final long p95;
+  private final long p99;
+
+  LatencySnapshot(long count, long sum, long max, long p50, long p95, long p99) {
+    this.count = count;
+    this.sum = sum;
+    this.max = max;
+    this.p50 = p50;
+    this.p95 = p95;
+    this.p99 = p99;
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  public long getMean() {
+    return count == 0 ? 0 : sum / count;
+  }
+
+  public long getMax() {
+    return max;
+  }
+
+  public long getP50() {
+    return p50;
+  }
+
+  public long getP95() {
+    return p95;
+  }
+
+  public long getP99() {
+    return p99;
+  }
+
+  @Override
+  public String toString() {
+    return "count=" + count + ", mean=" + getMean() + ", p50=" + p50 + ", p95=" + p95 + ", p99="
+      + p99 + ", max=" + max;
+  }
+}
@@ -0,0 +1,158 @@
+package org.jenkins.plugins.lockableresources.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder events about locking. Disabled events cost an allocation the JIT usually
+ * removes, fields are only filled when the event is recorded.
+ */
+public final class LockEvents {
+
+  private static final String CATEGORY = "Lockable Resources";
+  private static final String PREFIX = "org.jenkins.plugins.lockableresources.";
+
+  private LockEvents() {}
+
+  @Name(PREFIX + "LockRequested")
+  @Label("Lock Requested")
+  @Category({"Jenkins", CATEGORY})
+  @StackTrace(false)
+  public static final class Requested extends Event {
+    @Label("Resources")
+    String resources;
+
+    @Label("Build")
+    String build;
+
+    public static void emit(String resources, String build) {
+      Requested event = new Requested();
+      if (event.shouldCommit()) {
+        event.resources = resources;
+        event.build = build;
+        event.commit();
+      }
+    }
+  }
+
+  @Name(PREFIX + "LockGranted")
+  @Label("Lock Granted")
+  @Category({"Jenkins", CATEGORY})
+  @StackTrace(false)
+  public static final class Granted extends Event {
+    @Label("Resources")
+    String resources;
+
+    @Label("Build")
+    String build;
+
+    @Label("Wait Duration")
+    @Timespan(Timespan.MILLISECONDS)
+    long waitDuration;
+
+    public static void emit(String resources, String build, long waitMillis) {
+      Granted event = new Granted();
+      if (event.shouldCommit()) {
+        event.resources = resources;
+        event.build = build;
+        event.waitDuration = waitMillis;
+        event.commit();
+      }
+    }
+  }
+
+  @Name(PREFIX + "LockReleased")
+  @Label("Lock Released")
+  @Category({"Jenkins", CATEGORY})
+  @StackTrace(false)
+  public static final class Released extends Event {
+    @Label("Resources")
+    String resources;
+
+    @Label("Build")
+    String build;
+
+    @Label("Hold Duration")
+    @Timespan(Timespan.MILLISECONDS)
+    long holdDuration;
+
+    public static void emit(String resources, String build, long holdMillis) {
+      Released event = new Released();
+      if (event.shouldCommit()) {
+        event.resources = resources;
+        event.build = build;
+        event.holdDuration = holdMillis;
+        event.commit();
+      }
+    }
+  }
+
+  /** Duration of an event wrapping a manager method is the time the manager monitor is held. */
+  @Name(PREFIX + "QueueEvaluation")
+  @Label("Queue Evaluation")
+  @Description("Unlock and hand over of resources to the queued lock steps")
+  @Category({"Jenkins", CATEGORY})
+  public static final class QueueEvaluation extends Event {
+    @Label("Resources")
+    String resources;
+
+    @Label("Queue Length")
+    int queueLength;
+
+    public void end(String resources, int queueLength) {
+      end();
+      if (shouldCommit()) {
+        this.resources = resources;
+        this.queueLength = queueLength;
+        commit();
+      }
+    }
+  }
+
+  @Name(PREFIX + "Save")
+  @Label("Save")
+  @Description("Write of the lockable resources configuration file or of the queue file")
+  @Category({"Jenkins", CATEGORY})
+  public static final class Save extends Event {
+    @Label("Resources")
+    int resourceCount;
+
+    @Label("Queue Length")
+    int queueLength;
+
+    public void end(int resourceCount, int queueLength) {
+      end();
+      if (shouldCommit()) {
+        this.resourceCount = resourceCount;
+        this.queueLength = queueLength;
+        commit();
+      }
+    }
+  }
+
+  @Name(PREFIX + "ScriptMatch")
+  @Label("Script Match")
+  @Description("Evaluation of a Groovy resource matching script on all resources")
+  @Category({"Jenkins", CATEGORY})
+  public static final class ScriptMatch extends Event {
+    @Label("Resources")
+    int resourceCount;
+
+    @Label("Matched")
+    int matched;
+
+    public void end(int resourceCount, int matched) {
+      end();
+      if (shouldCommit()) {
+        this.resourceCount = resourceCount;
+        this.matched = matched;
+        commit();
+      }
+    }
+  }
+}
@@ -0,0 +1,119 @@
+package org.jenkins.plugins.lockableresources.metrics;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.jenkins.plugins.lockableresources.LockableResourcesManager;
+
+/**
+ * Counters and histograms about locking. Recording only touches lock-free adders and {@link
+ * LatencyRecorder}s, so it can be done on the hot paths, also under the manager lock. The values
+ * are published over JMX and through the Metrics plugin when installed.
+ */
+public final class LockMetrics implements LockMetricsMXBean {
+
+  private static final Logger LOGGER = Logger.getLogger(LockMetrics.class.getName());
+
+  private static final LockMetrics INSTANCE = new LockMetrics();
+
+  static final String OBJECT_NAME = "org.jenkins.plugins.lockableresources:type=LockMetrics";
+
+  private final LongAdder locks = new LongAdder();
+  private final LongAdder unlocks = new LongAdder();
+  private final LatencyRecorder waitTime = new LatencyRecorder();
+  private final LatencyRecorder holdTime = new LatencyRecorder();
+  private final LatencyRecorder saveTime = new LatencyRecorder();
+  private final LatencyRecorder canRunTime = new LatencyRecorder();
+
+  private LockMetrics() {}
+
+  public static LockMetrics get() {
+    return INSTANCE;
+  }
+
+  /** A lock has been acquired without waiting in the pipeline queue (e.g. by a freestyle build). */
+  public void acquired() {
+    locks.increment();
+  }
+
+  /** A lock step got its resources after *waitMillis*. */
+  public void acquired(long waitMillis) {
+    locks.increment();
+    waitTime.record(waitMillis);
+  }
+
+  /** A lock held for *holdMillis* has been released. */
+  public void released(long holdMillis) {
+    unlocks.increment();
+    holdTime.record(holdMillis);
+  }
+
+  public void saved(long nanos) {
+    saveTime.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+  }
+
+  public void dispatched(long nanos) {
+    canRunTime.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+  }
+
+  @Override
+  public long getLocks() {
+    return locks.sum();
+  }
+
+  @Override
+  public long getUnlocks() {
+    return unlocks.sum();
+  }
+
+  @Override
+  public int getQueueDepth() {
+    return LockableResourcesManager.get().getCurrentQueuedContext().size();
+  }
+
+  @Override
+  public Map<String, Integer> getQueueDepthByLabel() {
+    return LockableResourcesManager.get().getQueueDepthByLabel();
+  }
+
+  @Override
+  public LatencySnapshot getWaitTimeMillis() {
+    return waitTime.snapshot();
+  }
+
+  @Override
+  public LatencySnapshot getHoldTimeMillis() {
+    return holdTime.snapshot();
+  }
+
+  @Override
+  public LatencySnapshot getSaveTimeMicros() {
+    return saveTime.snapshot();
+  }
+
+  @Override
+  public LatencySnapshot getCanRunTimeMicros() {
+    return canRunTime.snapshot();
+  }
+
+  @Initializer(after = InitMilestone.EXTENSIONS_AUGMENTED)
+  public static void registerMBean() {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(OBJECT_NAME);
+      if (!server.isRegistered(name)) {
+        server.registerMBean(INSTANCE, name);
+      }
+    } catch (JMException | RuntimeException e) {
+      LOGGER.log(Level.WARNING, "Cannot register the lockable resources metrics in JMX", e);
+    }
+  }
+}
@@ -0,0 +1,31 @@
+package org.jenkins.plugins.lockableresources.metrics;
+
+import java.util.Map;
+
+/** JMX view of {@link LockMetrics}. */
+public interface LockMetricsMXBean {
+
+  /** Locks acquired since startup. */
+  long getLocks();
+
+  /** Locks released since startup. */
+  long getUnlocks();
+
+  /** Pipeline lock steps waiting for resources. */
+  int getQueueDepth();
+
+  /** Pipeline lock steps waiting for resources, per requested label. */
+  Map<String, Integer> getQueueDepthByLabel();
+
+  /** Time pipeline lock steps waited for their resources, in milliseconds. */
+  LatencySnapshot getWaitTimeMillis();
+
+  /** Time resources were held, in milliseconds. */
+  LatencySnapshot getHoldTimeMillis();
+
+  /** Time spent writing the manager configuration file, in microseconds. */
+  LatencySnapshot getSaveTimeMicros();
+
+  /** Time spent by the queue dispatcher deciding whether a freestyle item can run, in microseconds. */
+  LatencySnapshot getCanRunTimeMicros();
+}
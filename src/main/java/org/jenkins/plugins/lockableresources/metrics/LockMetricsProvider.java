@@ -0,0 +1,105 @@
+package org.jenkins.plugins.lockableresources.metrics;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricSet;
+import com.google.common.base.Suppliers;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import jenkins.metrics.api.MetricProvider;
+import jenkins.metrics.api.Metrics;
+
+/**
+ * Publishes {@link LockMetrics} through the Metrics plugin, when it is installed. The values read
+ * together by a reporter are computed once: a histogram snapshot and the queue depths are kept for
+ * {@link #CYCLE_MILLIS}.
+ */
+@Extension(optional = true)
+public class LockMetricsProvider extends MetricProvider {
+
+  private static final String PREFIX = "lockable-resources";
+
+  /** Time a reporter takes to read all gauges, at most. */
+  private static final long CYCLE_MILLIS = 1000L;
+
+  private final MetricSet metricSet;
+
+  /** Labels having a {@code queue.depth.<label>} gauge, the set of the Metrics plugin is fixed. */
+  private final Set<String> labelGauges = new HashSet<>();
+
+  private final Supplier<Map<String, Integer>> depthByLabel;
+
+  public LockMetricsProvider() {
+    LockMetrics metrics = LockMetrics.get();
+    depthByLabel =
+      Suppliers.memoizeWithExpiration(
+        () -> registerLabelGauges(metrics.getQueueDepthByLabel()),
+        CYCLE_MILLIS,
+        TimeUnit.MILLISECONDS);
+    Map<String, Metric> all = new HashMap<>();
+    all.put(MetricRegistry.name(PREFIX, "locks"), (Gauge<Long>) metrics::getLocks);
+    all.put(MetricRegistry.name(PREFIX, "unlocks"), (Gauge<Long>) metrics::getUnlocks);
+    all.put(
+      MetricRegistry.name(PREFIX, "queue", "depth"),
+      (Gauge<Integer>)
+        () -> {
+          // new labels get their gauge when the reporter comes by
+          depthByLabel.get();
+          return metrics.getQueueDepth();
+        });
+    addSnapshot(all, "wait", "millis", metrics::getWaitTimeMillis);
+    addSnapshot(all, "hold", "millis", metrics::getHoldTimeMillis);
+    addSnapshot(all, "save", "micros", metrics::getSaveTimeMicros);
+    addSnapshot(all, "canRun", "micros", metrics::getCanRunTimeMicros);
+    this.metricSet = () -> all;
+  }
+
+  /**
+   * Registers a gauge for each label not seen yet, they stay registered (at 0) once the queue for
+   * the label is empty.
+   */
+  private Map<String, Integer> registerLabelGauges(Map<String, Integer> depths) {
+    for (String label : depths.keySet()) {
+      if (labelGauges.add(label)) {
+        Metrics.metricRegistry()
+          .register(
+            MetricRegistry.name(PREFIX, "queue", "depth", label),
+            (Gauge<Integer>) () -> depthByLabel.get().getOrDefault(label, 0));
+      }
+    }
+    return depths;
+  }
+
+  private static void addSnapshot(
+    Map<String, Metric> all, String name, String unit, Supplier<LatencySnapshot> snapshot) {
+    // one snapshot for the six gauges
+    Supplier<LatencySnapshot> cycle =
+      Suppliers.memoizeWithExpiration(snapshot::get, CYCLE_MILLIS, TimeUnit.MILLISECONDS);
+    Map<String, Function<LatencySnapshot, Long>> values = new HashMap<>();
+    values.put("count", LatencySnapshot::getCount);
+    values.put("mean", LatencySnapshot::getMean);
+    values.put("p50", LatencySnapshot::getP50);
+    values.put("p95", LatencySnapshot::getP95);
+    values.put("p99", LatencySnapshot::getP99);
+    values.put("max", LatencySnapshot::getMax);
+    for (Map.Entry<String, Function<LatencySnapshot, Long>> value : values.entrySet()) {
+      all.put(
+        MetricRegistry.name(PREFIX, name, unit, value.getKey()),
+        (Gauge<Long>) () -> value.getValue().apply(cycle.get()));
+    }
+  }
+
+  @NonNull
+  @Override
+  public MetricSet getMetricSet() {
+    return metricSet;
+  }
+}
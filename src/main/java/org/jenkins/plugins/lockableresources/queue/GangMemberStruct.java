@@ -0,0 +1,40 @@
+package org.jenkins.plugins.lockableresources.queue;
+
+import java.util.Map;
+
+/**
+ * A freestyle queue item getting its resources together with the other items of its gang, see
+ * {@link org.jenkins.plugins.lockableresources.LockableResourcesManager#queueGang}.
+ */
+public class GangMemberStruct {
+
+  public LockableResourcesStruct resources;
+  public long queueItemId;
+  /** Full name of the project of the item. */
+  public String queueItemProject;
+  /** Amount of resources to take, 0 means all candidates. */
+  public int number;
+  public Map<String, Object> params;
+  public long inQueueSince;
+
+  public GangMemberStruct(
+    LockableResourcesStruct resources,
+    long queueItemId,
+    String queueItemProject,
+    int number,
+    Map<String, Object> params,
+    long inQueueSince) {
+    this.resources = resources;
+    this.queueItemId = queueItemId;
+    this.queueItemProject = queueItemProject;
+    this.number = number;
+    this.params = params;
+    this.inQueueSince = inQueueSince;
+  }
+
+  @Override
+  public String toString() {
+    return "GangMemberStruct [queueItemProject=" + queueItemProject + ", queueItemId=" + queueItemId
+      + ", resources=" + resources + ", number=" + number + "]";
+  }
+}
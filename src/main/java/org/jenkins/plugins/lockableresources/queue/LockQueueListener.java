@@ -0,0 +1,19 @@
+package org.jenkins.plugins.lockableresources.queue;
+
+import hudson.Extension;
+import hudson.model.Queue;
+import hudson.model.queue.QueueListener;
+import org.jenkins.plugins.lockableresources.LockableResourcesManager;
+
+/** Keeps the freestyle items waiting for resources in sync with the Jenkins queue. */
+@Extension
+public class LockQueueListener extends QueueListener {
+
+  @Override
+  public void onLeft(Queue.LeftItem li) {
+    LockableResourcesManager.get().forgetWaitingItem(li.getId());
+    if (li.isCancelled()) {
+      LockableResourcesManager.get().unqueueGangMember(li.getId());
+    }
+  }
+}
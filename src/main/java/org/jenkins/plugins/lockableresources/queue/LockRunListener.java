@@ -12,7 +12,10 @@ import edu.umd.cs.findbugs.annotations.NonNull;
 import hudson.Extension;
 import hudson.matrix.MatrixBuild;
 import hudson.model.AbstractBuild;
+import hudson.model.CauseOfInterruption;
+import hudson.model.Executor;
 import hudson.model.Job;
+import hudson.model.Result;
 import hudson.model.Run;
 import hudson.model.StringParameterValue;
 import hudson.model.TaskListener;
@@ -26,6 +29,9 @@ import org.jenkins.plugins.lockableresources.LockableResource;
 import org.jenkins.plugins.lockableresources.LockableResourcesManager;
 import org.jenkins.plugins.lockableresources.actions.LockedResourcesBuildAction;
 import org.jenkins.plugins.lockableresources.actions.ResourceVariableNameAction;
+import org.jenkins.plugins.lockableresources.metrics.LockEvents;
+import org.jenkins.plugins.lockableresources.metrics.LockMetrics;
+import org.jenkins.plugins.lockableresources.trace.LockTraceRecorder;
 
 @Extension
 public class LockRunListener extends RunListener<Run<?, ?>> {
@@ -46,6 +52,32 @@ public class LockRunListener extends RunListener<Run<?, ?>> {
       List<LockableResource> required = new ArrayList<>();
         LockableResourcesStruct resources = Utils.requiredResources(proj);
 
+        if (resources != null && resources.capacityName != null) {
+          if (LockableResourcesManager.get().lockQueuedCapacity(resources, build)) {
+            listener.getLogger().printf("%s acquired %d permit(s) of %s%n",
+              LOG_PREFIX, resources.capacityPermits, resources.capacityName);
+            LOGGER.fine(build.getFullDisplayName() + " acquired "
+              + resources.capacityPermits + " permit(s) of " + resources.capacityName);
+          } else {
+            listener.getLogger().printf("%s failed to acquire %d permit(s) of %s%n",
+              LOG_PREFIX, resources.capacityPermits, resources.capacityName);
+            LOGGER.warning(build.getFullDisplayName() + " failed to acquire "
+              + resources.capacityPermits + " permit(s) of " + resources.capacityName);
+            // running without the permits would break the capacity guarantee
+            Executor executor = build.getExecutor();
+            if (executor != null) {
+              executor.interrupt(Result.FAILURE, new CapacityUnavailable(resources.capacityName));
+            }
+            return;
+          }
+          if (resources.required.isEmpty()
+            && resources.label.isEmpty()
+            && resources.getResourceMatchScript() == null) {
+            // nothing else to lock
+            return;
+          }
+        }
+
         if (resources != null) {
           if (resources.requiredNumber != null || !resources.label.isEmpty() || resources.getResourceMatchScript() != null) {
             required.addAll(LockableResourcesManager.get().
@@ -58,6 +90,10 @@ public class LockRunListener extends RunListener<Run<?, ?>> {
           required = new ArrayList<>(new LinkedHashSet<>(required));
 
           if (LockableResourcesManager.get().lock(required, build, null)) {
+            LockMetrics.get().acquired();
+            LockEvents.Granted.emit(required.toString(), build.getExternalizableId(), 0);
+            LockTraceRecorder.granted(
+              "queue-" + build.getQueueId(), LockableResourcesManager.getResourcesNames(required));
             build.addAction(LockedResourcesBuildAction
               .fromResources(required));
             listener.getLogger().printf("%s acquired lock on %s%n",
@@ -113,12 +149,23 @@ public class LockRunListener extends RunListener<Run<?, ?>> {
     }
     if (!resourcesToUnlock.isEmpty()) {
       LockableResourcesManager.get().unlock(resourcesToUnlock, build);
+      long holdMillis = System.currentTimeMillis() - build.getStartTimeInMillis();
+      LockMetrics.get().released(holdMillis);
+      LockEvents.Released.emit(resourcesToUnlock.toString(), build.getExternalizableId(), holdMillis);
+      LockTraceRecorder.released(
+        "queue-" + build.getQueueId(), LockableResourcesManager.getResourcesNames(resourcesToUnlock));
       listener.getLogger().printf("%s released lock on %s%n",
         LOG_PREFIX, resourcesToUnlock);
       LOGGER.fine(build.getFullDisplayName() + " released lock on "
         + resourcesToUnlock);
     }
 
+    // permits of capacity resources are never kept after the build
+    if (LockableResourcesManager.get().releaseCapacity(build)) {
+      listener.getLogger().printf("%s released capacity permits%n", LOG_PREFIX);
+      LOGGER.fine(build.getFullDisplayName() + " released capacity permits");
+    }
+
   }
 
   @Override
@@ -135,6 +182,24 @@ public class LockRunListener extends RunListener<Run<?, ?>> {
       LOGGER.fine(build.getFullDisplayName() + " released lock on "
         + required);
     }
+    if (LockableResourcesManager.get().releaseCapacity(build)) {
+      LOGGER.fine(build.getFullDisplayName() + " released capacity permits");
+    }
   }
 
+  /** Interrupts a freestyle build which did not get the capacity permits promised to it. */
+  public static final class CapacityUnavailable extends CauseOfInterruption {
+    private static final long serialVersionUID = 1L;
+
+    private final String capacityName;
+
+    public CapacityUnavailable(String capacityName) {
+      this.capacityName = capacityName;
+    }
+
+    @Override
+    public String getShortDescription() {
+      return "Could not take the permits of capacity resource [" + capacityName + "]";
+    }
+  }
 }
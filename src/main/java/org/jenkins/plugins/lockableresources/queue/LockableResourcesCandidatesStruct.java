@@ -7,18 +7,26 @@ public class LockableResourcesCandidatesStruct {
 
   public List<LockableResource> candidates;
   public int requiredAmount;
+  /** Amount good enough to proceed, less than {@link #requiredAmount} for elastic quantities. */
+  public int minimumAmount;
   public List<LockableResource> selected;
 
   public LockableResourcesCandidatesStruct(List<LockableResource> candidates, int requiredAmount) {
+    this(candidates, requiredAmount, requiredAmount);
+  }
+
+  public LockableResourcesCandidatesStruct(
+    List<LockableResource> candidates, int requiredAmount, int minimumAmount) {
     this.candidates = candidates;
     this.requiredAmount = requiredAmount;
+    this.minimumAmount = Math.min(minimumAmount, requiredAmount);
   }
 
   @Override
   public String toString()
   {
     return "LockableResourcesCandidatesStruct [candidates=" + candidates + ", requiredAmount=" + requiredAmount
-      + ", selected=" + selected + "]";
+      + ", minimumAmount=" + minimumAmount + ", selected=" + selected + "]";
   }
 
 }
@@ -12,24 +12,38 @@ import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import hudson.Extension;
+import hudson.matrix.DefaultMatrixExecutionStrategyImpl;
+import hudson.matrix.MatrixBuild;
 import hudson.matrix.MatrixConfiguration;
+import hudson.matrix.MatrixExecutionStrategy;
 import hudson.matrix.MatrixProject;
+import hudson.matrix.ParentBuildAction;
+import hudson.model.Cause;
 import hudson.model.Job;
+import hudson.model.Node;
 import hudson.model.ParameterValue;
 import hudson.model.ParametersAction;
 import hudson.model.Queue;
 import hudson.model.queue.CauseOfBlockage;
 import hudson.model.queue.QueueTaskDispatcher;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import jenkins.model.Jenkins;
 import org.jenkins.plugins.lockableresources.LockableResource;
 import org.jenkins.plugins.lockableresources.LockableResourcesManager;
+import org.jenkins.plugins.lockableresources.RequiredResourcesProperty;
+import org.jenkins.plugins.lockableresources.metrics.LockMetrics;
+import org.jenkins.plugins.lockableresources.trace.LockTraceRecorder;
 import org.jenkinsci.plugins.scriptsecurity.sandbox.groovy.SecureGroovyScript;
 import org.kohsuke.accmod.Restricted;
 import org.kohsuke.accmod.restrictions.NoExternalUse;
@@ -45,6 +59,38 @@ public class LockableResourcesQueueTaskDispatcher extends QueueTaskDispatcher {
 
   @Override
   public CauseOfBlockage canRun(Queue.Item item) {
+    long start = System.nanoTime();
+    try {
+      return checkCanRun(item);
+    } finally {
+      LockMetrics.get().dispatched(System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Keeps freestyle builds off the nodes which are not agents of their resources, see {@link
+   * LockableResource#getAgentLabel()}. The resources were queued for the item by {@link
+   * #canRun(Queue.Item)}.
+   */
+  @Override
+  public CauseOfBlockage canTake(Node node, Queue.BuildableItem item) {
+    if (item.task instanceof MatrixProject) return null;
+
+    Job<?, ?> project = Utils.getProject(item);
+    if (project instanceof MatrixConfiguration) {
+      project = (Job<?, ?>) project.getParent();
+    }
+    // called for each node, skip the scan of the resources for the other jobs
+    if (project == null || project.getProperty(RequiredResourcesProperty.class) == null) {
+      return null;
+    }
+
+    LockableResource resource =
+      LockableResourcesManager.get().findAgentMismatch(item.getId(), node);
+    return resource == null ? null : new BecauseNotResourceAgent(resource);
+  }
+
+  private CauseOfBlockage checkCanRun(Queue.Item item) {
     // Skip locking for multiple configuration projects,
     // only the child jobs will actually lock resources.
     if (item.task instanceof MatrixProject) return null;
@@ -53,10 +99,37 @@ public class LockableResourcesQueueTaskDispatcher extends QueueTaskDispatcher {
     if (project == null) return null;
 
     LockableResourcesStruct resources = Utils.requiredResources(project);
-    if (resources == null
-      || (resources.required.isEmpty()
+    if (resources == null) {
+      return null;
+    }
+    LockTraceRecorder.requested(
+      "queue-" + item.getId(),
+      item.getInQueueSince(),
+      Collections.singletonList(resources),
+      resources.priority);
+
+    if (resources.capacityName != null) {
+      if (!LockableResourcesManager.get().queueCapacity(resources, item.getId())) {
+        LOGGER.finest(project.getName() + " waiting for permits of " + resources.capacityName);
+        return new BecauseResourcesLocked(resources);
+      }
+      LOGGER.finest(project.getName() + " reserved permits of " + resources.capacityName);
+    }
+
+    CauseOfBlockage blocked = checkResources(item, project, resources);
+    if (blocked != null && resources.capacityName != null) {
+      // no hold and wait: others get the permits while the item waits for its resources
+      LockableResourcesManager.get().unqueueCapacity(resources, item.getId());
+    }
+    return blocked;
+  }
+
+  /** Queues the resources (not the capacity permits) of *item*, null when it got them. */
+  private CauseOfBlockage checkResources(
+    Queue.Item item, Job<?, ?> project, LockableResourcesStruct resources) {
+    if (resources.required.isEmpty()
       && resources.label.isEmpty()
-      && resources.getResourceMatchScript() == null)) {
+      && resources.getResourceMatchScript() == null) {
       return null;
     }
 
@@ -69,45 +142,31 @@ public class LockableResourcesQueueTaskDispatcher extends QueueTaskDispatcher {
 
     LOGGER.finest(project.getName() + " trying to get resources with these details: " + resources);
 
+    if (isMatrixGang(project) && !LockableResourcesManager.get().hasQueuedResources(item.getId())) {
+      CauseOfBlockage gangBlocked = queueGang(item, (MatrixConfiguration) project);
+      if (gangBlocked != null) {
+        return gangBlocked;
+      }
+      // the resources of this item are queued now, picked up below
+    }
+
     if (resourceNumber > 0
       || !resources.label.isEmpty()
       || resources.getResourceMatchScript() != null) {
-      Map<String, Object> params = new HashMap<>();
-
-      // Inject Build Parameters, if possible and applicable to the "item" type
-      try {
-        List<ParametersAction> itemparams = item.getActions(ParametersAction.class);
-        for (ParametersAction actparam : itemparams) {
-          if (actparam == null) continue;
-          for (ParameterValue p : actparam.getParameters()) {
-            if (p == null) continue;
-            params.put(p.getName(), p.getValue());
-          }
-        }
-      } catch (Exception ex) {
-        // Report the error and go on with the build -
-        // perhaps this item is not a build with args, etc.
-        // Note this is likely to fail a bit later in such case.
-        if (LOGGER.isLoggable(Level.WARNING)) {
-          if (lastLogged.getIfPresent(item.getId()) == null) {
-            lastLogged.put(item.getId(), new Date());
-            String itemName = project.getFullName() + " (id=" + item.getId() + ")";
-            LOGGER.log(Level.WARNING, "Failed to get build params from item " + itemName, ex);
-          }
-        }
-      }
-
-      if (item.task instanceof MatrixConfiguration) {
-        MatrixConfiguration matrix = (MatrixConfiguration) item.task;
-        params.putAll(matrix.getCombination());
-      }
+      Map<String, Object> params = getParams(item, project);
 
       final List<LockableResource> selected;
       try {
         selected =
           LockableResourcesManager.get()
             .tryQueue(
-              resources, item.getId(), project.getFullName(), resourceNumber, params, LOGGER);
+              resources,
+              item.getId(),
+              project.getFullName(),
+              resourceNumber,
+              params,
+              item.getInQueueSince(),
+              LOGGER);
       } catch (ExecutionException ex) {
         Throwable toReport = ex.getCause();
         if (toReport == null) { // We care about the cause only
@@ -130,31 +189,253 @@ public class LockableResourcesQueueTaskDispatcher extends QueueTaskDispatcher {
         return null;
       } else {
         LOGGER.finest(project.getName() + " waiting for resources");
-        return new BecauseResourcesLocked(resources);
+        return waitingFor(item, resources);
       }
 
     } else {
+      if (LockableResourcesManager.get()
+        .isOutranked(resources, item.getId(), item.getInQueueSince())) {
+        LOGGER.finest(project.getName() + " waits for items with a higher priority");
+        return waitingFor(item, resources);
+      }
       if (LockableResourcesManager.get()
         .queue(resources.required, item.getId(), project.getFullDisplayName())) {
         LOGGER.finest(project.getName() + " reserved resources " + resources.required);
         return null;
       } else {
         LOGGER.finest(project.getName() + " waiting for resources " + resources.required);
-        return new BecauseResourcesLocked(resources);
+        return waitingFor(item, resources);
+      }
+    }
+  }
+
+  /** Blocks *item* waiting for *resources*, with an estimate of the wait. */
+  private static CauseOfBlockage waitingFor(Queue.Item item, LockableResourcesStruct resources) {
+    LockableResourcesManager.get().updateWaitEstimate(item.getId(), resources);
+    return new BecauseResourcesLocked(resources, item.getId());
+  }
+
+  private Map<String, Object> getParams(Queue.Item item, Job<?, ?> project) {
+    Map<String, Object> params = new HashMap<>();
+
+    // Inject Build Parameters, if possible and applicable to the "item" type
+    try {
+      List<ParametersAction> itemparams = item.getActions(ParametersAction.class);
+      for (ParametersAction actparam : itemparams) {
+        if (actparam == null) continue;
+        for (ParameterValue p : actparam.getParameters()) {
+          if (p == null) continue;
+          params.put(p.getName(), p.getValue());
+        }
       }
+    } catch (Exception ex) {
+      // Report the error and go on with the build -
+      // perhaps this item is not a build with args, etc.
+      // Note this is likely to fail a bit later in such case.
+      if (LOGGER.isLoggable(Level.WARNING)) {
+        if (lastLogged.getIfPresent(item.getId()) == null) {
+          lastLogged.put(item.getId(), new Date());
+          String itemName = project.getFullName() + " (id=" + item.getId() + ")";
+          LOGGER.log(Level.WARNING, "Failed to get build params from item " + itemName, ex);
+        }
+      }
+    }
+
+    if (item.task instanceof MatrixConfiguration) {
+      MatrixConfiguration matrix = (MatrixConfiguration) item.task;
+      params.putAll(matrix.getCombination());
+    }
+    return params;
+  }
+
+  private static boolean isMatrixGang(Job<?, ?> project) {
+    if (!(project instanceof MatrixConfiguration)) {
+      return false;
+    }
+    RequiredResourcesProperty property =
+      ((MatrixConfiguration) project).getParent().getProperty(RequiredResourcesProperty.class);
+    return property != null && property.isMatrixGang();
+  }
+
+  /**
+   * Queues the resources of all configurations the matrix build of *item* runs next, or none, see
+   * {@link LockableResourcesManager#queueGang}. Configurations which started already are left
+   * out, they got their resources.
+   *
+   * @return null when the resources have been queued, or when the build does not run its
+   *     configurations together
+   */
+  private CauseOfBlockage queueGang(Queue.Item item, MatrixConfiguration configuration) {
+    MatrixProject parent = configuration.getParent();
+    MatrixBuild build = getParentBuild(item, parent);
+    Set<MatrixConfiguration> gang = build == null ? null : getGang(build);
+    if (gang == null) {
+      // each configuration gets its resources on its own
+      return null;
+    }
+
+    Map<MatrixConfiguration, Queue.Item> queued = new HashMap<>();
+    for (Queue.Item other : Jenkins.get().getQueue().getItems()) {
+      if (other.task instanceof MatrixConfiguration && gang.contains(other.task)) {
+        queued.put((MatrixConfiguration) other.task, other);
+      }
+    }
+    if (queued.size() < gang.size()) {
+      LOGGER.finest(parent.getName() + " waiting for " + gang.size() + " configurations to queue");
+      return new BecauseMatrixGangWaiting(gang.size());
+    }
+
+    List<GangMemberStruct> members = new ArrayList<>();
+    for (Queue.Item other : queued.values()) {
+      if (LockableResourcesManager.get().hasQueuedResources(other.getId())) {
+        continue;
+      }
+      MatrixConfiguration sibling = (MatrixConfiguration) other.task;
+      LockableResourcesStruct resources = Utils.requiredResources(sibling);
+      if (resources == null) {
+        continue;
+      }
+      int number;
+      try {
+        number = Integer.parseInt(resources.requiredNumber);
+      } catch (NumberFormatException e) {
+        number = 0;
+      }
+      members.add(
+        new GangMemberStruct(
+          resources,
+          other.getId(),
+          sibling.getFullName(),
+          number,
+          getParams(other, sibling),
+          other.getInQueueSince()));
+    }
+    if (members.isEmpty()) {
+      return null;
+    }
+    try {
+      if (LockableResourcesManager.get().queueGang(members)) {
+        LOGGER.finest(parent.getName() + " reserved resources of " + members.size() + " configurations");
+        return null;
+      }
+    } catch (ExecutionException ex) {
+      Throwable toReport = ex.getCause() != null ? ex.getCause() : ex;
+      LOGGER.log(Level.WARNING, "Failed to queue the configurations of " + parent.getFullName(), toReport);
+      return new BecauseResourcesQueueFailed(members.get(0).resources, toReport);
+    }
+    LOGGER.finest(parent.getName() + " waiting for the resources of " + members.size() + " configurations");
+    return new BecauseMatrixGangWaiting(members.size());
+  }
+
+  /**
+   * The matrix build which scheduled *item*. {@link ParentBuildAction} only marks the item as
+   * scheduled by a matrix build, the build is the upstream build of the item, else the last build
+   * of *parent* (like {@link MatrixConfiguration#getNextBuildNumber()}).
+   */
+  private static MatrixBuild getParentBuild(Queue.Item item, MatrixProject parent) {
+    if (item.getAction(ParentBuildAction.class) == null) {
+      // scheduled on its own, not part of a matrix build
+      return null;
+    }
+    MatrixBuild build = null;
+    for (Cause cause : item.getCauses()) {
+      if (cause instanceof Cause.UpstreamCause
+        && ((Cause.UpstreamCause) cause).pointsTo(parent)) {
+        build = parent.getBuildByNumber(((Cause.UpstreamCause) cause).getUpstreamBuild());
+        break;
+      }
+    }
+    if (build == null) {
+      build = parent.getLastBuild();
+    }
+    return build != null && build.isBuilding() ? build : null;
+  }
+
+  /**
+   * Configurations of *build* which run together and did not start yet: the touchstone
+   * configurations first, then the others. Null when the build runs its configurations one after
+   * the other, or with an execution strategy unknown here, the configurations would wait for each
+   * other forever.
+   */
+  private static Set<MatrixConfiguration> getGang(MatrixBuild build) {
+    if (!(build.getExecution() instanceof MatrixBuild.MatrixBuildExecution)) {
+      return null;
+    }
+    MatrixProject project = build.getParent();
+    MatrixExecutionStrategy strategy = project.getExecutionStrategy();
+    if (!(strategy instanceof DefaultMatrixExecutionStrategyImpl)
+      || ((DefaultMatrixExecutionStrategyImpl) strategy).isRunSequentially()) {
+      return null;
+    }
+    String touchStone =
+      ((DefaultMatrixExecutionStrategyImpl) strategy).getTouchStoneCombinationFilter();
+
+    Set<MatrixConfiguration> touchStones = new LinkedHashSet<>();
+    Set<MatrixConfiguration> others = new LinkedHashSet<>();
+    for (MatrixConfiguration c :
+      ((MatrixBuild.MatrixBuildExecution) build.getExecution()).getActiveConfigurations()) {
+      if (c.getBuildByNumber(build.getNumber()) != null) {
+        continue;
+      }
+      if (touchStone != null
+        && !touchStone.trim().isEmpty()
+        && c.getCombination().evalGroovyExpression(project.getAxes(), touchStone)) {
+        touchStones.add(c);
+      } else {
+        others.add(c);
+      }
+    }
+    return touchStones.isEmpty() ? others : touchStones;
+  }
+
+  public static class BecauseMatrixGangWaiting extends CauseOfBlockage {
+
+    private final int configurations;
+
+    public BecauseMatrixGangWaiting(int configurations) {
+      this.configurations = configurations;
+    }
+
+    @Override
+    public String getShortDescription() {
+      return "Waiting for the resources of all " + configurations + " configurations of the build";
     }
   }
 
   public static class BecauseResourcesLocked extends CauseOfBlockage {
 
     private final LockableResourcesStruct rscStruct;
+    /** Queue item whose wait estimate is shown, -1 for none. */
+    private final long queueItemId;
 
     public BecauseResourcesLocked(LockableResourcesStruct r) {
+      this(r, -1);
+    }
+
+    public BecauseResourcesLocked(LockableResourcesStruct r, long queueItemId) {
       this.rscStruct = r;
+      this.queueItemId = queueItemId;
     }
 
     @Override
     public String getShortDescription() {
+      // shown for each blocked item on each page, must not wait for the manager
+      WaitEstimate estimate =
+        queueItemId < 0 ? null : LockableResourcesManager.get().peekWaitEstimate(queueItemId);
+      return estimate == null
+        ? getWaitingDescription()
+        : getWaitingDescription() + " (" + estimate + ")";
+    }
+
+    private String getWaitingDescription() {
+      if (this.rscStruct.capacityName != null
+        && this.rscStruct.required.isEmpty()
+        && this.rscStruct.label.isEmpty()) {
+        return "Waiting for "
+          + rscStruct.capacityPermits
+          + " permit(s) of "
+          + rscStruct.capacityName;
+      }
       if (this.rscStruct.label.isEmpty()) {
         if (!this.rscStruct.required.isEmpty()) {
           return "Waiting for resource instances " + rscStruct.required;
@@ -181,6 +462,22 @@ public class LockableResourcesQueueTaskDispatcher extends QueueTaskDispatcher {
     }
   }
 
+  public static class BecauseNotResourceAgent extends CauseOfBlockage {
+
+    private final String resourceName;
+    private final String agentLabel;
+
+    public BecauseNotResourceAgent(LockableResource resource) {
+      this.resourceName = resource.getName();
+      this.agentLabel = resource.getAgentLabel();
+    }
+
+    @Override
+    public String getShortDescription() {
+      return "Resource " + resourceName + " is attached to the agents " + agentLabel;
+    }
+  }
+
   // Only for UI
   @Restricted(NoExternalUse.class)
   public static class BecauseResourcesQueueFailed extends CauseOfBlockage {
@@ -16,6 +16,8 @@ import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.jenkins.plugins.lockableresources.LockableCapacityResource;
 import org.jenkins.plugins.lockableresources.LockableResource;
 import org.jenkins.plugins.lockableresources.LockableResourcesManager;
 import org.jenkins.plugins.lockableresources.RequiredResourcesProperty;
@@ -35,6 +37,48 @@ public class LockableResourcesStruct implements Serializable {
   public String requiredNumber;
   public long queuedAt = 0;
 
+  /**
+   * Elastic quantity: the request proceeds with at least this amount of resources (and up to
+   * {@link #requiredNumber}) once {@link #gracePeriod} is over. 0 asks for exactly {@link
+   * #requiredNumber}.
+   */
+  public int requiredMinNumber = 0;
+  /** Milliseconds since {@link #queuedAt} to wait for the full {@link #requiredNumber}. */
+  public long gracePeriod = 0;
+
+  /** Name of the {@link LockableCapacityResource} to take permits from, if any. */
+  @CheckForNull public String capacityName;
+  /** Amount of permits to take from {@link #capacityName}. */
+  public int capacityPermits = 0;
+
+  /**
+   * Lock the resources in {@link org.jenkins.plugins.lockableresources.ResourceLockMode#SHARED}
+   * mode, so other shared holders can lock them at the same time.
+   */
+  public boolean shared = false;
+
+  /** Priority of the freestyle queue item, see {@link RequiredResourcesProperty#getPriority()}. */
+  public int priority = 0;
+
+  /**
+   * Full name of the job asking for the resources, for the {@link
+   * org.jenkins.plugins.lockableresources.ResourceSelector}s preferring the resources the job
+   * locked before.
+   */
+  @CheckForNull public String jobName;
+
+  /**
+   * Name of the {@link org.jenkins.plugins.lockableresources.ResourceSelector} of the freestyle
+   * queue item, see {@link RequiredResourcesProperty#getResourceSelectStrategy()}.
+   */
+  @CheckForNull public String resourceSelectStrategy;
+
+  /**
+   * Only take resources with an idle executor on their agents, see {@link
+   * LockableResource#isAgentAvailable()}.
+   */
+  public boolean waitForAgent = false;
+
   @CheckForNull private final SerializableSecureGroovyScript serializableResourceMatchScript;
 
   @SuppressFBWarnings("SE_TRANSIENT_FIELD_NOT_RESTORED")
@@ -52,6 +96,11 @@ public class LockableResourcesStruct implements Serializable {
       if (resourceName == null) {
         continue;
       }
+      if (capacityName == null && resourcesManager.capacityFromName(resourceName) != null) {
+        // the amount of permits is given by the number of resources to request
+        capacityName = resourceName;
+        continue;
+      }
       resourcesManager.createResource(resourceName);
       LockableResource r = resourcesManager.fromName(resourceName);
       this.required.add(r);
@@ -65,8 +114,34 @@ public class LockableResourcesStruct implements Serializable {
 
     requiredVar = property.getResourceNamesVar();
 
+    priority = property.getPriority();
+    resourceSelectStrategy = property.getResourceSelectStrategy();
+
     requiredNumber = property.getResourceNumber();
     if (requiredNumber != null && requiredNumber.equals("0")) requiredNumber = null;
+
+    if (property.getResourceMinNumber() != null) {
+      try {
+        requiredMinNumber = Math.max(Integer.parseInt(property.getResourceMinNumber()), 0);
+      } catch (NumberFormatException e) {
+        requiredMinNumber = 0;
+      }
+    }
+    gracePeriod = TimeUnit.SECONDS.toMillis(Math.max(property.getResourceNumberGracePeriod(), 0));
+
+    if (capacityName != null) {
+      capacityPermits = 1;
+      if (requiredNumber != null) {
+        try {
+          capacityPermits = Math.max(Integer.parseInt(requiredNumber), 1);
+        } catch (NumberFormatException e) {
+          capacityPermits = 1;
+        }
+        // the number belongs to the capacity, not to the other resources
+        requiredNumber = null;
+        requiredMinNumber = 0;
+      }
+    }
   }
 
   /**
@@ -112,6 +187,18 @@ public class LockableResourcesStruct implements Serializable {
     this.resourceMatchScript = null;
   }
 
+  /**
+   * Constructor for permits taken from a {@link LockableCapacityResource}.
+   *
+   * @param capacityName Name of the capacity resource
+   * @param permits Amount of permits to acquire
+   */
+  public LockableResourcesStruct(String capacityName, int permits) {
+    this(null, null, 0);
+    this.capacityName = capacityName;
+    this.capacityPermits = Math.max(permits, 1);
+  }
+
   /**
    * Gets a system Groovy script to be executed in order to determine if the {@link
    * LockableResource} matches the condition.
@@ -142,7 +229,30 @@ public class LockableResourcesStruct implements Serializable {
       + ", Variable name: "
       + this.requiredVar
       + ", Number of resources: "
-      + this.requiredNumber;
+      + this.requiredNumber
+      + (this.requiredMinNumber > 0 ? ", At least: " + this.requiredMinNumber : "")
+      + (this.capacityName != null
+          ? ", Capacity: " + this.capacityName + ", Permits: " + this.capacityPermits
+          : "")
+      + (this.shared ? ", Mode: shared" : "")
+      + (this.priority != 0 ? ", Priority: " + this.priority : "");
+  }
+
+  /**
+   * Returns the amount of resources good enough to proceed right now.
+   *
+   * @param requiredAmount the full amount, {@link #requiredNumber} or all candidates
+   * @param since time the request started waiting
+   */
+  public int getMinimumAmount(int requiredAmount, long since) {
+    if (requiredMinNumber <= 0 || requiredMinNumber >= requiredAmount) {
+      return requiredAmount;
+    }
+    if (System.currentTimeMillis() - since < gracePeriod) {
+      // still waiting for the full amount
+      return requiredAmount;
+    }
+    return requiredMinNumber;
   }
 
   /** Returns timestamp when the resource has been added into queue.*/
@@ -12,7 +12,9 @@ import edu.umd.cs.findbugs.annotations.CheckForNull;
 import hudson.model.Run;
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 import org.jenkinsci.plugins.workflow.steps.StepContext;
 import org.kohsuke.accmod.Restricted;
 import org.kohsuke.accmod.restrictions.NoExternalUse;
@@ -44,6 +46,50 @@ public class QueuedContextStruct implements Serializable {
    */
   private String variableName;
 
+  /*
+   * Position in the queue, given by the manager when the context is queued.
+   */
+  private long sequence;
+
+  /*
+   * Start time of the build, captured when the context is queued so the queue
+   * can be ordered without resolving the build again (inversePrecedence).
+   */
+  private long buildStartTime;
+
+  /*
+   * Priority of the step, higher goes first.
+   */
+  private int priority;
+
+  /*
+   * Time the context has been queued, used to age its priority.
+   */
+  private long queuedAt;
+
+  /*
+   * Time the context stops waiting (see LockStep.waitTimeout), 0 when it waits forever.
+   */
+  private long deadline;
+
+  /*
+   * Whether the step skips its body (instead of failing) once the deadline is over.
+   */
+  private boolean skipOnTimeout;
+
+  /*
+   * Id of the build, and ids of the blocks enclosing the waiting step. Used to find the lock
+   * steps whose body waits for this context (deadlock detection), not kept over restarts.
+   */
+  private transient String buildExternalizableId;
+
+  /*
+   * The build of the context once looked up. After a restart it is looked up in the background
+   * (see LockRehydrator), not on the first queue pass.
+   */
+  private transient volatile Run<?, ?> build;
+  private transient Set<String> enclosingBlockIds;
+
   /*
    * Constructor for the QueuedContextStruct class.
    */
@@ -52,6 +98,18 @@ public class QueuedContextStruct implements Serializable {
     this.lockableResourcesStruct = lockableResourcesStruct;
     this.resourceDescription = resourceDescription;
     this.variableName = variableName;
+    Run<?, ?> build = getBuild();
+    this.buildStartTime = build != null ? build.getStartTimeInMillis() : 0;
+    this.buildExternalizableId = build != null ? build.getExternalizableId() : null;
+    this.queuedAt = System.currentTimeMillis();
+  }
+
+  private Object readResolve() {
+    if (queuedAt == 0 && lockableResourcesStruct != null && !lockableResourcesStruct.isEmpty()) {
+      // queued by an older version
+      queuedAt = lockableResourcesStruct.get(0).queuedAt;
+    }
+    return this;
   }
 
   /*
@@ -65,12 +123,37 @@ public class QueuedContextStruct implements Serializable {
   @CheckForNull
   @Restricted(NoExternalUse.class) // used by jelly
   public Run<?, ?> getBuild() {
+    Run<?, ?> run = this.build;
+    if (run != null) {
+      return run;
+    }
     try {
-      return this.getContext().get(Run.class);
+      run = this.getContext().get(Run.class);
     } catch (IOException | InterruptedException e) {
       // for some reason there is no Run object for this context
       return null;
     }
+    if (run != null) {
+      setBuild(run);
+    }
+    return run;
+  }
+
+  /*
+   * Gets the build if it has been looked up already, never waits for it.
+   */
+  @CheckForNull
+  @Restricted(NoExternalUse.class)
+  public Run<?, ?> peekBuild() {
+    return this.build;
+  }
+
+  @Restricted(NoExternalUse.class) // set by LockRehydrator
+  public void setBuild(Run<?, ?> build) {
+    this.build = build;
+    if (this.buildExternalizableId == null) {
+      this.buildExternalizableId = build.getExternalizableId();
+    }
   }
 
   /*
@@ -94,5 +177,86 @@ public class QueuedContextStruct implements Serializable {
     return this.variableName;
   }
 
+  /*
+   * Gets the position in the queue, lower is older.
+   */
+  public long getSequence() {
+    return this.sequence;
+  }
+
+  @Restricted(NoExternalUse.class) // set by LockableResourcesManager
+  public void setSequence(long sequence) {
+    this.sequence = sequence;
+  }
+
+  /*
+   * Gets the start time of the build as captured when queued, 0 if unknown.
+   */
+  public long getBuildStartTime() {
+    return this.buildStartTime;
+  }
+
+  /*
+   * Gets the priority of the step, higher goes first.
+   */
+  public int getPriority() {
+    return this.priority;
+  }
+
+  @Restricted(NoExternalUse.class) // set by LockableResourcesManager
+  public void setPriority(int priority) {
+    this.priority = priority;
+  }
+
+  /*
+   * Gets the time the context has been queued.
+   */
+  public long getQueuedAt() {
+    return this.queuedAt;
+  }
+
+  /*
+   * Gets the time the context stops waiting, 0 when it waits forever.
+   */
+  public long getDeadline() {
+    return this.deadline;
+  }
+
+  public void setDeadline(long deadline) {
+    this.deadline = deadline;
+  }
+
+  /*
+   * Whether the step skips its body (instead of failing) once the deadline is over.
+   */
+  public boolean isSkipOnTimeout() {
+    return this.skipOnTimeout;
+  }
+
+  public void setSkipOnTimeout(boolean skipOnTimeout) {
+    this.skipOnTimeout = skipOnTimeout;
+  }
+
+  /*
+   * Gets the id of the build, null when the context has been restored after a restart and its
+   * build has not been looked up again yet.
+   */
+  @CheckForNull
+  public String getBuildExternalizableId() {
+    return this.buildExternalizableId;
+  }
+
+  /*
+   * Gets the ids of the flow nodes enclosing the waiting step, empty when unknown.
+   */
+  public Set<String> getEnclosingBlockIds() {
+    return this.enclosingBlockIds == null ? Collections.emptySet() : this.enclosingBlockIds;
+  }
+
+  @Restricted(NoExternalUse.class) // set by LockStepExecution
+  public void setEnclosingBlockIds(Set<String> enclosingBlockIds) {
+    this.enclosingBlockIds = enclosingBlockIds;
+  }
+
   private static final long serialVersionUID = 1L;
 }
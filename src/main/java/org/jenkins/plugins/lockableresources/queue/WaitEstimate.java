@@ -0,0 +1,81 @@
+package org.jenkins.plugins.lockableresources.queue;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.Util;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Position of a lock request among the requests waiting for the same resources, and the time it
+ * is expected to get them. The time is based on the recent hold times of the resources, see
+ * {@code LockableResourcesManager#getWaitEstimate}.
+ */
+@ExportedBean(defaultVisibility = 999)
+public final class WaitEstimate {
+
+  private final String request;
+  @CheckForNull private final String build;
+  private final int position;
+  private final long estimatedStart;
+
+  public WaitEstimate(String request, @CheckForNull String build, int position, long estimatedStart) {
+    this.request = request;
+    this.build = build;
+    this.position = position;
+    this.estimatedStart = estimatedStart;
+  }
+
+  /** Description of the requested resources. */
+  @Exported
+  public String getRequest() {
+    return request;
+  }
+
+  /** Full display name of the waiting build, null for freestyle queue items. */
+  @Exported
+  @CheckForNull
+  public String getBuild() {
+    return build;
+  }
+
+  /** 1 for the next request to get the resources, 2 for the one after it ... */
+  @Exported
+  public int getPosition() {
+    return position;
+  }
+
+  /**
+   * Time (in milliseconds since the epoch) the resources are expected to be free for this request,
+   * 0 when unknown (no hold time seen yet, reserved resources, resources selected by a script ...).
+   */
+  @Exported
+  public long getEstimatedStart() {
+    return estimatedStart;
+  }
+
+  public boolean isEstimated() {
+    return estimatedStart > 0;
+  }
+
+  /** Time left until the estimated start, formatted (e.g. {@code 5 min 3 sec}), null when unknown. */
+  @CheckForNull
+  public String getExpectedWait() {
+    if (!isEstimated()) {
+      return null;
+    }
+    return Util.getTimeSpanString(Math.max(estimatedStart - System.currentTimeMillis(), 0));
+  }
+
+  /** Human readable summary, used in the build log and the queue blockage cause. */
+  @Override
+  public String toString() {
+    String summary = "position " + position + " in the queue";
+    if (!isEstimated()) {
+      return summary;
+    }
+    if (estimatedStart <= System.currentTimeMillis()) {
+      return summary + ", expected to start any moment";
+    }
+    return summary + ", expected to start in about " + getExpectedWait();
+  }
+}
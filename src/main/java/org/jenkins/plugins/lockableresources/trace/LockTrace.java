@@ -0,0 +1,260 @@
+package org.jenkins.plugins.lockableresources.trace;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONException;
+import net.sf.json.JSONObject;
+
+/**
+ * A lock trace written by {@link LockTraceRecorder}, read back for {@link TraceSimulator}. Does not
+ * need a running Jenkins.
+ */
+public final class LockTrace {
+
+  /** Aging period of traces written before it was recorded, the default of the plugin. */
+  private static final long DEFAULT_PRIORITY_AGING_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+  private long priorityAgingMillis = DEFAULT_PRIORITY_AGING_MILLIS;
+  private final Map<String, List<String>> resources = new LinkedHashMap<>();
+  private final List<Request> requests = new ArrayList<>();
+
+  private LockTrace() {}
+
+  public static LockTrace read(Path file) throws IOException {
+    try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+      return read(reader);
+    }
+  }
+
+  /**
+   * Reads a trace. Requests which did not get their resources, or did not give them back, before
+   * the end of the trace are left out.
+   */
+  public static LockTrace read(Reader reader) throws IOException {
+    LockTrace trace = new LockTrace();
+    Map<String, Request> byId = new LinkedHashMap<>();
+    BufferedReader lines = new BufferedReader(reader);
+    String line;
+    int number = 0;
+    while ((line = lines.readLine()) != null) {
+      number++;
+      if (line.trim().isEmpty()) {
+        continue;
+      }
+      JSONObject event;
+      try {
+        event = JSONObject.fromObject(line);
+      } catch (JSONException e) {
+        throw new IOException("Invalid trace line " + number + ": " + line, e);
+      }
+      long time = event.optLong("time");
+      String id = event.optString("id");
+      switch (event.optString("event")) {
+        case "resources":
+          for (Object o : event.optJSONArray("resources")) {
+            JSONObject resource = (JSONObject) o;
+            trace.resources.put(resource.getString("name"), strings(resource.optJSONArray("labels")));
+          }
+          trace.priorityAgingMillis =
+            event.optLong("priorityAgingMillis", DEFAULT_PRIORITY_AGING_MILLIS);
+          break;
+        case "request":
+          List<Requirement> requirements = new ArrayList<>();
+          for (Object o : event.optJSONArray("requirements")) {
+            JSONObject requirement = (JSONObject) o;
+            requirements.add(
+              new Requirement(
+                strings(requirement.optJSONArray("resources")),
+                requirement.optString("label"),
+                requirement.optInt("quantity"),
+                requirement.optInt("minQuantity"),
+                requirement.optLong("gracePeriod"),
+                requirement.optBoolean("script") || requirement.has("capacity")));
+          }
+          Request request =
+            new Request(
+              id, time, event.optInt("priority"), requirements, trace.priorityAgingMillis);
+          byId.put(id, request);
+          break;
+        case "grant":
+          Request granted = byId.get(id);
+          if (granted != null && granted.grantTime == 0) {
+            granted.grantTime = time;
+          }
+          break;
+        case "release":
+          Request released = byId.get(id);
+          if (released != null && released.grantTime > 0) {
+            released.releaseTime = time;
+          }
+          break;
+        default:
+          // written by a newer version
+          break;
+      }
+    }
+    for (Request request : byId.values()) {
+      if (request.grantTime > 0 && request.releaseTime > 0) {
+        trace.requests.add(request);
+      }
+    }
+    trace.requests.sort(Comparator.comparingLong(Request::getRequestTime));
+    return trace;
+  }
+
+  private static List<String> strings(JSONArray array) {
+    List<String> strings = new ArrayList<>();
+    if (array != null) {
+      for (Object o : array) {
+        strings.add(String.valueOf(o));
+      }
+    }
+    return strings;
+  }
+
+  /** Waiting time after which a request counts as one priority level higher, 0 for none. */
+  public long getPriorityAgingMillis() {
+    return priorityAgingMillis;
+  }
+
+  /** Resource names and their labels, as configured when the trace started. */
+  public Map<String, List<String>> getResources() {
+    return Collections.unmodifiableMap(resources);
+  }
+
+  /** Completed requests, the oldest first. */
+  public List<Request> getRequests() {
+    return Collections.unmodifiableList(requests);
+  }
+
+  /** A lock request, with the times it got and gave back its resources. */
+  public static final class Request {
+    private final String id;
+    private final long requestTime;
+    private final int priority;
+    private final List<Requirement> requirements;
+    private final long agedKey;
+    private long grantTime;
+    private long releaseTime;
+
+    Request(
+      String id, long requestTime, int priority, List<Requirement> requirements, long agingMillis) {
+      this.id = id;
+      this.requestTime = requestTime;
+      this.priority = priority;
+      this.requirements = requirements;
+      // the queue order of the plugin: the request time moved back by one aging period per level
+      this.agedKey = agingMillis <= 0 ? -(long) priority : requestTime - priority * agingMillis;
+    }
+
+    public String getId() {
+      return id;
+    }
+
+    public long getRequestTime() {
+      return requestTime;
+    }
+
+    public int getPriority() {
+      return priority;
+    }
+
+    /** Queue position of the request, lower goes first, see {@link #getPriorityAgingMillis()}. */
+    public long getAgedKey() {
+      return agedKey;
+    }
+
+    public List<Requirement> getRequirements() {
+      return Collections.unmodifiableList(requirements);
+    }
+
+    /** Time the resources were held, the same in the simulation. */
+    public long getHoldTime() {
+      return Math.max(releaseTime - grantTime, 0);
+    }
+
+    /** Time the request waited in production. */
+    public long getObservedWait() {
+      return Math.max(grantTime - requestTime, 0);
+    }
+  }
+
+  /** One requirement of a request, resources by name or an amount of resources with a label. */
+  public static final class Requirement {
+    private final List<String> resources;
+    private final String label;
+    private final int quantity;
+    private final int minQuantity;
+    private final long gracePeriod;
+    private final boolean unsupported;
+
+    Requirement(
+      List<String> resources,
+      String label,
+      int quantity,
+      int minQuantity,
+      long gracePeriod,
+      boolean unsupported) {
+      this.resources = resources;
+      this.label = label == null ? "" : label;
+      this.quantity = quantity;
+      this.minQuantity = minQuantity;
+      this.gracePeriod = gracePeriod;
+      this.unsupported = unsupported;
+    }
+
+    public List<String> getResources() {
+      return Collections.unmodifiableList(resources);
+    }
+
+    public String getLabel() {
+      return label;
+    }
+
+    /** Amount of resources with the label to take, 0 for all of them. */
+    public int getQuantity() {
+      return quantity;
+    }
+
+    /**
+     * Elastic quantity: the request goes on with at least this amount once it waited for {@link
+     * #getGracePeriod()}. 0 asks for exactly {@link #getQuantity()}.
+     */
+    public int getMinQuantity() {
+      return minQuantity;
+    }
+
+    /** Milliseconds the request waits for its full quantity. */
+    public long getGracePeriod() {
+      return gracePeriod;
+    }
+
+    /** Amount the requirement is satisfied with after *waited* ms, as the plugin computes it. */
+    int getMinimumAmount(int requiredAmount, long waited) {
+      if (minQuantity <= 0 || minQuantity >= requiredAmount || waited < gracePeriod) {
+        return requiredAmount;
+      }
+      return minQuantity;
+    }
+
+    /**
+     * Resources selected by a Groovy script, and capacity permits, can not be replayed: the
+     * simulator ignores such requirements.
+     */
+    public boolean isUnsupported() {
+      return unsupported;
+    }
+  }
+}
@@ -0,0 +1,221 @@
+package org.jenkins.plugins.lockableresources.trace;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+import jenkins.util.Timer;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.jenkins.plugins.lockableresources.LockableResource;
+import org.jenkins.plugins.lockableresources.LockableResourcesManager;
+import org.jenkins.plugins.lockableresources.queue.LockableResourcesStruct;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Writes lock requests, grants and releases to a trace file, one JSON object per line, for {@link
+ * TraceSimulator}. Disabled by default. The events are written by a background task, so callers
+ * holding the manager lock never wait for the disk.
+ *
+ * <p>The first line of a trace lists the resources and their labels, and the priority aging period
+ * of the queue. The other ones look like:
+ *
+ * <pre>
+ * {"time":1700000000000,"event":"request","id":"job/p#3/5","priority":0,
+ *  "requirements":[{"resources":["printer"],"label":"","quantity":0}]}
+ * {"time":1700000001000,"event":"grant","id":"job/p#3/5","resources":["printer"]}
+ * {"time":1700000061000,"event":"release","id":"job/p#3/5","resources":["printer"]}
+ * </pre>
+ */
+public final class LockTraceRecorder {
+
+  private static final Logger LOGGER = Logger.getLogger(LockTraceRecorder.class.getName());
+
+  /** Set to {@code true} to record a trace, see {@link #getFile()}. */
+  @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "tests and script console")
+  @Restricted(NoExternalUse.class)
+  public static boolean ENABLED =
+    SystemProperties.getBoolean(LockTraceRecorder.class.getName() + ".enabled");
+
+  private static final Queue<String> PENDING = new ConcurrentLinkedQueue<>();
+  private static final AtomicBoolean SCHEDULED = new AtomicBoolean();
+  /** Freestyle queue items whose request is written already, they are checked repeatedly. */
+  private static final Cache<String, Boolean> REQUESTED =
+    Caffeine.newBuilder().expireAfterAccess(1, TimeUnit.DAYS).build();
+
+  private static File file;
+
+  private LockTraceRecorder() {}
+
+  /**
+   * Records a lock request.
+   *
+   * @param id identifies the request in the grant and release events
+   * @param time time the request has been made
+   */
+  public static void requested(
+    String id, long time, List<LockableResourcesStruct> requirements, int priority) {
+    if (!ENABLED || REQUESTED.asMap().putIfAbsent(id, Boolean.TRUE) != null) {
+      return;
+    }
+    JSONArray array = new JSONArray();
+    for (LockableResourcesStruct rs : requirements) {
+      JSONObject requirement = new JSONObject();
+      JSONArray names = new JSONArray();
+      for (LockableResource resource : rs.required) {
+        names.add(resource.getName());
+      }
+      requirement.put("resources", names);
+      requirement.put("label", rs.label == null ? "" : rs.label);
+      int quantity = 0;
+      if (rs.requiredNumber != null) {
+        try {
+          quantity = Integer.parseInt(rs.requiredNumber);
+        } catch (NumberFormatException e) {
+          quantity = 0;
+        }
+      }
+      requirement.put("quantity", quantity);
+      if (rs.requiredMinNumber > 0) {
+        requirement.put("minQuantity", rs.requiredMinNumber);
+        requirement.put("gracePeriod", rs.gracePeriod);
+      }
+      if (rs.shared) {
+        requirement.put("shared", true);
+      }
+      if (rs.getResourceMatchScript() != null) {
+        requirement.put("script", true);
+      }
+      if (rs.capacityName != null) {
+        requirement.put("capacity", rs.capacityName);
+        requirement.put("permits", rs.capacityPermits);
+      }
+      array.add(requirement);
+    }
+    JSONObject event = event(time, "request", id);
+    event.put("priority", priority);
+    event.put("requirements", array);
+    write(event);
+  }
+
+  /** Records the resources given to a request. */
+  public static void granted(String id, Collection<String> resourceNames) {
+    if (!ENABLED) {
+      return;
+    }
+    REQUESTED.invalidate(id);
+    JSONObject event = event(System.currentTimeMillis(), "grant", id);
+    event.put("resources", JSONArray.fromObject(resourceNames));
+    write(event);
+  }
+
+  /** Records the resources given back by a request. */
+  public static void released(String id, Collection<String> resourceNames) {
+    if (!ENABLED) {
+      return;
+    }
+    JSONObject event = event(System.currentTimeMillis(), "release", id);
+    event.put("resources", JSONArray.fromObject(resourceNames));
+    write(event);
+  }
+
+  private static JSONObject event(long time, String type, String id) {
+    JSONObject event = new JSONObject();
+    event.put("time", time);
+    event.put("event", type);
+    event.put("id", id);
+    return event;
+  }
+
+  private static void write(JSONObject event) {
+    PENDING.add(event.toString());
+    if (SCHEDULED.compareAndSet(false, true)) {
+      Timer.get().submit(LockTraceRecorder::drain);
+    }
+  }
+
+  private static synchronized void drain() {
+    SCHEDULED.set(false);
+    if (PENDING.isEmpty()) {
+      return;
+    }
+    try {
+      boolean first = file == null;
+      if (first) {
+        file = newFile();
+      }
+      try (Writer writer =
+             Files.newBufferedWriter(
+               file.toPath(),
+               StandardCharsets.UTF_8,
+               StandardOpenOption.CREATE,
+               StandardOpenOption.APPEND)) {
+        if (first) {
+          // the resource pool comes first
+          writer.write(resources().toString());
+          writer.write('\n');
+        }
+        String line;
+        while ((line = PENDING.poll()) != null) {
+          writer.write(line);
+          writer.write('\n');
+        }
+      }
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Failed to write the lock trace " + file, e);
+      PENDING.clear();
+    }
+  }
+
+  /** The resource pool, written first so the trace can be replayed without Jenkins. */
+  private static JSONObject resources() {
+    JSONArray array = new JSONArray();
+    LockableResourcesManager manager = LockableResourcesManager.get();
+    synchronized (manager) {
+      for (LockableResource resource : manager.getResources()) {
+        JSONObject r = new JSONObject();
+        r.put("name", resource.getName());
+        r.put("labels", JSONArray.fromObject(resource.getLabelNames()));
+        array.add(r);
+      }
+    }
+    JSONObject event = new JSONObject();
+    event.put("time", System.currentTimeMillis());
+    event.put("event", "resources");
+    event.put("resources", array);
+    event.put("priorityAgingMillis", manager.getPriorityAgingMillis());
+    return event;
+  }
+
+  private static File newFile() throws IOException {
+    File dir = new File(Jenkins.get().getRootDir(), "logs/lockable-resources");
+    Files.createDirectories(dir.toPath());
+    return new File(
+      dir, "trace-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".ndjson");
+  }
+
+  /** The trace being written, {@code JENKINS_HOME/logs/lockable-resources/trace-*.ndjson}. */
+  @CheckForNull
+  public static synchronized File getFile() {
+    return file;
+  }
+}
@@ -0,0 +1,63 @@
+package org.jenkins.plugins.lockableresources.trace;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Decides, in {@link TraceSimulator}, which waiting request goes first and which free resources it
+ * takes. Implement it to try an alternative to the ones the plugin uses ({@link Builtin}).
+ */
+public interface SchedulingPolicy {
+
+  /**
+   * Order of the waiting requests. They are looked at in this order each time resources are freed
+   * or a request comes in, and every request which can be satisfied right away gets its resources.
+   */
+  Comparator<LockTrace.Request> getQueueOrder();
+
+  /**
+   * Picks the resources for a requirement.
+   *
+   * @param free the free resources able to satisfy the requirement, in configuration order
+   * @param needed amount to pick, at most {@code free.size()}
+   * @param random seeded by the simulator, for repeatable runs
+   */
+  List<String> select(LockTrace.Request request, List<String> free, int needed, Random random);
+
+  /** Policies matching the plugin behavior, and a shortest job first for comparison. */
+  enum Builtin implements SchedulingPolicy {
+    /**
+     * Queue order of the plugin, priority with aging ({@link LockTrace.Request#getAgedKey()}) then
+     * oldest first; the first free resources ({@code resourceSelectStrategy: 'sequential'}).
+     */
+    SEQUENTIAL,
+    /** Same queue order, random free resources ({@code resourceSelectStrategy: 'random'}). */
+    RANDOM,
+    /** Shortest hold time first, to compare with; needs to know the future. */
+    SHORTEST_HOLD_FIRST;
+
+    @Override
+    public Comparator<LockTrace.Request> getQueueOrder() {
+      if (this == SHORTEST_HOLD_FIRST) {
+        return Comparator.comparingLong(LockTrace.Request::getHoldTime)
+          .thenComparingLong(LockTrace.Request::getRequestTime);
+      }
+      return Comparator.comparingLong(LockTrace.Request::getAgedKey)
+        .thenComparingLong(LockTrace.Request::getRequestTime);
+    }
+
+    @Override
+    public List<String> select(
+      LockTrace.Request request, List<String> free, int needed, Random random) {
+      if (this == RANDOM) {
+        List<String> shuffled = new ArrayList<>(free);
+        Collections.shuffle(shuffled, random);
+        return shuffled.subList(0, needed);
+      }
+      return free.subList(0, needed);
+    }
+  }
+}
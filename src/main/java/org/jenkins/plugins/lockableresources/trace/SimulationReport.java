@@ -0,0 +1,99 @@
+package org.jenkins.plugins.lockableresources.trace;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/** Outcome of a {@link TraceSimulator} run. Times are in milliseconds. */
+public final class SimulationReport {
+
+  private final String policy;
+  private final int requests;
+  private final long[] waits;
+  private final long[] observedWaits;
+  private final Map<String, Double> utilization;
+  private final double fairness;
+
+  SimulationReport(
+    String policy,
+    long[] waits,
+    long[] observedWaits,
+    Map<String, Double> utilization,
+    double fairness) {
+    this.policy = policy;
+    this.requests = waits.length;
+    this.waits = waits.clone();
+    this.observedWaits = observedWaits.clone();
+    Arrays.sort(this.waits);
+    Arrays.sort(this.observedWaits);
+    this.utilization = new TreeMap<>(utilization);
+    this.fairness = fairness;
+  }
+
+  public String getPolicy() {
+    return policy;
+  }
+
+  /** Amount of replayed requests. */
+  public int getRequests() {
+    return requests;
+  }
+
+  /** Simulated wait time at the given percentile (0-100). */
+  public long getWait(double percentile) {
+    return percentile(waits, percentile);
+  }
+
+  /** Wait time at the given percentile (0-100) as recorded in the trace. */
+  public long getObservedWait(double percentile) {
+    return percentile(observedWaits, percentile);
+  }
+
+  public double getMeanWait() {
+    return Arrays.stream(waits).average().orElse(0);
+  }
+
+  /** Share of the trace duration each resource was locked, 0-1. */
+  public Map<String, Double> getUtilization() {
+    return Collections.unmodifiableMap(utilization);
+  }
+
+  public double getMeanUtilization() {
+    return utilization.values().stream().mapToDouble(Double::doubleValue).average().orElse(0);
+  }
+
+  /**
+   * Jain's fairness index of the slowdowns ((wait + hold) / hold) of the requests: 1 when all
+   * requests were slowed down alike, towards 1/n when a few requests did all the waiting.
+   */
+  public double getFairness() {
+    return fairness;
+  }
+
+  private static long percentile(long[] sorted, double percentile) {
+    if (sorted.length == 0) {
+      return 0;
+    }
+    int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+    return sorted[Math.min(Math.max(rank - 1, 0), sorted.length - 1)];
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+      "%s: %d requests, wait p50 %d ms, p95 %d ms, p99 %d ms, max %d ms (recorded p50 %d ms, p95 %d"
+        + " ms, p99 %d ms), utilization %.1f%%, fairness %.3f",
+      policy,
+      requests,
+      getWait(50),
+      getWait(95),
+      getWait(99),
+      getWait(100),
+      getObservedWait(50),
+      getObservedWait(95),
+      getObservedWait(99),
+      getMeanUtilization() * 100,
+      fairness);
+  }
+}
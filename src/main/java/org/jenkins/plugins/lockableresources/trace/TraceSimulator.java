@@ -0,0 +1,257 @@
+package org.jenkins.plugins.lockableresources.trace;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.TreeSet;
+
+/**
+ * Replays a {@link LockTrace} with another {@link SchedulingPolicy}, without Jenkins. Each request
+ * comes in at its recorded time and holds its resources as long as it did in production; only the
+ * time it waits for them depends on the policy.
+ *
+ * <p>Each time resources are freed or a request comes in, the waiting requests are looked at in
+ * queue order and every request whose requirements can all be satisfied gets its resources, even
+ * when requests before it have to wait on. With {@link SchedulingPolicy.Builtin#SEQUENTIAL} the
+ * queue order is the one of {@code LockableResourcesManager}, priority with aging, and elastic
+ * quantities go on with their minimum amount once their grace period is over, as in the plugin.
+ *
+ * <p>It is a model of the plugin, not the plugin: these are not replayed
+ *
+ * <ul>
+ *   <li>requirements on capacity permits and Groovy script selections, they are left out;
+ *   <li>shared locks, replayed as exclusive ones;
+ *   <li>label expressions, matched as plain labels;
+ *   <li>freed resources kept for a starving request (head-of-line reservation), and the
+ *       reservation of resources for freestyle queue items;
+ *   <li>the order in which overlapping requirements of a request pick their resources, they are
+ *       satisfied in the recorded order;
+ *   <li>resource selection strategies other than sequential and random (such as affinity), use
+ *       a {@link SchedulingPolicy} for them.
+ * </ul>
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *   -Dexec.mainClass=org.jenkins.plugins.lockableresources.trace.TraceSimulator \
+ *   -Dexec.args="trace-20240101-120000.ndjson SEQUENTIAL RANDOM com.example.MyPolicy"
+ * </pre>
+ */
+public final class TraceSimulator {
+
+  /** Hold time below which slowdowns are not told apart, a few ms lock should not dominate. */
+  private static final long SLOWDOWN_BOUND = 1000L;
+
+  private TraceSimulator() {}
+
+  public static void main(String[] args) throws Exception {
+    if (args.length == 0) {
+      System.err.println(
+        "Usage: TraceSimulator <trace.ndjson> [SEQUENTIAL|RANDOM|SHORTEST_HOLD_FIRST|<class>]...");
+      System.exit(2);
+    }
+    LockTrace trace = LockTrace.read(Paths.get(args[0]));
+    List<SchedulingPolicy> policies = new ArrayList<>();
+    for (int i = 1; i < args.length; i++) {
+      policies.add(policy(args[i]));
+    }
+    if (policies.isEmpty()) {
+      Collections.addAll(policies, SchedulingPolicy.Builtin.values());
+    }
+    for (SchedulingPolicy policy : policies) {
+      System.out.println(simulate(trace, policy));
+    }
+  }
+
+  private static SchedulingPolicy policy(String name) throws ReflectiveOperationException {
+    for (SchedulingPolicy.Builtin builtin : SchedulingPolicy.Builtin.values()) {
+      if (builtin.name().equalsIgnoreCase(name)) {
+        return builtin;
+      }
+    }
+    return Class.forName(name)
+      .asSubclass(SchedulingPolicy.class)
+      .getDeclaredConstructor()
+      .newInstance();
+  }
+
+  public static SimulationReport simulate(LockTrace trace, SchedulingPolicy policy) {
+    return simulate(trace, policy, 0L);
+  }
+
+  /**
+   * Replays *trace* with *policy*.
+   *
+   * @param seed for the {@link Random} given to the policy
+   */
+  public static SimulationReport simulate(LockTrace trace, SchedulingPolicy policy, long seed) {
+    Random random = new Random(seed);
+    // configured resources, then the ones only known from the requests (ephemeral resources)
+    Map<String, List<String>> pool = new LinkedHashMap<>(trace.getResources());
+    List<LockTrace.Request> requests = new ArrayList<>();
+    for (LockTrace.Request request : trace.getRequests()) {
+      boolean replayed = false;
+      for (LockTrace.Requirement requirement : request.getRequirements()) {
+        if (!requirement.isUnsupported()) {
+          replayed = true;
+          for (String name : requirement.getResources()) {
+            pool.putIfAbsent(name, Collections.emptyList());
+          }
+        }
+      }
+      if (replayed) {
+        requests.add(request);
+      }
+    }
+    Map<String, Integer> order = new HashMap<>();
+    for (String name : pool.keySet()) {
+      order.put(name, order.size());
+    }
+    TreeSet<String> free = new TreeSet<>(Comparator.comparing(order::get));
+    free.addAll(pool.keySet());
+
+    TreeSet<LockTrace.Request> waiting =
+      new TreeSet<>(policy.getQueueOrder().thenComparing(LockTrace.Request::getId));
+    PriorityQueue<Release> releases = new PriorityQueue<>(Comparator.comparingLong(r -> r.time));
+    Map<String, Long> busy = new HashMap<>();
+    List<LockTrace.Request> granted = new ArrayList<>();
+    List<Long> waits = new ArrayList<>();
+
+    long start = requests.isEmpty() ? 0 : requests.get(0).getRequestTime();
+    long end = start;
+    int next = 0;
+    while (next < requests.size() || !releases.isEmpty()) {
+      long now;
+      if (!releases.isEmpty()
+        && (next == requests.size()
+        || releases.peek().time <= requests.get(next).getRequestTime())) {
+        // resources freed at the same time as a request comes in are free for it
+        now = releases.peek().time;
+        while (!releases.isEmpty() && releases.peek().time == now) {
+          free.addAll(releases.poll().resources);
+        }
+      } else {
+        now = requests.get(next).getRequestTime();
+        while (next < requests.size() && requests.get(next).getRequestTime() == now) {
+          LockTrace.Request request = requests.get(next++);
+          waiting.add(request);
+          for (LockTrace.Requirement requirement : request.getRequirements()) {
+            if (requirement.getMinQuantity() > 0 && requirement.getGracePeriod() > 0) {
+              // looked at again when the grace period is over, nothing is freed then
+              releases.add(
+                new Release(now + requirement.getGracePeriod(), Collections.emptyList()));
+            }
+          }
+        }
+      }
+      end = Math.max(end, now);
+
+      for (Iterator<LockTrace.Request> it = waiting.iterator(); it.hasNext(); ) {
+        LockTrace.Request request = it.next();
+        List<String> taken = take(request, now, pool, free, policy, random);
+        if (taken == null) {
+          continue;
+        }
+        it.remove();
+        free.removeAll(taken);
+        granted.add(request);
+        waits.add(now - request.getRequestTime());
+        releases.add(new Release(now + request.getHoldTime(), taken));
+        for (String name : taken) {
+          busy.merge(name, request.getHoldTime(), Long::sum);
+        }
+      }
+    }
+    // requests still waiting here can never be satisfied (more resources than configured)
+
+    long[] simulated = new long[granted.size()];
+    long[] observed = new long[granted.size()];
+    double sum = 0;
+    double sumOfSquares = 0;
+    for (int i = 0; i < granted.size(); i++) {
+      LockTrace.Request request = granted.get(i);
+      simulated[i] = waits.get(i);
+      observed[i] = request.getObservedWait();
+      long hold = Math.max(request.getHoldTime(), SLOWDOWN_BOUND);
+      double slowdown = (double) (simulated[i] + hold) / hold;
+      sum += slowdown;
+      sumOfSquares += slowdown * slowdown;
+    }
+    double fairness = granted.isEmpty() ? 1 : sum * sum / (granted.size() * sumOfSquares);
+
+    Map<String, Double> utilization = new LinkedHashMap<>();
+    long span = Math.max(end - start, 1);
+    for (String name : pool.keySet()) {
+      utilization.put(name, (double) busy.getOrDefault(name, 0L) / span);
+    }
+    return new SimulationReport(policy.toString(), simulated, observed, utilization, fairness);
+  }
+
+  /**
+   * Picks the resources for all requirements of *request* among the *free* ones, at time *now*.
+   *
+   * @return null when one of the requirements can not be satisfied now
+   */
+  private static List<String> take(
+    LockTrace.Request request,
+    long now,
+    Map<String, List<String>> pool,
+    TreeSet<String> free,
+    SchedulingPolicy policy,
+    Random random) {
+    List<String> taken = new ArrayList<>();
+    for (LockTrace.Requirement requirement : request.getRequirements()) {
+      if (requirement.isUnsupported()) {
+        continue;
+      }
+      List<String> available = new ArrayList<>();
+      int needed;
+      if (requirement.getLabel().isEmpty()) {
+        for (String name : requirement.getResources()) {
+          if (!free.contains(name) || taken.contains(name)) {
+            return null;
+          }
+          available.add(name);
+        }
+        needed = available.size();
+      } else {
+        int candidates = 0;
+        for (Map.Entry<String, List<String>> resource : pool.entrySet()) {
+          if (resource.getValue().contains(requirement.getLabel())) {
+            candidates++;
+            if (free.contains(resource.getKey()) && !taken.contains(resource.getKey())) {
+              available.add(resource.getKey());
+            }
+          }
+        }
+        int required = requirement.getQuantity() > 0 ? requirement.getQuantity() : candidates;
+        int minimum = requirement.getMinimumAmount(required, now - request.getRequestTime());
+        if (available.size() < minimum) {
+          return null;
+        }
+        // elastic quantity, as many as there are up to the quantity
+        needed = Math.min(available.size(), required);
+      }
+      taken.addAll(policy.select(request, available, needed, random));
+    }
+    return taken;
+  }
+
+  private static final class Release {
+    private final long time;
+    private final List<String> resources;
+
+    Release(long time, List<String> resources) {
+      this.time = time;
+      this.resources = resources;
+    }
+  }
+}
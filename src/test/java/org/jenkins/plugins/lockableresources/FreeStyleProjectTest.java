@@ -10,6 +10,10 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import hudson.Launcher;
+import hudson.matrix.AxisList;
+import hudson.matrix.MatrixBuild;
+import hudson.matrix.MatrixProject;
+import hudson.matrix.TextAxis;
 import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
 import hudson.model.FreeStyleBuild;
@@ -23,6 +27,7 @@ import hudson.triggers.TimerTrigger;
 import hudson.util.OneShotEvent;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Semaphore;
@@ -273,6 +278,66 @@ public class FreeStyleProjectTest {
     j.waitForCompletion(fb2);
   }
 
+  @Test
+  public void blockedItemShowsItsWaitEstimate() throws Exception {
+    LockableResourcesManager lrm = LockableResourcesManager.get();
+    lrm.createResource("resource1");
+    lrm.reserve(List.of(lrm.fromName("resource1")), "someone");
+
+    FreeStyleProject f = j.createFreeStyleProject("f");
+    f.addProperty(new RequiredResourcesProperty("resource1", null, null, null, null));
+    QueueTaskFuture<FreeStyleBuild> fb = f.scheduleBuild2(0);
+    TestHelpers.waitForQueue(j.jenkins, f, Queue.BlockedItem.class);
+    Queue.Item item = j.jenkins.getQueue().getItem(f);
+    assertNotNull(item);
+    // computed by the dispatcher, read without the lock of the manager
+    assertNotNull(lrm.peekWaitEstimate(item.getId()));
+    assertEquals(
+      "Waiting for resource instances [resource1] (position 1 in the queue)",
+      item.getCauseOfBlockage().getShortDescription());
+
+    lrm.unreserve(List.of(lrm.fromName("resource1")));
+    j.assertBuildStatusSuccess(fb.get(60, TimeUnit.SECONDS));
+    assertNull(lrm.peekWaitEstimate(item.getId()));
+  }
+
+  @Test
+  public void matrixGangWaitsForAllConfigurations() throws Exception {
+    LockableResourcesManager lrm = LockableResourcesManager.get();
+    lrm.createResourceWithLabel("board1", "board");
+    lrm.createResourceWithLabel("board2", "board");
+    lrm.createResourceWithLabel("board3", "board");
+    LockableResource board3 = lrm.fromName("board3");
+    board3.setReservedBy("someone");
+    j.jenkins.setNumExecutors(3);
+
+    MatrixProject p = j.createProject(MatrixProject.class, "matrix");
+    p.setAxes(new AxisList(new TextAxis("x", "a", "b", "c")));
+    RequiredResourcesProperty property = new RequiredResourcesProperty(null, null, "1", "board", null);
+    property.setMatrixGang(true);
+    p.addProperty(property);
+    QueueTaskFuture<MatrixBuild> future = p.scheduleBuild2(0);
+
+    // two boards for three configurations, none of them starts
+    Queue.Item[] items;
+    do {
+      Thread.sleep(100);
+      items = j.jenkins.getQueue().getItems();
+    } while (items.length < 3
+      || Arrays.stream(items)
+      .anyMatch(
+        item ->
+          !(item.getCauseOfBlockage()
+            instanceof LockableResourcesQueueTaskDispatcher.BecauseMatrixGangWaiting)));
+    assertFalse(lrm.fromName("board1").isQueued());
+    assertFalse(lrm.fromName("board1").isLocked());
+
+    lrm.unreserve(List.of(board3));
+    j.jenkins.getQueue().scheduleMaintenance();
+    MatrixBuild build = j.assertBuildStatusSuccess(future);
+    assertEquals(3, build.getExactRuns().size());
+  }
+
   public static class PrinterBuilder extends TestBuilder {
 
     @Override
@@ -0,0 +1,81 @@
+package org.jenkins.plugins.lockableresources;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import hudson.model.Result;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.jenkinsci.plugins.workflow.test.steps.SemaphoreStep;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class LockHoldLimitTest extends LockStepTestBase {
+
+  @Rule public JenkinsRule j = new JenkinsRule();
+
+  private static long minutesFromNow(long minutes) {
+    return System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(minutes);
+  }
+
+  @Test
+  public void releaseAfterMaxHoldTime() throws Exception {
+    LockableResourcesManager lrm = LockableResourcesManager.get();
+    LockableResource resource = new LockableResource("resource1");
+    resource.setMaxHoldMinutes(10);
+    resource.setHoldAction("release");
+    lrm.setDeclaredResources(Collections.singletonList(resource));
+
+    WorkflowJob p = j.jenkins.createProject(WorkflowJob.class, "p");
+    p.setDefinition(
+      new CpsFlowDefinition("lock('resource1') {\n" + "	semaphore 'wait-inside'\n" + "}\n", true));
+    WorkflowRun b1 = p.scheduleBuild2(0).waitForStart();
+    SemaphoreStep.waitForStart("wait-inside/1", b1);
+    WorkflowRun b2 = p.scheduleBuild2(0).waitForStart();
+    j.waitForMessage("[resource1] is locked by " + b1.getFullDisplayName() + ", waiting...", b2);
+
+    // not over yet
+    lrm.enforceHoldLimits(minutesFromNow(5));
+    assertEquals(b1, lrm.fromName("resource1").getBuild());
+    // warning only
+    lrm.enforceHoldLimits(minutesFromNow(11));
+    assertEquals(b1, lrm.fromName("resource1").getBuild());
+    // released after the grace time, the next build gets the resource
+    lrm.enforceHoldLimits(minutesFromNow(11 + LockableResourcesManager.HOLD_GRACE_MINUTES));
+    SemaphoreStep.waitForStart("wait-inside/2", b2);
+    assertEquals(b2, lrm.fromName("resource1").getBuild());
+
+    SemaphoreStep.success("wait-inside/1", null);
+    SemaphoreStep.success("wait-inside/2", null);
+    j.assertBuildStatusSuccess(j.waitForCompletion(b1));
+    j.assertBuildStatusSuccess(j.waitForCompletion(b2));
+  }
+
+  @Test
+  public void abortAfterMaxHoldTimeOfLabel() throws Exception {
+    LockableResourcesManager lrm = LockableResourcesManager.get();
+    lrm.createResourceWithLabel("phone1", "phone");
+    LockableHoldLimit limit = new LockableHoldLimit("phone");
+    limit.setMaxHoldMinutes(30);
+    limit.setAction("ABORT");
+    lrm.setHoldLimits(Collections.singletonList(limit));
+
+    WorkflowJob p = j.jenkins.createProject(WorkflowJob.class, "p");
+    p.setDefinition(
+      new CpsFlowDefinition("lock(label: 'phone') {\n" + "	semaphore 'wait-inside'\n" + "}\n", true));
+    WorkflowRun b1 = p.scheduleBuild2(0).waitForStart();
+    SemaphoreStep.waitForStart("wait-inside/1", b1);
+
+    lrm.enforceHoldLimits(minutesFromNow(31));
+    assertTrue(b1.isBuilding());
+    lrm.enforceHoldLimits(minutesFromNow(31 + LockableResourcesManager.HOLD_GRACE_MINUTES));
+    j.assertBuildStatus(Result.ABORTED, j.waitForCompletion(b1));
+    j.assertLogContains("Lockable resource [phone1] held longer than 30 minute(s)", b1);
+    assertFalse(lrm.fromName("phone1").isLocked());
+  }
+}
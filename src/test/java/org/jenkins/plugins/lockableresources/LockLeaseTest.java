@@ -0,0 +1,55 @@
+package org.jenkins.plugins.lockableresources;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.jenkinsci.plugins.workflow.test.steps.SemaphoreStep;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class LockLeaseTest extends LockStepTestBase {
+
+  @Rule public JenkinsRule j = new JenkinsRule();
+
+  private final long leaseSeconds = LockableResourcesManager.LEASE_SECONDS;
+
+  @Before
+  public void disableReaper() {
+    // the calls of the test only, not the periodic ones
+    LockLeaseReaper.ENABLED = false;
+  }
+
+  @After
+  public void restoreLease() {
+    LockableResourcesManager.LEASE_SECONDS = leaseSeconds;
+    LockLeaseReaper.ENABLED = true;
+  }
+
+  @Test
+  public void expiredLeaseIsReclaimedThroughTheQueue() throws Exception {
+    LockableResourcesManager.LEASE_SECONDS = 1;
+    LockableResourcesManager lrm = LockableResourcesManager.get();
+    WorkflowRun b1 = waitForLockLeftBehind(j);
+
+    // first sight gives a lease
+    assertEquals(0, lrm.renewAndReclaimLeases(10));
+    assertNotEquals(0, lrm.fromName("resource1").getLeaseExpiry());
+    Thread.sleep(1500);
+    assertEquals(1, lrm.renewAndReclaimLeases(10));
+
+    SemaphoreStep.waitForStart("wait-inside/1", b1);
+    assertEquals(b1, lrm.fromName("resource1").getBuild());
+
+    // the running holder renews its lease
+    Thread.sleep(1500);
+    assertEquals(0, lrm.renewAndReclaimLeases(10));
+    assertTrue(lrm.fromName("resource1").getLeaseExpiry() > System.currentTimeMillis());
+    SemaphoreStep.success("wait-inside/1", null);
+    j.assertBuildStatusSuccess(j.waitForCompletion(b1));
+  }
+}
@@ -0,0 +1,81 @@
+package org.jenkins.plugins.lockableresources;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.jenkinsci.plugins.workflow.test.steps.SemaphoreStep;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class LockStateAuditTest extends LockStepTestBase {
+
+  @Rule public JenkinsRule j = new JenkinsRule();
+
+  @Before
+  public void disableAuditor() {
+    // each visit counts, only the ones of the test may happen
+    LockStateAuditor.ENABLED = false;
+  }
+
+  @After
+  public void enableAuditor() {
+    LockStateAuditor.ENABLED = true;
+  }
+
+  @Test
+  public void leakedLockIsReleasedThroughTheQueue() throws Exception {
+    LockableResourcesManager lrm = LockableResourcesManager.get();
+    WorkflowRun b1 = waitForLockLeftBehind(j);
+
+    // seen once, fixed on the next visit
+    assertTrue(lrm.auditLockState(10).isEmpty());
+    assertEquals(1, lrm.auditLockState(10).getLeakedLocks());
+    SemaphoreStep.waitForStart("wait-inside/1", b1);
+    assertEquals(b1, lrm.fromName("resource1").getBuild());
+
+    // the running holder is fine
+    assertTrue(lrm.auditLockState(10).isEmpty());
+    assertTrue(lrm.auditLockState(10).isEmpty());
+    SemaphoreStep.success("wait-inside/1", null);
+    j.assertBuildStatusSuccess(j.waitForCompletion(b1));
+    assertEquals(1, lrm.getAuditTotals().getLeakedLocks());
+  }
+
+  @Test
+  public void lockOfDeletedBuildIsReleasedThroughTheQueue() throws Exception {
+    LockableResourcesManager lrm = LockableResourcesManager.get();
+    // ephemeral
+    lrm.createResource("resource1");
+
+    WorkflowJob p = j.jenkins.createProject(WorkflowJob.class, "p");
+    p.setDefinition(new CpsFlowDefinition("echo 'done'", true));
+    WorkflowRun deleted = j.buildAndAssertSuccess(p);
+    lrm.fromName("resource1").setBuild(deleted);
+    deleted.delete();
+
+    assertTrue(lrm.auditLockState(10).isEmpty());
+    assertEquals(1, lrm.auditLockState(10).getLeakedLocks());
+    // freed through the unlock path, which removes ephemeral resources
+    assertNull(lrm.fromName("resource1"));
+  }
+
+  @Test
+  public void staleQueueReservationIsDropped() throws Exception {
+    LockableResourcesManager lrm = LockableResourcesManager.get();
+    lrm.createResource("resource1");
+    // no such queue item
+    lrm.fromName("resource1").setQueued(4242, "gone");
+
+    assertTrue(lrm.auditLockState(10).isEmpty());
+    assertEquals(1, lrm.auditLockState(10).getStaleReservations());
+    assertFalse(lrm.fromName("resource1").isQueued());
+  }
+}
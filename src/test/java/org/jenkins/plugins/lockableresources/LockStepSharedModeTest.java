@@ -0,0 +1,133 @@
+package org.jenkins.plugins.lockableresources;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import hudson.model.Result;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.jenkinsci.plugins.workflow.test.steps.SemaphoreStep;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class LockStepSharedModeTest extends LockStepTestBase {
+
+  @Rule public JenkinsRule j = new JenkinsRule();
+
+  private WorkflowJob createJob(String name, String mode) throws Exception {
+    WorkflowJob p = j.jenkins.createProject(WorkflowJob.class, name);
+    p.setDefinition(
+      new CpsFlowDefinition(
+        "lock(resource: 'db', mode: '" + mode + "') {\n"
+          + "  semaphore 'wait-inside-" + name + "'\n"
+          + "}\n"
+          + "echo 'Finish'",
+        true));
+    return p;
+  }
+
+  @Test
+  public void sharedHoldersRunTogether() throws Exception {
+    LockableResourcesManager.get().createResource("db");
+    WorkflowJob reader = createJob("reader", "shared");
+
+    WorkflowRun r1 = reader.scheduleBuild2(0).waitForStart();
+    SemaphoreStep.waitForStart("wait-inside-reader/1", r1);
+    WorkflowRun r2 = reader.scheduleBuild2(0).waitForStart();
+    SemaphoreStep.waitForStart("wait-inside-reader/2", r2);
+
+    LockableResource db = LockableResourcesManager.get().fromName("db");
+    assertNotNull(db);
+    assertTrue(db.isLocked());
+    assertTrue(db.isLockedShared());
+    assertEquals(2, db.getSharedBy().size());
+
+    SemaphoreStep.success("wait-inside-reader/1", null);
+    j.assertBuildStatusSuccess(j.waitForCompletion(r1));
+    assertTrue(db.isLockedShared());
+    assertTrue(db.isSharedBy(r2.getExternalizableId()));
+
+    SemaphoreStep.success("wait-inside-reader/2", null);
+    j.assertBuildStatusSuccess(j.waitForCompletion(r2));
+    assertFalse(db.isLocked());
+  }
+
+  @Test
+  public void writerWaitsForSharedHoldersAndGoesFirst() throws Exception {
+    LockableResourcesManager.get().createResource("db");
+    WorkflowJob reader = createJob("reader", "shared");
+    WorkflowJob writer = createJob("writer", "exclusive");
+
+    WorkflowRun r1 = reader.scheduleBuild2(0).waitForStart();
+    SemaphoreStep.waitForStart("wait-inside-reader/1", r1);
+
+    // the writer has to wait for the shared holder
+    WorkflowRun w1 = writer.scheduleBuild2(0).waitForStart();
+    j.waitForMessage("[db] is locked, waiting...", w1);
+    isPaused(w1, 1, 1);
+
+    // a new shared request does not overtake the waiting writer
+    WorkflowRun r2 = reader.scheduleBuild2(0).waitForStart();
+    j.waitForMessage("[db] is locked, waiting...", r2);
+    isPaused(r2, 1, 1);
+
+    SemaphoreStep.success("wait-inside-reader/1", null);
+    SemaphoreStep.waitForStart("wait-inside-writer/1", w1);
+    LockableResource db = LockableResourcesManager.get().fromName("db");
+    assertNotNull(db);
+    assertFalse(db.isLockedShared());
+    assertEquals(w1, db.getBuild());
+    isPaused(r2, 1, 1);
+
+    SemaphoreStep.success("wait-inside-writer/1", null);
+    SemaphoreStep.waitForStart("wait-inside-reader/2", r2);
+    assertTrue(db.isSharedBy(r2.getExternalizableId()));
+    SemaphoreStep.success("wait-inside-reader/2", null);
+
+    j.assertBuildStatusSuccess(j.waitForCompletion(r1));
+    j.assertBuildStatusSuccess(j.waitForCompletion(w1));
+    j.assertBuildStatusSuccess(j.waitForCompletion(r2));
+    assertFalse(db.isLocked());
+  }
+
+  @Test
+  public void sharedHoldersStartTogetherAfterWriter() throws Exception {
+    LockableResourcesManager.get().createResource("db");
+    WorkflowJob reader = createJob("reader", "shared");
+    WorkflowJob writer = createJob("writer", "exclusive");
+
+    WorkflowRun w1 = writer.scheduleBuild2(0).waitForStart();
+    SemaphoreStep.waitForStart("wait-inside-writer/1", w1);
+
+    WorkflowRun r1 = reader.scheduleBuild2(0).waitForStart();
+    j.waitForMessage("[db] is locked by " + w1.getFullDisplayName() + ", waiting...", r1);
+    WorkflowRun r2 = reader.scheduleBuild2(0).waitForStart();
+    j.waitForMessage("[db] is locked by " + w1.getFullDisplayName() + ", waiting...", r2);
+
+    SemaphoreStep.success("wait-inside-writer/1", null);
+    SemaphoreStep.waitForStart("wait-inside-reader/1", r1);
+    SemaphoreStep.waitForStart("wait-inside-reader/2", r2);
+    LockableResource db = LockableResourcesManager.get().fromName("db");
+    assertNotNull(db);
+    assertEquals(2, db.getSharedBy().size());
+
+    SemaphoreStep.success("wait-inside-reader/1", null);
+    SemaphoreStep.success("wait-inside-reader/2", null);
+    j.assertBuildStatusSuccess(j.waitForCompletion(w1));
+    j.assertBuildStatusSuccess(j.waitForCompletion(r1));
+    j.assertBuildStatusSuccess(j.waitForCompletion(r2));
+    assertFalse(db.isLocked());
+  }
+
+  @Test
+  public void invalidMode() throws Exception {
+    WorkflowJob p = createJob("p", "read-only");
+    WorkflowRun b1 = p.scheduleBuild2(0).get();
+    j.assertBuildStatus(Result.FAILURE, b1);
+    j.assertLogContains("The lock mode \"read-only\" is not supported.", b1);
+  }
+}
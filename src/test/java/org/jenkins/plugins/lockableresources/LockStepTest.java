@@ -3,19 +3,32 @@ package org.jenkins.plugins.lockableresources;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.hasEntry;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assume.assumeFalse;
 
 import hudson.Functions;
+import hudson.model.Label;
 import hudson.model.Result;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.logging.Logger;
 import java.util.concurrent.CyclicBarrier;
+import javax.management.ObjectName;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 import net.sf.json.JSONObject;
+import org.jenkins.plugins.lockableresources.metrics.LockMetrics;
+import org.jenkins.plugins.lockableresources.queue.QueuedContextStruct;
+import org.jenkins.plugins.lockableresources.queue.WaitEstimate;
 import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
 import org.jenkinsci.plugins.workflow.job.WorkflowJob;
 import org.jenkinsci.plugins.workflow.job.WorkflowRun;
@@ -100,6 +113,106 @@ public class LockStepTest extends LockStepTestBase {
     assertNotNull(LockableResourcesManager.get().fromName("resource1"));
   }
 
+  @Test
+  public void lockRoundRobinWithLabel() throws Exception {
+    LockableResourcesManager.get().createResourceWithLabel("resource1", "label1");
+    LockableResourcesManager.get().createResourceWithLabel("resource2", "label1");
+    LockableResourcesManager.get().createResourceWithLabel("resource3", "label1");
+    WorkflowJob p = j.jenkins.createProject(WorkflowJob.class, "p");
+    p.setDefinition(
+      new CpsFlowDefinition(
+        "lock(label: 'label1', quantity: 1, variable: 'var', resourceSelectStrategy: 'round_robin') {\n"
+          + "	echo \"Resource locked: ${env.var}\"\n"
+          + "}\n",
+        true));
+    j.assertLogContains("Resource locked: resource1", j.buildAndAssertSuccess(p));
+    j.assertLogContains("Resource locked: resource2", j.buildAndAssertSuccess(p));
+    j.assertLogContains("Resource locked: resource3", j.buildAndAssertSuccess(p));
+    j.assertLogContains("Resource locked: resource1", j.buildAndAssertSuccess(p));
+  }
+
+  @Test
+  public void lockLeastRecentlyUsedWithLabel() throws Exception {
+    LockableResourcesManager.get().createResourceWithLabel("resource1", "label1");
+    LockableResourcesManager.get().createResourceWithLabel("resource2", "label1");
+    LockableResourcesManager.get().createResourceWithLabel("resource3", "label1");
+    WorkflowJob p = j.jenkins.createProject(WorkflowJob.class, "p");
+    p.setDefinition(
+      new CpsFlowDefinition(
+        "lock('resource2') {\n"
+          + "	echo 'resource2 used'\n"
+          + "}\n"
+          + "lock(label: 'label1', quantity: 2, variable: 'var', resourceSelectStrategy: 'least_recently_used') {\n"
+          + "	echo \"Resources locked: ${env.var}\"\n"
+          + "}\n",
+        true));
+    // resource2 was just used, the never used ones go first
+    j.assertLogContains("Resources locked: resource1,resource3", j.buildAndAssertSuccess(p));
+    assertTrue(LockableResourcesManager.get().getResourceUsage("resource2").getLockCount() > 0);
+  }
+
+  @Test
+  public void lockAffinityWithLabel() throws Exception {
+    LockableResourcesManager.get().createResourceWithLabel("resource1", "label1");
+    LockableResourcesManager.get().createResourceWithLabel("resource2", "label1");
+    LockableResourcesManager.get().createResourceWithLabel("resource3", "label1");
+    String script =
+      "lock(label: 'label1', quantity: 1, variable: 'var', resourceSelectStrategy: 'affinity') {\n"
+        + "	echo \"Resource locked: ${env.var}\"\n"
+        + "}\n";
+    WorkflowJob p1 = j.jenkins.createProject(WorkflowJob.class, "p1");
+    p1.setDefinition(new CpsFlowDefinition("lock('resource3') {}\n" + script, true));
+    j.assertLogContains("Resource locked: resource3", j.buildAndAssertSuccess(p1));
+    p1.setDefinition(new CpsFlowDefinition(script, true));
+    j.assertLogContains("Resource locked: resource3", j.buildAndAssertSuccess(p1));
+    assertEquals(
+      Collections.singletonList("resource3"),
+      LockableResourcesManager.get().getLastLocked(p1.getFullName()));
+
+    // another job has no affinity yet
+    WorkflowJob p2 = j.jenkins.createProject(WorkflowJob.class, "p2");
+    p2.setDefinition(new CpsFlowDefinition(script, true));
+    j.assertLogContains("Resource locked: resource1", j.buildAndAssertSuccess(p2));
+
+    // falls back to the list order when the preferred resource is busy
+    LockableResourcesManager.get().fromName("resource3").setReservedBy("someone");
+    j.assertLogContains("Resource locked: resource1", j.buildAndAssertSuccess(p1));
+    assertEquals(
+      Arrays.asList("resource1", "resource3"),
+      LockableResourcesManager.get().getLastLocked(p1.getFullName()));
+  }
+
+  @Test
+  public void lockWaitsForAgentOfResource() throws Exception {
+    j.createOnlineSlave(Label.get("board-host"));
+    LockableResourcesManager.get().createResourceWithLabel("resource1", "label1");
+    LockableResourcesManager.get().fromName("resource1").setAgentLabel("board-host");
+    WorkflowJob busy = j.jenkins.createProject(WorkflowJob.class, "busy");
+    busy.setDefinition(new CpsFlowDefinition("node('board-host') { semaphore 'busy' }", true));
+    WorkflowRun b1 = busy.scheduleBuild2(0).waitForStart();
+    SemaphoreStep.waitForStart("busy/1", b1);
+
+    WorkflowJob p = j.jenkins.createProject(WorkflowJob.class, "p");
+    p.setDefinition(
+      new CpsFlowDefinition(
+        "lock(label: 'label1', quantity: 1, variable: 'var', waitForAgent: true) {\n"
+          + "  echo \"Agent: ${env.var_AGENT}\"\n"
+          + "  node(env.var_AGENT) { echo 'on the agent' }\n"
+          + "}\n",
+        true));
+    WorkflowRun b2 = p.scheduleBuild2(0).waitForStart();
+    // the only executor of the agent is busy, the resource stays free meanwhile
+    j.waitForMessage("[Label: label1, Quantity: 1] is locked, waiting...", b2);
+    assertFalse(LockableResourcesManager.get().fromName("resource1").isLocked());
+
+    SemaphoreStep.success("busy/1", null);
+    j.assertBuildStatusSuccess(j.waitForCompletion(b1));
+    LockableResourcesManager.get().recheckAgentWaiters();
+    j.assertBuildStatusSuccess(j.waitForCompletion(b2));
+    j.assertLogContains("Agent: board-host", b2);
+    j.assertLogContains("on the agent", b2);
+  }
+
   @Test
   public void lockOrderLabel() throws Exception {
     LockableResourcesManager.get().createResourceWithLabel("resource1", "label1");
@@ -343,6 +456,373 @@ public class LockStepTest extends LockStepTestBase {
     isPaused(b2, 1, 0);
   }
 
+  @Test
+  public void queueKeepsOrderWhenContextsLeave() throws Exception {
+    LockableResourcesManager.get().createResource("resource1");
+    WorkflowJob p = j.jenkins.createProject(WorkflowJob.class, "p");
+    p.setDefinition(
+      new CpsFlowDefinition(
+        "lock('resource1') {\n" + "	semaphore 'wait-inside'\n" + "}\n" + "echo 'Finish'",
+        true));
+    WorkflowRun b1 = p.scheduleBuild2(0).waitForStart();
+    SemaphoreStep.waitForStart("wait-inside/1", b1);
+    WorkflowRun b2 = p.scheduleBuild2(0).waitForStart();
+    j.waitForMessage("[resource1] is locked by " + b1.getFullDisplayName() + ", waiting...", b2);
+    WorkflowRun b3 = p.scheduleBuild2(0).waitForStart();
+    j.waitForMessage("[resource1] is locked by " + b1.getFullDisplayName() + ", waiting...", b3);
+    WorkflowRun b4 = p.scheduleBuild2(0).waitForStart();
+    j.waitForMessage("[resource1] is locked by " + b1.getFullDisplayName() + ", waiting...", b4);
+
+    List<QueuedContextStruct> queue = LockableResourcesManager.get().getCurrentQueuedContext();
+    assertEquals(3, queue.size());
+    assertEquals(b2, queue.get(0).getBuild());
+    assertEquals(b3, queue.get(1).getBuild());
+    assertEquals(b4, queue.get(2).getBuild());
+
+    // aborted while waiting, leaves the queue
+    b3.doStop();
+    j.assertBuildStatus(Result.ABORTED, j.waitForCompletion(b3));
+    queue = LockableResourcesManager.get().getCurrentQueuedContext();
+    assertEquals(2, queue.size());
+    assertEquals(b2, queue.get(0).getBuild());
+    assertEquals(b4, queue.get(1).getBuild());
+
+    SemaphoreStep.success("wait-inside/1", null);
+    j.waitForMessage("Lock acquired on [resource1]", b2);
+    SemaphoreStep.success("wait-inside/2", null);
+    j.waitForMessage("Lock acquired on [resource1]", b4);
+    SemaphoreStep.success("wait-inside/3", null);
+    j.assertBuildStatusSuccess(j.waitForCompletion(b4));
+    assertTrue(LockableResourcesManager.get().getCurrentQueuedContext().isEmpty());
+  }
+
+  @Test
+  public void lockWithPriority() throws Exception {
+    LockableResourcesManager.get().createResource("resource1");
+    WorkflowJob p = j.jenkins.createProject(WorkflowJob.class, "p");
+    p.setDefinition(
+      new CpsFlowDefinition(
+        "lock('resource1') {\n" + "	semaphore 'wait-inside'\n" + "}\n" + "echo 'Finish'",
+        true));
+    WorkflowJob urgent = j.jenkins.createProject(WorkflowJob.class, "urgent");
+    urgent.setDefinition(
+      new CpsFlowDefinition(
+        "lock(resource: 'resource1', priority: 5) {\n"
+          + "	semaphore 'wait-urgent'\n"
+          + "}\n"
+          + "echo 'Finish'",
+        true));
+    WorkflowRun b1 = p.scheduleBuild2(0).waitForStart();
+    SemaphoreStep.waitForStart("wait-inside/1", b1);
+    WorkflowRun b2 = p.scheduleBuild2(0).waitForStart();
+    j.waitForMessage("[resource1] is locked by " + b1.getFullDisplayName() + ", waiting...", b2);
+    WorkflowRun u1 = urgent.scheduleBuild2(0).waitForStart();
+    j.waitForMessage("[resource1] is locked by " + b1.getFullDisplayName() + ", waiting...", u1);
+
+    // queued later, but goes first
+    List<QueuedContextStruct> queue = LockableResourcesManager.get().getCurrentQueuedContext();
+    assertEquals(2, queue.size());
+    assertEquals(u1, queue.get(0).getBuild());
+    assertEquals(b2, queue.get(1).getBuild());
+
+    SemaphoreStep.success("wait-inside/1", null);
+    j.waitForMessage("Lock acquired on [resource1]", u1);
+    SemaphoreStep.waitForStart("wait-urgent/1", u1);
+    j.assertLogNotContains("Lock acquired on [resource1]", b2);
+    SemaphoreStep.success("wait-urgent/1", null);
+    j.waitForMessage("Lock acquired on [resource1]", b2);
+    SemaphoreStep.success("wait-inside/2", null);
+    j.assertBuildStatusSuccess(j.waitForCompletion(u1));
+    j.assertBuildStatusSuccess(j.waitForCompletion(b2));
+  }
+
+  @Test
+  public void lockKeepsFreedResourcesForStarvingRequest() throws Exception {
+    long starvation = LockableResourcesManager.BACKFILL_STARVATION_MINUTES;
+    // every waiting context starves at once
+    LockableResourcesManager.BACKFILL_STARVATION_MINUTES = 0;
+    try {
+      LockableResourcesManager.get().createResourceWithLabel("phone1", "phone");
+      LockableResourcesManager.get().createResourceWithLabel("phone2", "phone");
+      WorkflowJob small = j.jenkins.createProject(WorkflowJob.class, "small");
+      small.setDefinition(
+        new CpsFlowDefinition(
+          "lock(label: 'phone', quantity: 1) {\n" + "	semaphore 'wait-small'\n" + "}\n",
+          true));
+      WorkflowJob large = j.jenkins.createProject(WorkflowJob.class, "large");
+      large.setDefinition(
+        new CpsFlowDefinition(
+          "lock(label: 'phone', quantity: 2) {\n" + "	semaphore 'wait-large'\n" + "}\n",
+          true));
+
+      WorkflowRun s1 = small.scheduleBuild2(0).waitForStart();
+      SemaphoreStep.waitForStart("wait-small/1", s1);
+      WorkflowRun l1 = large.scheduleBuild2(0).waitForStart();
+      j.waitForMessage("Found 1 available resource(s). Waiting for correct amount: 2.", l1);
+
+      // phone2 is free, but kept for the large request
+      WorkflowRun s2 = small.scheduleBuild2(0).waitForStart();
+      j.waitForMessage("[Label: phone, Quantity: 1] is locked, waiting...", s2);
+      assertEquals(
+        Collections.singletonList("phone2"),
+        LockableResourcesManager.get().getEarmarkedResources());
+
+      SemaphoreStep.success("wait-small/1", null);
+      SemaphoreStep.waitForStart("wait-large/1", l1);
+      j.assertLogNotContains("Lock acquired on", s2);
+      SemaphoreStep.success("wait-large/1", null);
+      SemaphoreStep.waitForStart("wait-small/2", s2);
+      SemaphoreStep.success("wait-small/2", null);
+      j.assertBuildStatusSuccess(j.waitForCompletion(l1));
+      j.assertBuildStatusSuccess(j.waitForCompletion(s2));
+      assertTrue(LockableResourcesManager.get().getBackfillReservations() > 0);
+    } finally {
+      LockableResourcesManager.BACKFILL_STARVATION_MINUTES = starvation;
+    }
+  }
+
+  @Test
+  public void lockKeepsNothingForRequestThePoolCanNotSatisfy() throws Exception {
+    long starvation = LockableResourcesManager.BACKFILL_STARVATION_MINUTES;
+    LockableResourcesManager.BACKFILL_STARVATION_MINUTES = 0;
+    try {
+      LockableResourcesManager.get().createResourceWithLabel("phone1", "phone");
+      LockableResourcesManager.get().createResourceWithLabel("phone2", "phone");
+      WorkflowJob small = j.jenkins.createProject(WorkflowJob.class, "small");
+      small.setDefinition(
+        new CpsFlowDefinition(
+          "lock(label: 'phone', quantity: 1) {\n" + "	semaphore 'wait-small'\n" + "}\n",
+          true));
+      WorkflowJob large = j.jenkins.createProject(WorkflowJob.class, "large");
+      large.setDefinition(
+        new CpsFlowDefinition(
+          "lock(label: 'phone', quantity: 3) {\n" + "	echo 'never'\n" + "}\n", true));
+
+      WorkflowRun s1 = small.scheduleBuild2(0).waitForStart();
+      SemaphoreStep.waitForStart("wait-small/1", s1);
+      WorkflowRun l1 = large.scheduleBuild2(0).waitForStart();
+      j.waitForMessage("Found 1 available resource(s). Waiting for correct amount: 3.", l1);
+
+      // three phones will never be there, phone2 stays free for the others
+      WorkflowRun s2 = small.scheduleBuild2(0).waitForStart();
+      SemaphoreStep.waitForStart("wait-small/2", s2);
+      assertTrue(LockableResourcesManager.get().getEarmarkedResources().isEmpty());
+
+      SemaphoreStep.success("wait-small/1", null);
+      SemaphoreStep.success("wait-small/2", null);
+      j.assertBuildStatusSuccess(j.waitForCompletion(s1));
+      j.assertBuildStatusSuccess(j.waitForCompletion(s2));
+      l1.doStop();
+      j.waitForCompletion(l1);
+    } finally {
+      LockableResourcesManager.BACKFILL_STARVATION_MINUTES = starvation;
+    }
+  }
+
+  @Test
+  public void lockElasticQuantity() throws Exception {
+    LockableResourcesManager.get().createResourceWithLabel("phone1", "phone");
+    LockableResourcesManager.get().createResourceWithLabel("phone2", "phone");
+    LockableResourcesManager.get().createResourceWithLabel("phone3", "phone");
+    WorkflowJob p = j.jenkins.createProject(WorkflowJob.class, "p");
+    p.setDefinition(
+      new CpsFlowDefinition(
+        "lock(label: 'phone', quantity: 2) {\n" + "	semaphore 'wait-inside'\n" + "}\n",
+        true));
+    WorkflowRun b1 = p.scheduleBuild2(0).waitForStart();
+    SemaphoreStep.waitForStart("wait-inside/1", b1);
+
+    WorkflowJob elastic = j.jenkins.createProject(WorkflowJob.class, "elastic");
+    elastic.setDefinition(
+      new CpsFlowDefinition(
+        "lock(label: 'phone', quantity: 3, minQuantity: 1, variable: 'PHONES') {\n"
+          + "	echo \"Got ${env.PHONES}\"\n"
+          + "}\n",
+        true));
+    // only one phone is free, good enough
+    WorkflowRun b2 = j.buildAndAssertSuccess(elastic);
+    j.assertLogContains("Lock acquired on [Label: phone, Quantity: 1-3]", b2);
+    j.assertLogContains("Got phone3", b2);
+
+    // waits for all of them first
+    elastic.setDefinition(
+      new CpsFlowDefinition(
+        "lock(label: 'phone', quantity: 3, minQuantity: 1, quantityGracePeriod: 3600, variable: 'PHONES') {\n"
+          + "	echo \"Got ${env.PHONES}\"\n"
+          + "}\n",
+        true));
+    WorkflowRun b3 = elastic.scheduleBuild2(0).waitForStart();
+    j.waitForMessage("[Label: phone, Quantity: 1-3] is locked, waiting...", b3);
+    SemaphoreStep.success("wait-inside/1", null);
+    j.assertBuildStatusSuccess(j.waitForCompletion(b3));
+    j.assertLogContains("Got phone1,phone2,phone3", b3);
+  }
+
+  @Test
+  public void lockWithTimeout() throws Exception {
+    LockableResourcesManager.get().createResource("resource1");
+    WorkflowJob p = j.jenkins.createProject(WorkflowJob.class, "p");
+    p.setDefinition(
+      new CpsFlowDefinition(
+        "lock('resource1') {\n" + "	semaphore 'wait-inside'\n" + "}\n", true));
+    WorkflowRun b1 = p.scheduleBuild2(0).waitForStart();
+    SemaphoreStep.waitForStart("wait-inside/1", b1);
+
+    WorkflowJob p2 = j.jenkins.createProject(WorkflowJob.class, "p2");
+    p2.setDefinition(
+      new CpsFlowDefinition(
+        "lock(resource: 'resource1', timeout: 1) {\n" + "	echo 'Running body'\n" + "}\n",
+        true));
+    WorkflowRun b2 = j.buildAndAssertStatus(Result.FAILURE, p2);
+    j.assertLogContains("Timeout while waiting for [resource1]", b2);
+    j.assertLogNotContains("Running body", b2);
+
+    p2.setDefinition(
+      new CpsFlowDefinition(
+        "lock(resource: 'resource1', timeout: 1, skipOnTimeout: true) {\n"
+          + "	echo 'Running body'\n"
+          + "}\n"
+          + "echo 'After lock'\n",
+        true));
+    WorkflowRun b3 = j.buildAndAssertSuccess(p2);
+    j.assertLogContains("skipping execution...", b3);
+    j.assertLogContains("After lock", b3);
+    j.assertLogNotContains("Running body", b3);
+    assertTrue(LockableResourcesManager.get().getCurrentQueuedContext().isEmpty());
+
+    SemaphoreStep.success("wait-inside/1", null);
+    j.assertBuildStatusSuccess(j.waitForCompletion(b1));
+  }
+
+  @Test
+  public void waitingLockShowsPositionAndExpectedStart() throws Exception {
+    LockableResourcesManager.get().createResource("resource1");
+    WorkflowJob p = j.jenkins.createProject(WorkflowJob.class, "p");
+    p.setDefinition(
+      new CpsFlowDefinition(
+        "lock('resource1') {\n" + "	semaphore 'wait-inside'\n" + "}\n", true));
+    // a first lock gives the hold time
+    WorkflowRun b1 = p.scheduleBuild2(0).waitForStart();
+    SemaphoreStep.success("wait-inside/1", null);
+    j.assertBuildStatusSuccess(j.waitForCompletion(b1));
+
+    WorkflowRun b2 = p.scheduleBuild2(0).waitForStart();
+    SemaphoreStep.waitForStart("wait-inside/2", b2);
+    WorkflowRun b3 = p.scheduleBuild2(0).waitForStart();
+    j.waitForMessage("[resource1] position 1 in the queue, expected to start", b3);
+    WorkflowRun b4 = p.scheduleBuild2(0).waitForStart();
+    j.waitForMessage("[resource1] position 2 in the queue, expected to start", b4);
+
+    List<WaitEstimate> estimates = LockableResourcesManager.get().getWaitEstimates();
+    assertEquals(2, estimates.size());
+    assertEquals(1, estimates.get(0).getPosition());
+    assertEquals(2, estimates.get(1).getPosition());
+    assertTrue(estimates.get(1).getEstimatedStart() >= estimates.get(0).getEstimatedStart());
+
+    SemaphoreStep.success("wait-inside/2", null);
+    SemaphoreStep.waitForStart("wait-inside/3", b3);
+    // moved up when b3 left the queue
+    estimates = LockableResourcesManager.get().getWaitEstimates();
+    assertEquals(1, estimates.size());
+    assertEquals(1, estimates.get(0).getPosition());
+    SemaphoreStep.success("wait-inside/3", null);
+    SemaphoreStep.success("wait-inside/4", null);
+    j.assertBuildStatusSuccess(j.waitForCompletion(b4));
+  }
+
+  @Test
+  public void nestedLocksInReverseOrderFailTheYoungest() throws Exception {
+    LockableResourcesManager.get().createResource("resource1");
+    LockableResourcesManager.get().createResource("resource2");
+    WorkflowJob p = j.jenkins.createProject(WorkflowJob.class, "p");
+    p.setDefinition(
+      new CpsFlowDefinition(
+        "parallel a: {\n"
+          + "	lock('resource1') {\n"
+          + "		semaphore 'inside-a'\n"
+          + "		lock('resource2') {\n"
+          + "			echo 'a got both'\n"
+          + "		}\n"
+          + "	}\n"
+          + "}, b: {\n"
+          + "	lock('resource2') {\n"
+          + "		semaphore 'inside-b'\n"
+          + "		lock('resource1') {\n"
+          + "			echo 'b got both'\n"
+          + "		}\n"
+          + "	}\n"
+          + "}\n",
+        true));
+    WorkflowRun b1 = p.scheduleBuild2(0).waitForStart();
+    SemaphoreStep.waitForStart("inside-a/1", b1);
+    SemaphoreStep.waitForStart("inside-b/1", b1);
+
+    SemaphoreStep.success("inside-a/1", null);
+    j.waitForMessage("[resource2] is locked by " + b1.getFullDisplayName() + ", waiting...", b1);
+    // closes the cycle, this one is failed
+    SemaphoreStep.success("inside-b/1", null);
+
+    j.assertBuildStatus(Result.FAILURE, j.waitForCompletion(b1));
+    j.assertLogContains("Deadlock while waiting for [resource1]", b1);
+    j.assertLogContains("a got both", b1);
+    j.assertLogNotContains("b got both", b1);
+    assertEquals(1, LockableResourcesManager.get().getDeadlocksDetected());
+    assertTrue(LockableResourcesManager.get().getCurrentQueuedContext().isEmpty());
+    // the lock steps are forgotten with their locks
+    assertEquals(0, LockableResourcesManager.get().getLockNodeCount());
+  }
+
+  @Test
+  public void lockIsMeasured() throws Exception {
+    LockableResourcesManager.get().createResource("resource1");
+    LockMetrics metrics = LockMetrics.get();
+    long locks = metrics.getLocks();
+    long unlocks = metrics.getUnlocks();
+    WorkflowJob p = j.jenkins.createProject(WorkflowJob.class, "p");
+    p.setDefinition(new CpsFlowDefinition("lock('resource1') {\n" + "	echo 'inside'\n" + "}\n", true));
+    j.buildAndAssertSuccess(p);
+    assertEquals(locks + 1, metrics.getLocks());
+    assertEquals(unlocks + 1, metrics.getUnlocks());
+    assertTrue(metrics.getHoldTimeMillis().getCount() > 0);
+    assertTrue(metrics.getSaveTimeMicros().getCount() > 0);
+    assertTrue(
+      ManagementFactory.getPlatformMBeanServer()
+        .isRegistered(new ObjectName("org.jenkins.plugins.lockableresources:type=LockMetrics")));
+  }
+
+  @Test
+  public void lockEmitsFlightRecorderEvents() throws Exception {
+    LockableResourcesManager.get().createResource("resource1");
+    WorkflowJob p = j.jenkins.createProject(WorkflowJob.class, "p");
+    p.setDefinition(new CpsFlowDefinition("lock('resource1') {\n" + "	echo 'inside'\n" + "}\n", true));
+    List<String> names = new ArrayList<>();
+    try (Recording recording = new Recording()) {
+      recording.enable("org.jenkins.plugins.lockableresources.LockRequested");
+      recording.enable("org.jenkins.plugins.lockableresources.LockGranted");
+      recording.enable("org.jenkins.plugins.lockableresources.LockReleased");
+      recording.enable("org.jenkins.plugins.lockableresources.QueueEvaluation");
+      recording.start();
+      j.buildAndAssertSuccess(p);
+      recording.stop();
+      Path dump = Files.createTempFile("lockable-resources", ".jfr");
+      try {
+        recording.dump(dump);
+        for (RecordedEvent event : RecordingFile.readAllEvents(dump)) {
+          names.add(event.getEventType().getName());
+          if (event.getEventType().getName().endsWith("LockGranted")) {
+            assertEquals("resource1", event.getString("resources"));
+          }
+        }
+      } finally {
+        Files.delete(dump);
+      }
+    }
+    assertTrue(names.toString(), names.contains("org.jenkins.plugins.lockableresources.LockRequested"));
+    assertTrue(names.toString(), names.contains("org.jenkins.plugins.lockableresources.LockGranted"));
+    assertTrue(names.toString(), names.contains("org.jenkins.plugins.lockableresources.LockReleased"));
+    assertTrue(names.toString(), names.contains("org.jenkins.plugins.lockableresources.QueueEvaluation"));
+  }
+
   @Test
   public void parallelLock() throws Exception {
     WorkflowJob p = j.jenkins.createProject(WorkflowJob.class, "p");
@@ -811,6 +1291,41 @@ public class LockStepTest extends LockStepTestBase {
     assertNotNull(LockableResourcesManager.get().fromName("resource4"));
   }
 
+  @Test
+  public void lockWithOverlappingLabelQuantities() throws Exception {
+    LockableResourcesManager.get().createResourceWithLabel("resource1", "labelA");
+    LockableResourcesManager.get().createResourceWithLabel("resource2", "labelA labelB");
+    LockableResourcesManager.get().createResourceWithLabel("resource3", "labelB");
+    WorkflowJob p = j.jenkins.createProject(WorkflowJob.class, "p");
+    p.setDefinition(
+      new CpsFlowDefinition(
+        "lock(variable: 'var', extra: [[label: 'labelA', quantity: 1], "
+          + "[label: 'labelB', quantity: 1]]) {\n"
+          + "  echo \"Resources locked: ${env.var}\"\n"
+          + "  semaphore 'wait-inside'\n"
+          + "}\n"
+          + "echo 'Finish'",
+        true));
+    // resource2 satisfies both requirements, no need to lock more
+    WorkflowRun b1 = p.scheduleBuild2(0).waitForStart();
+    SemaphoreStep.waitForStart("wait-inside/1", b1);
+    j.assertLogContains("Resources locked: resource2", b1);
+
+    // so the other resources stay free
+    WorkflowJob p2 = j.jenkins.createProject(WorkflowJob.class, "p2");
+    p2.setDefinition(
+      new CpsFlowDefinition(
+        "lock(resource: 'resource1', extra: [[resource: 'resource3']]) {\n"
+          + "  echo 'Inside'\n"
+          + "}",
+        true));
+    WorkflowRun b2 = p2.scheduleBuild2(0).waitForStart();
+    j.assertBuildStatusSuccess(j.waitForCompletion(b2));
+
+    SemaphoreStep.success("wait-inside/1", null);
+    j.assertBuildStatusSuccess(j.waitForCompletion(b1));
+  }
+
   @Test
   //@Issue("JENKINS-XXXXX")
   public void multipleLocksFillVariables() throws Exception {
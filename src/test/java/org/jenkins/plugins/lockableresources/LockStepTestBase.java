@@ -2,12 +2,15 @@ package org.jenkins.plugins.lockableresources;
 
 import static org.junit.Assert.assertEquals;
 
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
 import org.jenkinsci.plugins.workflow.graph.FlowGraphWalker;
 import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
 import org.jenkinsci.plugins.workflow.job.WorkflowRun;
 import org.jenkinsci.plugins.workflow.support.actions.PauseAction;
 import org.junit.ClassRule;
 import org.jvnet.hudson.test.BuildWatcher;
+import org.jvnet.hudson.test.JenkinsRule;
 
 public class LockStepTestBase {
 
@@ -26,4 +29,29 @@ public class LockStepTestBase {
     assertEquals(count, pauseActions);
     assertEquals(effectivePauses, pausedActions);
   }
+
+  /**
+   * Leaves resource1 locked by a finished build and starts a build waiting for it, which stops
+   * in semaphore 'wait-inside' once it gets the lock.
+   *
+   * @return the waiting build
+   */
+  protected WorkflowRun waitForLockLeftBehind(JenkinsRule j) throws Exception {
+    LockableResourcesManager lrm = LockableResourcesManager.get();
+    lrm.createResource("resource1");
+
+    WorkflowJob p = j.jenkins.createProject(WorkflowJob.class, "p");
+    p.setDefinition(new CpsFlowDefinition("echo 'done'", true));
+    WorkflowRun finished = j.buildAndAssertSuccess(p);
+    // a lock left behind by a build which is not running any more
+    lrm.fromName("resource1").setBuild(finished);
+
+    WorkflowJob waiting = j.jenkins.createProject(WorkflowJob.class, "waiting");
+    waiting.setDefinition(
+      new CpsFlowDefinition(
+        "lock('resource1') {\n" + "	semaphore 'wait-inside'\n" + "}\n", true));
+    WorkflowRun b1 = waiting.scheduleBuild2(0).waitForStart();
+    j.waitForMessage("[resource1] is locked by " + finished.getFullDisplayName() + ", waiting...", b1);
+    return b1;
+  }
 }
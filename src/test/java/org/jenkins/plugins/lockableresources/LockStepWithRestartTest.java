@@ -1,8 +1,16 @@
 package org.jenkins.plugins.lockableresources;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
 import hudson.model.FreeStyleBuild;
 import hudson.model.FreeStyleProject;
+import java.io.File;
+import java.nio.file.Files;
 import java.util.Collections;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
 import org.jenkinsci.plugins.workflow.job.WorkflowJob;
@@ -151,4 +159,105 @@ public class LockStepWithRestartTest extends LockStepTestBase {
         j.waitUntilNoActivity();
       });
   }
+
+  @Test
+  public void manyLocksOverRestart() throws Throwable {
+    final int resources = 1000;
+    sessions.then(
+      j -> {
+        LockableResourcesManager manager = LockableResourcesManager.get();
+        for (int i = 0; i < resources; i++) {
+          manager.createResourceWithLabel("resource" + i, "pool");
+        }
+        WorkflowJob p = j.jenkins.createProject(WorkflowJob.class, "p");
+        p.setDefinition(
+          new CpsFlowDefinition(
+            "lock(label: 'pool') {\n" + "  semaphore 'wait-inside'\n" + "}\n" + "echo 'Finish'",
+            true));
+        WorkflowRun b1 = p.scheduleBuild2(0).waitForStart();
+        SemaphoreStep.waitForStart("wait-inside/1", b1);
+        WorkflowRun b2 = p.scheduleBuild2(0).waitForStart();
+        j.waitForMessage("[Label: pool] is locked, waiting...", b2);
+        isPaused(b2, 1, 1);
+      });
+
+    sessions.then(
+      j -> {
+        WorkflowJob p = j.jenkins.getItemByFullName("p", WorkflowJob.class);
+        WorkflowRun b1 = p.getBuildByNumber(1);
+        WorkflowRun b2 = p.getBuildByNumber(2);
+
+        // loading the registry does not look up the holders, they are looked up in the background,
+        // the holder once for all resources
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.SECONDS.toNanos(60);
+        LockableResourcesManager manager = LockableResourcesManager.get();
+        while (!manager.getUnresolvedHolders().isEmpty()
+          || !manager.getUnresolvedContexts().isEmpty()) {
+          assertTrue("builds still not looked up after 60 s", System.nanoTime() < deadline);
+          Thread.sleep(100);
+        }
+        LOGGER.info(
+          "Looked up the holder of "
+            + resources
+            + " locked resources within "
+            + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+            + " ms");
+        assertEquals(resources, manager.getResources().size());
+        for (LockableResource resource : manager.getResources()) {
+          assertSame(b1, resource.getBuild());
+        }
+
+        SemaphoreStep.success("wait-inside/1", null);
+        j.waitForMessage("Lock acquired on [Label: pool]", b2);
+        SemaphoreStep.success("wait-inside/2", null);
+        j.waitForMessage("Finish", b2);
+        isPaused(b2, 1, 0);
+      });
+  }
+
+  @Test
+  public void queueKeptInItsOwnFile() throws Throwable {
+    sessions.then(
+      j -> {
+        LockableResourcesManager manager = LockableResourcesManager.get();
+        manager.createResource("resource1");
+        WorkflowJob p = j.jenkins.createProject(WorkflowJob.class, "p");
+        p.setDefinition(
+          new CpsFlowDefinition(
+            "lock('resource1') {\n" + "  semaphore 'wait-inside'\n" + "}\n" + "echo 'Finish'",
+            true));
+        WorkflowRun b1 = p.scheduleBuild2(0).waitForStart();
+        SemaphoreStep.waitForStart("wait-inside/1", b1);
+        p.scheduleBuild2(0).waitForStart();
+        while (manager.getCurrentQueuedContext().isEmpty()) {
+          Thread.sleep(100);
+        }
+        manager.save();
+
+        String prefix = LockableResourcesManager.class.getName();
+        String queue =
+          Files.readString(new File(j.jenkins.getRootDir(), prefix + ".queue.xml").toPath());
+        String main = Files.readString(new File(j.jenkins.getRootDir(), prefix + ".xml").toPath());
+        assertTrue(queue, queue.contains("<resource>resource1</resource>"));
+        assertFalse(main, main.contains("queuedContexts"));
+      });
+
+    sessions.then(
+      j -> {
+        WorkflowJob p = j.jenkins.getItemByFullName("p", WorkflowJob.class);
+        WorkflowRun b2 = p.getBuildByNumber(2);
+        LockableResourcesManager manager = LockableResourcesManager.get();
+        assertEquals(1, manager.getCurrentQueuedContext().size());
+        // the requirement refers to the configured resource again
+        assertSame(
+          manager.fromName("resource1"),
+          manager.getCurrentQueuedContext().get(0).getResources().get(0).required.get(0));
+
+        SemaphoreStep.success("wait-inside/1", null);
+        j.waitForMessage("Lock acquired on [resource1]", b2);
+        SemaphoreStep.success("wait-inside/2", null);
+        j.waitForMessage("Finish", b2);
+      });
+  }
 }
@@ -0,0 +1,150 @@
+package org.jenkins.plugins.lockableresources;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Queue;
+import hudson.model.queue.QueueTaskFuture;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.jenkinsci.plugins.workflow.test.steps.SemaphoreStep;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+public class LockableCapacityResourceTest extends LockStepTestBase {
+
+  @Rule public JenkinsRule j = new JenkinsRule();
+
+  private static LockableCapacityResource createCapacity(String name, int capacity) {
+    LockableCapacityResource c = new LockableCapacityResource(name);
+    c.setCapacity(capacity);
+    List<LockableCapacityResource> all =
+      new ArrayList<>(LockableResourcesManager.get().getCapacityResources());
+    all.add(c);
+    LockableResourcesManager.get().setCapacityResources(all);
+    return LockableResourcesManager.get().capacityFromName(name);
+  }
+
+  @Test
+  public void counters() {
+    LockableCapacityResource c = new LockableCapacityResource("licenses");
+    c.setCapacity(5);
+    c.acquire("job#1", 2);
+    c.acquire("job#2", 1);
+    c.acquire("job#1", 1);
+    assertEquals(4, c.getUsed());
+    assertEquals(1, c.getFree());
+    assertEquals(3, c.getHeldBy("job#1"));
+
+    c.setQueued(42L, 1);
+    assertEquals(0, c.getFree());
+    assertEquals(1, c.getFree(42L));
+    assertEquals(1, c.unqueue(42L));
+
+    assertEquals(1, c.release("job#1", 1));
+    assertEquals(2, c.releaseAll("job#1"));
+    assertEquals(0, c.release("job#1", 1));
+    assertEquals(1, c.getUsed());
+    assertEquals(4, c.getFree());
+  }
+
+  @Test
+  public void lockPermitsInPipeline() throws Exception {
+    LockableCapacityResource licenses = createCapacity("licenses", 3);
+    assertNotNull(licenses);
+
+    WorkflowJob p = j.jenkins.createProject(WorkflowJob.class, "p");
+    p.setDefinition(
+      new CpsFlowDefinition(
+        "lock(resource: 'licenses', quantity: 2) {\n"
+          + "  semaphore 'wait-inside'\n"
+          + "}\n"
+          + "echo 'Finish'",
+        true));
+    WorkflowRun b1 = p.scheduleBuild2(0).waitForStart();
+    SemaphoreStep.waitForStart("wait-inside/1", b1);
+    assertEquals(2, licenses.getUsed());
+    assertEquals(1, licenses.getFree());
+    // capacity resources are never turned into ephemeral resources
+    assertNull(LockableResourcesManager.get().fromName("licenses"));
+
+    WorkflowRun b2 = p.scheduleBuild2(0).waitForStart();
+    j.waitForMessage(
+      "Found 1 free permit(s) of capacity resource 'licenses'. Waiting for correct amount: 2.", b2);
+    j.waitForMessage("[licenses] is locked, waiting...", b2);
+    isPaused(b2, 1, 1);
+
+    SemaphoreStep.success("wait-inside/1", null);
+    j.waitForMessage("Lock acquired on [licenses]", b2);
+    SemaphoreStep.waitForStart("wait-inside/2", b2);
+    j.assertBuildStatusSuccess(j.waitForCompletion(b1));
+    assertEquals(2, licenses.getUsed());
+
+    SemaphoreStep.success("wait-inside/2", null);
+    j.assertBuildStatusSuccess(j.waitForCompletion(b2));
+    assertEquals(0, licenses.getUsed());
+    assertEquals(3, licenses.getFree());
+  }
+
+  @Test
+  public void freestyleWaitsForPermits() throws Exception {
+    LockableCapacityResource licenses = createCapacity("licenses", 1);
+
+    WorkflowJob p = j.jenkins.createProject(WorkflowJob.class, "p");
+    p.setDefinition(
+      new CpsFlowDefinition(
+        "lock(resource: 'licenses') {\n" + "  semaphore 'wait-inside'\n" + "}", true));
+    WorkflowRun b1 = p.scheduleBuild2(0).waitForStart();
+    SemaphoreStep.waitForStart("wait-inside/1", b1);
+    assertEquals(1, licenses.getUsed());
+
+    FreeStyleProject f = j.createFreeStyleProject("f");
+    f.addProperty(new RequiredResourcesProperty("licenses", null, "1", null, null));
+    QueueTaskFuture<FreeStyleBuild> fb = f.scheduleBuild2(0);
+    TestHelpers.waitForQueue(j.jenkins, f, Queue.BlockedItem.class);
+    Queue.Item item = j.jenkins.getQueue().getItem(f);
+    assertNotNull(item);
+    assertEquals(
+      "Waiting for 1 permit(s) of licenses", item.getCauseOfBlockage().getShortDescription());
+
+    SemaphoreStep.success("wait-inside/1", null);
+    j.assertBuildStatusSuccess(j.waitForCompletion(b1));
+
+    FreeStyleBuild build = fb.get(60, TimeUnit.SECONDS);
+    j.assertBuildStatusSuccess(build);
+    j.assertLogContains("acquired 1 permit(s) of licenses", build);
+    j.assertLogContains("released capacity permits", build);
+    assertEquals(0, licenses.getUsed());
+    assertNull(LockableResourcesManager.get().fromName("licenses"));
+  }
+
+  @Test
+  public void freestyleWaitingForResourcesHoldsNoPermits() throws Exception {
+    createCapacity("licenses", 1);
+    LockableResourcesManager lrm = LockableResourcesManager.get();
+    lrm.createResource("board");
+    lrm.reserve(Collections.singletonList(lrm.fromName("board")), "user");
+
+    FreeStyleProject blocked = j.createFreeStyleProject("blocked");
+    blocked.addProperty(new RequiredResourcesProperty("licenses board", null, null, null, null));
+    QueueTaskFuture<FreeStyleBuild> fb1 = blocked.scheduleBuild2(0);
+    TestHelpers.waitForQueue(j.jenkins, blocked, Queue.BlockedItem.class);
+
+    // the permit is not kept for the item waiting for the board
+    FreeStyleProject f = j.createFreeStyleProject("f");
+    f.addProperty(new RequiredResourcesProperty("licenses", null, null, null, null));
+    j.assertBuildStatusSuccess(f.scheduleBuild2(0).get(60, TimeUnit.SECONDS));
+
+    lrm.unreserve(Collections.singletonList(lrm.fromName("board")));
+    j.assertBuildStatusSuccess(fb1.get(60, TimeUnit.SECONDS));
+  }
+}
@@ -5,7 +5,11 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
+import hudson.util.XStream2;
+import java.util.Collections;
 import java.util.Date;
 import org.junit.Test;
 
@@ -32,6 +36,50 @@ public class LockableResourceTest {
     assertNull(instance.getQueueItemProject());
   }
 
+  @Test
+  public void readsOlderConfiguration() {
+    LockableResource resource =
+      (LockableResource)
+        new XStream2()
+          .fromXML(
+            "<org.jenkins.plugins.lockableresources.LockableResource>"
+              + "<name>r1</name>"
+              + "<description></description>"
+              + "<labelsAsList><string>a</string><string>b</string></labelsAsList>"
+              + "<reservedBy>someone</reservedBy>"
+              + "<reservedTimestamp>2024-01-02 03:04:05.6 UTC</reservedTimestamp>"
+              + "<note></note>"
+              + "<sharedBy/>"
+              + "<queuedContexts/>"
+              + "</org.jenkins.plugins.lockableresources.LockableResource>");
+    assertEquals(1704164645600L, resource.getReservedAt());
+    assertEquals(new Date(1704164645600L), resource.getReservedTimestamp());
+    assertEquals("a b", resource.getLabels());
+    // interned, shared by all resources with that label
+    assertSame("a", resource.getLabelsAsList().get(0));
+    assertTrue(resource.getSharedBy().isEmpty());
+    assertFalse(resource.isLockedShared());
+    assertTrue(resource.getQueuedContexts().isEmpty());
+  }
+
+  /**
+   * For installations with hundreds of thousands of ephemeral resources: a resource without labels
+   * allocates no list, not even when read, and label names are shared.
+   */
+  @Test
+  public void labelsTakeNoHeapUntilSet() {
+    LockableResource resource = new LockableResource("pr-1");
+    assertSame(Collections.emptyList(), resource.getLabelNames());
+    assertEquals("", resource.getLabels());
+    assertFalse(resource.hasLabel("pr"));
+    assertSame(Collections.emptyList(), resource.getLabelNames());
+
+    LockableResource other = new LockableResource("pr-2");
+    other.setLabels("ephemeral pr");
+    resource.setLabels("ephemeral pr");
+    assertSame(other.getLabelNames().get(1), resource.getLabelNames().get(1));
+  }
+
   @Test
   public void testNote() {
     final LockableResource resource = new LockableResource("Name 1");
@@ -53,6 +101,35 @@ public class LockableResourceTest {
     instance.unqueue();
   }
 
+  @Test
+  public void gangReservationOutlivesQueuingTimeout() {
+    String xml =
+      "<org.jenkins.plugins.lockableresources.LockableResource>"
+        + "<name>r1</name>"
+        + "<queueItemId>5</queueItemId>"
+        + "<queueItemProject>matrix/x=a</queueItemProject>"
+        + "<queuingStarted>1</queuingStarted>"
+        + "%s"
+        + "</org.jenkins.plugins.lockableresources.LockableResource>";
+    LockableResource expired = (LockableResource) new XStream2().fromXML(String.format(xml, ""));
+    assertFalse(expired.isQueued());
+
+    LockableResource gang =
+      (LockableResource)
+        new XStream2().fromXML(String.format(xml, "<queuedForGang>true</queuedForGang>"));
+    assertTrue(gang.isQueuedByTask(5));
+    // queued again by the same item, still for the gang
+    gang.setQueued(5, "matrix/x=a");
+    assertTrue(gang.isQueuedForGang());
+    gang.setQueued(6, "other");
+    assertFalse(gang.isQueuedForGang());
+
+    instance.setQueuedForGang(7, "matrix/x=b");
+    instance.unqueue();
+    assertFalse(instance.isQueuedForGang());
+    assertFalse(instance.isQueued());
+  }
+
   @Test
   public void testSetBuild() {
     instance.setBuild(null);
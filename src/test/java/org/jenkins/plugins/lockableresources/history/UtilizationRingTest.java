@@ -0,0 +1,77 @@
+package org.jenkins.plugins.lockableresources.history;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import org.junit.Test;
+
+public class UtilizationRingTest {
+
+  private static final long SAMPLE = 10_000L;
+  private static final long MINUTE = 60_000L;
+
+  @Test
+  public void summarizesBusyAndReservedShare() {
+    UtilizationRing ring = new UtilizationRing(MINUTE, 60, SAMPLE);
+    long time = 0;
+    // first minute busy, second minute idle
+    for (int i = 0; i < 6; i++, time += SAMPLE) {
+      ring.add(time, 1, 1, 0, 2);
+    }
+    for (int i = 0; i < 6; i++, time += SAMPLE) {
+      ring.add(time, 1, 0, 0, 0);
+    }
+    Utilization utilization = ring.summarize(time - 1, 2 * MINUTE);
+    assertEquals(50, utilization.getBusyPercentage());
+    assertEquals(0, utilization.getReservedPercentage());
+    assertEquals(2, utilization.getPeakWaiting());
+  }
+
+  @Test
+  public void oldSlotsAreOverwritten() {
+    UtilizationRing ring = new UtilizationRing(MINUTE, 10, SAMPLE);
+    long time = 0;
+    for (int i = 0; i < 6 * 10; i++, time += SAMPLE) {
+      ring.add(time, 1, 1, 1, 0);
+    }
+    for (int i = 0; i < 6 * 10; i++, time += SAMPLE) {
+      ring.add(time, 1, 0, 0, 0);
+    }
+    Utilization utilization = ring.summarize(time - 1, 100 * MINUTE);
+    assertEquals(0, utilization.getBusyPercentage());
+    assertEquals(0, utilization.getReservedPercentage());
+  }
+
+  @Test
+  public void gapsDoNotCount() {
+    UtilizationRing ring = new UtilizationRing(MINUTE, 60, SAMPLE);
+    ring.add(0, 4, 1, 0, 0);
+    // controller down for half an hour
+    ring.add(30 * MINUTE, 4, 3, 0, 0);
+    Utilization utilization = ring.summarize(30 * MINUTE, 60 * MINUTE);
+    assertEquals(50, utilization.getBusyPercentage());
+  }
+
+  @Test
+  public void roundTrip() throws IOException {
+    UtilizationRing ring = new UtilizationRing(MINUTE, 60, SAMPLE);
+    long time = 0;
+    for (int i = 0; i < 100; i++, time += SAMPLE) {
+      ring.add(time, 2, i % 3 == 0 ? 2 : 0, i % 3 == 0 ? 1 : 0, i % 5);
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      ring.write(out);
+    }
+    UtilizationRing copy = new UtilizationRing(MINUTE, 60, SAMPLE);
+    try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+      copy.read(in);
+    }
+    assertEquals(
+        ring.summarize(time, 60 * MINUTE).toString(), copy.summarize(time, 60 * MINUTE).toString());
+  }
+}
@@ -0,0 +1,33 @@
+package org.jenkins.plugins.lockableresources.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyRecorderTest {
+
+  @Test
+  public void bucketsCoverTheirValues() {
+    for (long value : new long[] {0, 1, 7, 8, 15, 16, 17, 1000, 123456789L, Long.MAX_VALUE}) {
+      int bucket = LatencyRecorder.bucketOf(value);
+      long highest = LatencyRecorder.highestValueOf(bucket);
+      assertTrue(value + " <= " + highest, value <= highest);
+      assertEquals(bucket, LatencyRecorder.bucketOf(highest));
+    }
+  }
+
+  @Test
+  public void percentilesWithinPrecision() {
+    LatencyRecorder recorder = new LatencyRecorder();
+    for (int i = 1; i <= 1000; i++) {
+      recorder.record(i);
+    }
+    LatencySnapshot snapshot = recorder.snapshot();
+    assertEquals(1000, snapshot.getCount());
+    assertEquals(500, snapshot.getMean());
+    assertEquals(1000, snapshot.getMax());
+    assertTrue(snapshot.toString(), Math.abs(snapshot.getP50() - 500) <= 500 / 8);
+    assertTrue(snapshot.toString(), Math.abs(snapshot.getP99() - 990) <= 990 / 8);
+  }
+}
@@ -0,0 +1,143 @@
+package org.jenkins.plugins.lockableresources.trace;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.StringReader;
+import org.junit.Test;
+
+public class TraceSimulatorTest {
+
+  private static final String RESOURCES =
+    "{\"time\":0,\"event\":\"resources\",\"resources\":["
+      + "{\"name\":\"r1\",\"labels\":[]},{\"name\":\"r2\",\"labels\":[\"pool\"]}]}\n";
+
+  private static String request(String id, long time, String requirement) {
+    return request(id, time, 0, requirement);
+  }
+
+  private static String request(String id, long time, int priority, String requirement) {
+    return "{\"time\":" + time + ",\"event\":\"request\",\"id\":\"" + id
+      + "\",\"priority\":" + priority + ",\"requirements\":[" + requirement + "]}\n";
+  }
+
+  private static String event(String type, String id, long time, String resource) {
+    return "{\"time\":" + time + ",\"event\":\"" + type + "\",\"id\":\"" + id
+      + "\",\"resources\":[\"" + resource + "\"]}\n";
+  }
+
+  private static final String R1 = "{\"resources\":[\"r1\"],\"label\":\"\",\"quantity\":0}";
+
+  private static LockTrace read(String trace) throws IOException {
+    return LockTrace.read(new StringReader(trace));
+  }
+
+  @Test
+  public void replaysRecordedRequests() throws IOException {
+    LockTrace trace =
+      read(
+        RESOURCES
+          + request("a", 0, R1)
+          + event("grant", "a", 0, "r1")
+          + request("b", 1000, R1)
+          + request("c", 2000, "{\"resources\":[],\"label\":\"pool\",\"quantity\":1}")
+          + event("grant", "c", 2000, "r2")
+          + event("release", "c", 4000, "r2")
+          + event("release", "a", 10000, "r1")
+          + event("grant", "b", 10000, "r1")
+          + event("release", "b", 15000, "r1")
+          // never granted, left out
+          + request("d", 16000, R1));
+    assertEquals(3, trace.getRequests().size());
+
+    SimulationReport report = TraceSimulator.simulate(trace, SchedulingPolicy.Builtin.SEQUENTIAL);
+    assertEquals(3, report.getRequests());
+    assertEquals(0, report.getWait(50));
+    assertEquals(9000, report.getWait(100));
+    assertEquals(9000, report.getObservedWait(100));
+    assertEquals(1.0, report.getUtilization().get("r1"), 0.001);
+    assertEquals(2000.0 / 15000, report.getUtilization().get("r2"), 0.001);
+  }
+
+  @Test
+  public void comparesPolicies() throws IOException {
+    LockTrace trace =
+      read(
+        RESOURCES
+          + request("a", 0, R1)
+          + event("grant", "a", 0, "r1")
+          + request("b", 1000, R1)
+          + request("c", 2000, R1)
+          + event("release", "a", 10000, "r1")
+          + event("grant", "b", 10000, "r1")
+          + event("release", "b", 15000, "r1")
+          + event("grant", "c", 15000, "r1")
+          + event("release", "c", 16000, "r1"));
+
+    SimulationReport sequential =
+      TraceSimulator.simulate(trace, SchedulingPolicy.Builtin.SEQUENTIAL);
+    assertEquals(13000, sequential.getWait(100));
+
+    SimulationReport shortestFirst =
+      TraceSimulator.simulate(trace, SchedulingPolicy.Builtin.SHORTEST_HOLD_FIRST);
+    // c (1 s) goes before b (5 s)
+    assertEquals(10000, shortestFirst.getWait(100));
+  }
+
+  @Test
+  public void agesPriorities() throws IOException {
+    LockTrace trace =
+      read(
+        "{\"time\":0,\"event\":\"resources\",\"priorityAgingMillis\":1000,\"resources\":["
+          + "{\"name\":\"r1\",\"labels\":[]}]}\n"
+          + request("a", 0, R1)
+          + event("grant", "a", 0, "r1")
+          + request("b", 1000, R1)
+          + request("c", 5000, 2, R1)
+          + event("release", "a", 10000, "r1")
+          + event("grant", "b", 10000, "r1")
+          + event("release", "b", 12000, "r1")
+          + event("grant", "c", 12000, "r1")
+          + event("release", "c", 13000, "r1"));
+    assertEquals(1000, trace.getPriorityAgingMillis());
+
+    // b waited 4 s more than c, worth more than the 2 priority levels of c
+    SimulationReport report = TraceSimulator.simulate(trace, SchedulingPolicy.Builtin.SEQUENTIAL);
+    assertEquals(9000, report.getWait(100));
+  }
+
+  @Test
+  public void elasticQuantityGoesOnAfterTheGracePeriod() throws IOException {
+    LockTrace trace =
+      read(
+        "{\"time\":0,\"event\":\"resources\",\"resources\":["
+          + "{\"name\":\"r2\",\"labels\":[\"pool\"]},{\"name\":\"r3\",\"labels\":[\"pool\"]}]}\n"
+          + request("a", 0, "{\"resources\":[],\"label\":\"pool\",\"quantity\":1}")
+          + event("grant", "a", 0, "r2")
+          + request(
+            "b",
+            1000,
+            "{\"resources\":[],\"label\":\"pool\",\"quantity\":2,"
+              + "\"minQuantity\":1,\"gracePeriod\":2000}")
+          + event("grant", "b", 3000, "r3")
+          + event("release", "b", 4000, "r3")
+          + event("release", "a", 10000, "r2"));
+
+    // b takes the one free resource once its grace period is over
+    SimulationReport report = TraceSimulator.simulate(trace, SchedulingPolicy.Builtin.SEQUENTIAL);
+    assertEquals(2000, report.getWait(100));
+    assertEquals(1000.0 / 10000, report.getUtilization().get("r3"), 0.001);
+  }
+
+  @Test
+  public void skipsScriptsAndCapacityPermits() throws IOException {
+    LockTrace trace =
+      read(
+        RESOURCES
+          + request("a", 0, "{\"resources\":[],\"label\":\"\",\"quantity\":0,\"script\":true}")
+          + event("grant", "a", 0, "r1")
+          + event("release", "a", 1000, "r1"));
+    assertEquals(1, trace.getRequests().size());
+    assertEquals(0, TraceSimulator.simulate(trace, SchedulingPolicy.Builtin.RANDOM).getRequests());
+  }
+}